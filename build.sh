@@ -1,3 +1,6 @@
 javac -d classes -classpath lib -sourcepath src src/QueryMain.java
 javac -d classes -classpath lib -sourcepath src src/ConvertTxtToTbl.java 
-javac -d classes -classpath lib -sourcepath src src/RandomDB.java
\ No newline at end of file
+javac -d classes -classpath lib -sourcepath src src/RandomDB.java
+javac -d classes -classpath lib -sourcepath src src/ConvertSerializedTbl.java
+javac -d classes -classpath lib -sourcepath src src/BuildIndex.java
+javac -d classes -classpath lib -sourcepath src src/ConvertTblToColumns.java
\ No newline at end of file
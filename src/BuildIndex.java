@@ -0,0 +1,65 @@
+/*
+  builds a B+-tree index on a column of a table, from the <tablename>.tbl
+  file written by ConvertTxtToTbl and the schema in <tablename>.md. the
+  index of column <col> is written to <tablename>.<col>.idx. without a
+  column, the primary key columns of the table are indexed. the index has
+  to be built again whenever the table file is written again
+*/
+
+import qp.utils.Attribute;
+import qp.utils.BPlusTree;
+import qp.utils.Schema;
+
+import java.io.*;
+import java.util.ArrayList;
+
+public class BuildIndex {
+
+    public static void main(String[] args) throws IOException {
+        // check the arguments
+        if (args.length != 1 && args.length != 2) {
+            System.out.println("usage: java BuildIndex <tablename> [column] \n creates <tablename>.<column>.idx files");
+            System.exit(1);
+        }
+        String tblname = args[0];
+        String mdfile = tblname + ".md";
+        String tblfile = tblname + ".tbl";
+
+        Schema schema = null;
+        try {
+            ObjectInputStream ins = new ObjectInputStream(new FileInputStream(mdfile));
+            schema = (Schema) ins.readObject();
+            ins.close();
+        } catch (ClassNotFoundException ce) {
+            System.out.println("class not found exception --- error in schema object file");
+            System.exit(1);
+        }
+
+        /** The columns to index **/
+        ArrayList<Integer> columns = new ArrayList<>();
+        for (int i = 0; i < schema.getNumCols(); ++i) {
+            Attribute attr = schema.getAttribute(i);
+            if (args.length == 2 ? attr.getColName().equals(args[1]) : attr.isPrimaryKey()) {
+                columns.add(i);
+            }
+        }
+        if (columns.isEmpty()) {
+            System.out.println(args.length == 2 ? "no column " + args[1] + " in " + tblname : "no primary key in " + tblname + ", give the column to index");
+            System.exit(1);
+        }
+
+        for (int column : columns) {
+            String colname = schema.getAttribute(column).getColName();
+            String idxfile = BPlusTree.fileOf(tblname, colname);
+            if (!BPlusTree.build(tblfile, schema, column, idxfile)) {
+                System.out.println("unable to build the index of " + tblname + "." + colname);
+                System.exit(1);
+            }
+            BPlusTree index = new BPlusTree(idxfile);
+            index.open();
+            System.out.println(idxfile + ": " + index.getNumEntries() + " entries, height " + index.getHeight());
+            index.close();
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+  converts a <tablename>.tbl file written in the old format (a stream
+  of serialized Tuple objects) into the binary page format read by the
+  query processor. the schema is read from <tablename>.md and the
+  converted file replaces the original <tablename>.tbl. the zone map
+  of its pages is written to <tablename>.zm. the serialized tuples are
+  read as OldTuple objects, the shape Tuple had in the old format
+*/
+
+import qp.utils.Batch;
+import qp.utils.Schema;
+import qp.utils.Tuple;
+import qp.utils.TupleWriter;
+import qp.utils.ZoneMap;
+
+import java.io.*;
+import java.util.ArrayList;
+
+public class ConvertSerializedTbl {
+
+    static final int DEFAULT_PAGE_SIZE = 4096;  // Page size of the .tbl file if none is given
+
+    public static void main(String[] args) throws IOException {
+        // check the arguments
+        if (args.length != 1 && args.length != 2) {
+            System.out.println("usage: java ConvertSerializedTbl <tablename> [pagesize] \n converts <tablename>.tbl to the page format");
+            System.exit(1);
+        }
+        String tblname = args[0];
+        String mdfile = tblname + ".md";
+        String tblfile = tblname + ".tbl";
+        String tmpfile = tblname + ".tbl.tmp";
+        Batch.setPageSize(args.length == 2 ? Integer.parseInt(args[1]) : DEFAULT_PAGE_SIZE);
+
+        Schema schema = null;
+        try {
+            ObjectInputStream ins = new ObjectInputStream(new FileInputStream(mdfile));
+            schema = (Schema) ins.readObject();
+            ins.close();
+        } catch (ClassNotFoundException ce) {
+            System.out.println("class not found exception --- error in schema object file");
+            System.exit(1);
+        }
+
+        int batchsize = Batch.getPageSize() / schema.getTupleSize();
+        if (batchsize < 1) {
+            System.out.println("page size is smaller than the tuple size of " + tblname);
+            System.exit(1);
+        }
+
+        /** open the input and output streams **/
+        ObjectInputStream in = new OldTupleInputStream(new FileInputStream(tblfile));
+        TupleWriter out = new TupleWriter(tmpfile, schema, batchsize);
+        ZoneMap zoneMap = new ZoneMap(schema, Batch.getPageSize());
+        out.setZoneMap(zoneMap);
+        if (!out.open()) {
+            System.exit(1);
+        }
+
+        int count = 0;
+        try {
+            while (true) {
+                OldTuple tuple = (OldTuple) in.readObject();
+                out.next(new Tuple(tuple._data));
+                count++;
+            }
+        } catch (EOFException eof) {
+            // all the tuples have been read
+        } catch (ClassNotFoundException ce) {
+            System.out.println("class not found exception --- " + tblfile + " is not a serialized table");
+            System.exit(1);
+        }
+        in.close();
+        out.close();
+
+        File converted = new File(tmpfile);
+        File original = new File(tblfile);
+        if (!original.delete() || !converted.renameTo(original)) {
+            System.out.println("unable to replace " + tblfile + ", the converted table is in " + tmpfile);
+            System.exit(1);
+        }
+        /** The zone map is written after the table, so that it is not older than it **/
+        if (!zoneMap.write(ZoneMap.fileOf(tblfile))) {
+            System.exit(1);
+        }
+        System.out.println(count + " tuples of " + tblname + " converted");
+    }
+
+    /**
+     * A tuple as it was serialized in the old format, a list of its values
+     * * It has the serialVersionUID of the old Tuple class
+     **/
+    static class OldTuple implements Serializable {
+        private static final long serialVersionUID = 1928781161746223552L;
+        ArrayList<Object> _data;
+    }
+
+    /**
+     * Reads the tuples of the old format as OldTuple objects, as Tuple
+     * * no longer has the fields they were written with
+     **/
+    static class OldTupleInputStream extends ObjectInputStream {
+
+        OldTupleInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            ObjectStreamClass desc = super.readClassDescriptor();
+            if (desc.getName().equals("qp.utils.Tuple")) {
+                return ObjectStreamClass.lookup(OldTuple.class);
+            }
+            return desc;
+        }
+    }
+
+}
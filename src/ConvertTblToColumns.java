@@ -0,0 +1,45 @@
+/*
+  writes the columnar layout of a table: every column of the
+  <tablename>.tbl file written by ConvertTxtToTbl goes to a file of its
+  own, <tablename>.<col>.col, with the schema read from <tablename>.md.
+  the query processor then reads only the columns a query refers to. the
+  columns have to be written again whenever the table file is written
+  again
+*/
+
+import qp.utils.ColumnStore;
+import qp.utils.Schema;
+
+import java.io.*;
+
+public class ConvertTblToColumns {
+
+    public static void main(String[] args) throws IOException {
+        // check the arguments
+        if (args.length != 1) {
+            System.out.println("usage: java ConvertTblToColumns <tablename> \n creates <tablename>.<column>.col files");
+            System.exit(1);
+        }
+        String tblname = args[0];
+        String mdfile = tblname + ".md";
+
+        Schema schema = null;
+        try {
+            ObjectInputStream ins = new ObjectInputStream(new FileInputStream(mdfile));
+            schema = (Schema) ins.readObject();
+            ins.close();
+        } catch (ClassNotFoundException ce) {
+            System.out.println("class not found exception --- error in schema object file");
+            System.exit(1);
+        }
+
+        if (!ColumnStore.write(tblname, schema)) {
+            System.out.println("unable to write the columns of " + tblname);
+            System.exit(1);
+        }
+        for (int i = 0; i < schema.getNumCols(); ++i) {
+            System.out.println(ColumnStore.fileOf(tblname, schema.getAttribute(i).getColName()));
+        }
+    }
+
+}
@@ -6,8 +6,11 @@
 */
 
 import qp.utils.Attribute;
+import qp.utils.Batch;
 import qp.utils.Schema;
 import qp.utils.Tuple;
+import qp.utils.TupleWriter;
+import qp.utils.ZoneMap;
 
 import java.io.*;
 import java.util.ArrayList;
@@ -15,19 +18,21 @@ import java.util.StringTokenizer;
 
 public class ConvertTxtToTbl {
 
+    static final int DEFAULT_PAGE_SIZE = 4096;  // Page size of the .tbl file if none is given
+
     public static void main(String[] args) throws IOException {
         // check the arguments
-        if (args.length != 1) {
-            System.out.println("usage: java ConvertTxtToTbl <tablename> \n creats <tablename>.tbl files");
+        if (args.length != 1 && args.length != 2) {
+            System.out.println("usage: java ConvertTxtToTbl <tablename> [pagesize] \n creats <tablename>.tbl and <tablename>.zm files");
             System.exit(1);
         }
         String tblname = args[0];
+        Batch.setPageSize(args.length == 2 ? Integer.parseInt(args[1]) : DEFAULT_PAGE_SIZE);
         String mdfile = tblname + ".md";
         String tblfile = tblname + ".tbl";
 
         /** open the input and output streams **/
         BufferedReader in = new BufferedReader(new FileReader(tblname + ".txt"));
-        ObjectOutputStream outtbl = new ObjectOutputStream(new FileOutputStream(tblfile));
 
         /** First Line is METADATA **/
         int linenum = 0;
@@ -41,6 +46,18 @@ public class ConvertTxtToTbl {
             System.exit(1);
         }
 
+        int batchsize = Batch.getPageSize() / schema.getTupleSize();
+        if (batchsize < 1) {
+            System.out.println("page size is smaller than the tuple size of " + tblname);
+            System.exit(1);
+        }
+        TupleWriter outtbl = new TupleWriter(tblfile, schema, batchsize);
+        ZoneMap zoneMap = new ZoneMap(schema, Batch.getPageSize());
+        outtbl.setZoneMap(zoneMap);
+        if (!outtbl.open()) {
+            System.exit(1);
+        }
+
         boolean flag = false;
         StringTokenizer tokenizer;
         while ((line = in.readLine()) != null) {
@@ -66,10 +83,15 @@ public class ConvertTxtToTbl {
                 attrIndex++;
             }
             Tuple tuple = new Tuple(data);
-            outtbl.writeObject(tuple);
+            outtbl.next(tuple);
         }
         outtbl.close();
         in.close();
+
+        /** The zone map is written after the table, so that it is not older than it **/
+        if (!zoneMap.write(ZoneMap.fileOf(tblfile))) {
+            System.exit(1);
+        }
     }
 
 }
@@ -5,6 +5,8 @@
 import qp.operators.Debug;
 import qp.operators.Operator;
 import qp.optimizer.BufferManager;
+import qp.optimizer.DPOptimizer;
+import qp.optimizer.Parallelizer;
 import qp.optimizer.PlanCost;
 import qp.optimizer.RandomOptimizer;
 import qp.parser.Scaner;
@@ -19,19 +21,28 @@ public class QueryMain {
 
     static PrintWriter out;
     static int numAtts;
+    static int numThreads;
+
+    /** Share of the buffers given to the buffer pool, unless the number of frames is given **/
+    static final int POOL_SHARE = 10;
 
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.out.println("usage: java QueryMain <queryfilename> <resultfile> <pagesize> <numbuffer>");
+            System.out.println("usage: java QueryMain <queryfilename> <resultfile> <pagesize> <numbuffer> [noprompt] [sort|rs] [lru|clock|mru] [threads] [prefetch] [poolframes]");
             System.exit(1);
         }
 
         BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
         Batch.setPageSize(getPageSize(args, in));
+        configureSortRuns(args);
 
         SQLQuery sqlquery = getSQLQuery(args[0]);
+        numThreads = getNumThreads(args);
+        ExternalSort.setParallelism(numThreads);
+        AsyncIO.setDepth(getPrefetchPages(args));
         boolean hasExtJoin = sqlquery.isDistinct() || !sqlquery.getGroupByList().isEmpty();
-        configureBufferManager(sqlquery.getNumJoin(), hasExtJoin, args, in);
+        int numBuff = configureBufferManager(sqlquery.getNumJoin(), sqlquery.getFromList().size(), hasExtJoin, args, in);
+        configureBufferPool(numBuff, args);
 
         Operator root = getQueryPlan(sqlquery);
         printFinalPlan(root, args, in);
@@ -56,6 +67,54 @@ public class QueryMain {
         return pagesize;
     }
 
+    /**
+     * Select how external sorts generate their initial runs: "sort" sorts
+     * * numBuff pages at a time (default), "rs" uses replacement selection
+     **/
+    private static void configureSortRuns(String[] args) {
+        if (args.length < 6 || args[5].equals("sort")) {
+            ExternalSort.setRunGeneration(ExternalSort.SORT_PAGES);
+        } else if (args[5].equals("rs")) {
+            ExternalSort.setRunGeneration(ExternalSort.REPLACEMENT_SELECTION);
+        } else {
+            System.out.println("unknown run generation " + args[5] + ", expected sort or rs");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Number of threads a query may run on, given as argument, a single
+     * * thread by default
+     **/
+    private static int getNumThreads(String[] args) {
+        int threads = 1;
+        if (args.length >= 8) {
+            threads = Integer.parseInt(args[7]);
+        }
+        if (threads < 1) {
+            System.out.println("number of threads " + threads + " is less than 1");
+            System.exit(1);
+        }
+        return threads;
+    }
+
+    /**
+     * Number of pages read ahead and written behind per file, given as
+     * * argument, 2 by default when the query runs on several threads and
+     * * 0, every page read and written when it is needed, otherwise
+     **/
+    private static int getPrefetchPages(String[] args) {
+        int pages = (numThreads > 1) ? 2 : 0;
+        if (args.length >= 9) {
+            pages = Integer.parseInt(args[8]);
+        }
+        if (pages < 0) {
+            System.out.println("number of pages to read ahead " + pages + " is less than 0");
+            System.exit(1);
+        }
+        return pages;
+    }
+
     /**
      * Parse query from query file
      **/
@@ -86,10 +145,13 @@ public class QueryMain {
     }
 
     /**
-     * If there are joins then assigns buffers to each join operator while preparing the plan.
-     * As buffer manager is not implemented, just input the number of buffers available.
+     * If there are joins then assigns buffers to each join operator while preparing the plan,
+     * after setting aside the frames of the buffer pool and the pages each of the numScan scans
+     * reads ahead. As buffer manager is not implemented, just input the number of buffers available.
+     * Returns the number of frames of the buffer pool
      **/
-    private static void configureBufferManager(int numJoin, boolean hasExtJoin, String[] args, BufferedReader in) {
+    private static int configureBufferManager(int numJoin, int numScan, boolean hasExtJoin, String[] args, BufferedReader in) {
+        int poolFrames = (args.length >= 4) ? getPoolFrames(Integer.parseInt(args[3]), args) : 0;
         if (numJoin != 0 || hasExtJoin) {
             int numBuff = 1000;
             if (args.length < 4) {
@@ -118,7 +180,8 @@ public class QueryMain {
                 numJoin = Math.max(numJoin, 1);
             }
             System.out.println(numBuff + ", " + numJoin);
-            BufferManager bm = new BufferManager(numBuff, numJoin);
+            BufferManager bm = new BufferManager(numBuff, numJoin, getPoolFrames(numBuff, args), numScan, AsyncIO.getDepth());
+            poolFrames = BufferManager.getPoolFrames();
         }
 
         /** Check the number of buffers available is enough or not **/
@@ -127,6 +190,42 @@ public class QueryMain {
             System.out.println("Minimum 3 buffers are required per join operator ");
             System.exit(1);
         }
+        return poolFrames;
+    }
+
+    /**
+     * Number of frames of the buffer pool out of the numBuff buffers, given
+     * * as argument, a tenth of the buffers by default
+     **/
+    private static int getPoolFrames(int numBuff, String[] args) {
+        int frames = numBuff / POOL_SHARE;
+        if (args.length >= 10) {
+            frames = Integer.parseInt(args[9]);
+        }
+        if (frames < 0) {
+            System.out.println("number of buffer pool frames " + frames + " is less than 0");
+            System.exit(1);
+        }
+        return frames;
+    }
+
+    /**
+     * Sets up the buffer pool with the given number of frames and the
+     * * replacement policy given as argument: "lru" (default), "clock" or "mru"
+     **/
+    private static void configureBufferPool(int numFrames, String[] args) {
+        ReplacementPolicy policy = null;
+        if (args.length < 7 || args[6].equals("lru")) {
+            policy = new LRUPolicy();
+        } else if (args[6].equals("clock")) {
+            policy = new ClockPolicy();
+        } else if (args[6].equals("mru")) {
+            policy = new MRUPolicy();
+        } else {
+            System.out.println("unknown replacement policy " + args[6] + ", expected lru, clock or mru");
+            System.exit(1);
+        }
+        BufferPool.init(numFrames, policy);
     }
 
     /**
@@ -135,8 +234,18 @@ public class QueryMain {
     public static Operator getQueryPlan(SQLQuery sqlquery) {
         Operator root = null;
 
-        RandomOptimizer optimizer = new RandomOptimizer(sqlquery);
-        Operator planroot = optimizer.getOptimizedPlan();
+        /** Dynamic programming finds the best join order but its cost grows
+         ** exponentially with the number of tables, randomized search is
+         ** used beyond that
+         **/
+        Operator planroot;
+        if (sqlquery.getFromList().size() <= DPOptimizer.MAX_RELATIONS) {
+            DPOptimizer optimizer = new DPOptimizer(sqlquery);
+            planroot = optimizer.getOptimizedPlan();
+        } else {
+            RandomOptimizer optimizer = new RandomOptimizer(sqlquery);
+            planroot = optimizer.getOptimizedPlan();
+        }
 
         if (planroot == null) {
             System.out.println("DPOptimizer: query plan is null");
@@ -145,6 +254,9 @@ public class QueryMain {
 
         root = RandomOptimizer.makeExecPlan(planroot);
 
+        /** Parts of the plan are run on several threads if the query is large enough **/
+        root = Parallelizer.parallelize(root, sqlquery, numThreads);
+
         return root;
     }
 
@@ -205,6 +317,7 @@ public class QueryMain {
         long endtime = System.currentTimeMillis();
         double executiontime = (endtime - starttime) / 1000.0;
         System.out.println("Execution time = " + executiontime);
+        System.out.println("Buffer pool: " + BufferPool.getHits() + " hits, " + BufferPool.getMisses() + " misses");
         return executiontime;
     }
 
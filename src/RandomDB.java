@@ -100,7 +100,7 @@ public class RandomDB {
                 }
 
                 int numbytes = Integer.parseInt(tokenizer.nextToken());
-                if (typeofkey != -1) {
+                if (typeofkey == -1) {
                     attr = new Attribute(tblname, colname, type);
                 } else {
                     attr = new Attribute(tblname, colname, type, typeofkey);
@@ -4,32 +4,47 @@
 
 package qp.operators;
 
+import qp.utils.AsyncIO;
 import qp.utils.Attribute;
 import qp.utils.Batch;
 import qp.utils.Tuple;
 import qp.utils.Condition;
 
-import java.io.*;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * The left input is read in blocks of numBuff - 2 pages. Every block is
+ * put in a hash table on its join attributes, and the right input,
+ * materialized in a file, is scanned once per block; each right tuple
+ * probes the table instead of being compared with every tuple of the block.
+ * A right input of at most numBuff - 2 pages is kept in memory instead,
+ * and the blocks take the buffers it leaves. A right input in a file is
+ * read ahead (see InnerInput) in up to a quarter of the block buffers.
+ */
 public class BlockNestedJoin extends Join {
-    static int fileNum = 0; // To get unique filenum for this operation
+    static final AtomicInteger fileNum = new AtomicInteger(); // To get unique filenum for this operation
     int batchSize;          // Number of tuples per out batch
+    int rightBatchSize;     // Number of tuples per page of the right table
+    int blockSize;          // Number of left pages per block
+    int prefetch;           // Number of pages of the right file read ahead
 
-    // Buffers for reading left table.
-    Batch[] leftBuffers;
+    // Hash table on the join attributes of the current block of the left table
+    HashMap<ArrayList<Object>, ArrayList<Tuple>> leftBlock;
     // One buffer for reading right table
     Batch rightBuffer;
     // One output buffer.
     Batch outputBuffer;
 
-    int lcurs;      // Cursor for left side buffer
+    Tuple rightTuple;             // Right tuple being joined
+    ArrayList<Tuple> matches;     // Tuples of the left block matching rightTuple
+    int mcurs;      // Cursor for matches
     int rcurs;      // Cursor for right side buffer
     boolean eosl;   // Whether end of stream (left table) is reached
     boolean eosr;   // Whether end of stream (right table) is reached
 
-    String rightFileName; // The file name where the right table is materialized
-    ObjectInputStream in; // File pointer to the right hand materialized file
+    InnerInput inner;     // The right table, in memory or materialized in a file
 
     // Indices corresponding to join attributes in left table
     ArrayList<Integer> leftIndices = new ArrayList<>();
@@ -50,12 +65,13 @@ public class BlockNestedJoin extends Join {
 
     /**
      * During open, find the index of the join attributes
-     * Materializes the right hand side into a file
+     * Keeps the right hand side in memory, or materializes it into a file
      * Opens the connections
      **/
     @Override
     public boolean open() {
         batchSize = Batch.getPageSize() / schema.getTupleSize();
+        rightBatchSize = Batch.getPageSize() / right.getSchema().getTupleSize();
 
         // Obtain indices of join attributes from left and right table separately
         for (Condition con : conditionList) {
@@ -66,35 +82,24 @@ public class BlockNestedJoin extends Join {
         }
 
         /** initialize the cursors of input buffers **/
-        lcurs = 0;
+        matches = null;
         rcurs = 0;
         eosl = false;
         /** because right stream is to be repetitively scanned
          ** if it reached end, we have to start new scan
          **/
         eosr = true;
-        Batch rightPage = null;
 
-        if (!right.open()) {
+        inner = new InnerInput("BNJtemp-" + fileNum.incrementAndGet(), right.getSchema(), rightBatchSize, numBuff - 2);
+        prefetch = AsyncIO.depthFor((numBuff - 2) / 4);
+        inner.setPrefetch(prefetch);
+        if (!inner.load(right)) {
             return false;
+        }
+        if (inner.isInMemory()) {
+            blockSize = Math.max(1, numBuff - 1 - inner.getNumPages());
         } else {
-            fileNum++;
-            rightFileName = "BNJtemp-" + fileNum;
-            try {
-                ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(rightFileName));
-                while ((rightPage = right.next()) != null) {
-                    out.writeObject(rightPage);
-                }
-                out.close();
-            } catch (IOException io) {
-                System.out.println("Block Nested Join: Error writing to temporary file");
-                return false;
-            }
-
-            if (!right.close()) {
-                return false;
-            }
-
+            blockSize = Math.max(1, numBuff - 2 - prefetch);
         }
         return left.open();
     }
@@ -113,97 +118,83 @@ public class BlockNestedJoin extends Join {
 
         outputBuffer = new Batch(batchSize);
         while (!outputBuffer.isFull()) {
-            if (lcurs == 0 && eosr == true) {
+            if (matches != null && mcurs < matches.size()) {
+                outputBuffer.add(matches.get(mcurs).joinWith(rightTuple));
+                mcurs++;
+                continue;
+            }
+            matches = null;
+
+            if (eosr) {
                 // Read new block from left table
-                leftBuffers = new Batch[numBuff - 2];
-                leftBuffers[0] = left.next();
-                if (leftBuffers[0] == null) {
+                if (!readLeftBlock()) {
                     eosl = true;
-                    return outputBuffer;
-                }
-                for (int i = 0; i < leftBuffers.length - 1; i++) {
-                    leftBuffers[i + 1] = left.next();
-                    if (leftBuffers[i + 1] == null) {
-                        break;
-                    }
+                    break;
                 }
 
-                /** Whenever a new left page comes, we have to start the
+                /** Whenever a new left block comes, we have to start the
                  ** scanning of right table
                  **/
-                try {
-                    in = new ObjectInputStream(new FileInputStream(rightFileName));
-                    eosr = false;
-                } catch (IOException io) {
+                if (!inner.rescan()) {
                     System.err.println("Block Nested Join : error in reading file");
                     System.exit(1);
                 }
+                eosr = false;
+                rightBuffer = null;
             }
 
-            int leftTupleCount = leftBuffers[0].size();
-            for (int i = 0; i < leftBuffers.length - 1 ; i++) {
-                if (leftBuffers[i + 1] == null) {
-                    break;
+            if (rightBuffer == null || rcurs >= rightBuffer.size()) {
+                rightBuffer = inner.nextBatch();
+                rcurs = 0;
+                if (rightBuffer == null) {
+                    eosr = true;
                 }
-                leftTupleCount = leftBuffers[i + 1].size() + leftTupleCount;
+                continue;
             }
 
-            while (eosr == false) {
-                try {
-                    if (lcurs == 0 && rcurs == 0) {
-                        rightBuffer = (Batch) in.readObject();
-                    }
-
-                    for (int i = lcurs; i < leftTupleCount; i++) {
-                        int leftBufferSize = leftBuffers[0].size();
-                        Tuple leftTuple = leftBuffers[i / leftBufferSize].get(i % leftBufferSize);
-
-                        for (int j = rcurs; j < rightBuffer.size(); j++) {
-                            Tuple rightTuple = rightBuffer.get(j);
-
-                            if (leftTuple.checkJoin(rightTuple, leftIndices, rightIndices)) {
-                                // Add the tuple
-                                Tuple outputTuple = leftTuple.joinWith(rightTuple);
-                                outputBuffer.add(outputTuple);
-
-                                if (outputBuffer.isFull()) {
-                                    if (i == leftTupleCount - 1 && j == rightBuffer.size() - 1) {
-                                        // case 1
-                                        lcurs = 0;
-                                        rcurs = 0;
-                                    } else if (i != leftTupleCount - 1 && j == rightBuffer.size() - 1) {
-                                        // case 2
-                                        lcurs = i + 1;
-                                        rcurs = 0;
-                                    } else {
-                                        // case 3
-                                        lcurs = i;
-                                        rcurs = j + 1;
-                                    }
-                                    return outputBuffer;
-                                }
-                            }
-                        }
-                        rcurs = 0;
-                    }
-                    lcurs = 0;
-                } catch (EOFException e) {
-                    try {
-                        in.close();
-                    } catch (IOException io) {
-                        System.out.println("Block Nested Join: Error in reading temporary file");
-                    }
-                    eosr = true;
-                } catch (ClassNotFoundException c) {
-                    System.out.println("Block Nested Join: Error in deserialising temporary file");
-                    System.exit(1);
-                } catch (IOException io) {
-                    System.out.println("Block Nested Join: Error in reading temporary file");
-                    System.exit(1);
+            // Probe the left block with the next right tuple
+            rightTuple = rightBuffer.get(rcurs);
+            rcurs++;
+            matches = leftBlock.get(keyOf(rightTuple, rightIndices));
+            mcurs = 0;
+        }
+        if (outputBuffer.isEmpty()) {
+            close();
+            return null;
+        }
+        return outputBuffer;
+    }
+
+    /**
+     * Reads the next blockSize pages of the left table into the hash
+     * * table of the block. Returns false if the left table has ended
+     **/
+    private boolean readLeftBlock() {
+        leftBlock = new HashMap<>();
+        int numPages = 0;
+        Batch leftPage;
+        while (numPages < blockSize && (leftPage = left.next()) != null) {
+            for (int i = 0; i < leftPage.size(); ++i) {
+                Tuple leftTuple = leftPage.get(i);
+                ArrayList<Object> key = keyOf(leftTuple, leftIndices);
+                ArrayList<Tuple> bucket = leftBlock.get(key);
+                if (bucket == null) {
+                    bucket = new ArrayList<>();
+                    leftBlock.put(key, bucket);
                 }
+                bucket.add(leftTuple);
             }
+            numPages++;
         }
-        return outputBuffer;
+        return numPages > 0;
+    }
+
+    private static ArrayList<Object> keyOf(Tuple tuple, ArrayList<Integer> indices) {
+        ArrayList<Object> key = new ArrayList<>(indices.size());
+        for (int index : indices) {
+            key.add(tuple.dataAt(index));
+        }
+        return key;
     }
 
     /**
@@ -211,8 +202,15 @@ public class BlockNestedJoin extends Join {
      */
     @Override
     public boolean close() {
-        File f = new File(rightFileName);
-        f.delete();
+        leftBlock = null;
+        if (inner != null) {
+            inner.close();
+        }
+        left.close();
         return true;
     }
+
+    public Object clone() {
+        return new BlockNestedJoin((Join) super.clone());
+    }
 }
\ No newline at end of file
@@ -0,0 +1,121 @@
+/**
+ * Scans the columnar layout of a base table
+ **/
+
+package qp.operators;
+
+import qp.utils.*;
+
+import java.util.ArrayList;
+
+/**
+ * ColumnScan reads only the column files (see ColumnStore) of the columns
+ * the query refers to, so it reads a fraction of the pages a Scan of the
+ * table file would. The tuples returned have the schema of the table, the
+ * columns that are not read are null, as no operator above looks at them.
+ *
+ * The pages of the column files do not hold the same tuples, so the zone
+ * map of the table file cannot be used to skip pages, and the conditions
+ * pushed down to the scan are left to the Select above.
+ *
+ * The pages the scan reads ahead (see Scan.setPrefetch) are shared by the
+ * column files.
+ */
+public class ColumnScan extends Scan {
+
+    ArrayList<Attribute> columns;  // Columns to read, in schema order
+    int[] indices;                 // Position of every column read in the schema
+    TupleReader[] readers;         // Column file of every column read
+
+    public ColumnScan(String tabname, ArrayList<Attribute> columns, int type) {
+        super(tabname, type);
+        this.columns = columns;
+    }
+
+    public ArrayList<Attribute> getColumns() {
+        return columns;
+    }
+
+    /**
+     * Open the file of every column read
+     */
+    public boolean open() {
+        /** num of tuples per batch**/
+        int tuplesize = schema.getTupleSize();
+        batchsize = Batch.getPageSize() / tuplesize;
+        eos = false;
+
+        /** At least one column is read to know the number of tuples **/
+        ArrayList<Attribute> toRead = columns.isEmpty() ? new ArrayList<>(schema.getAttList().subList(0, 1)) : columns;
+        indices = new int[toRead.size()];
+        readers = new TupleReader[toRead.size()];
+        for (int i = 0; i < toRead.size(); ++i) {
+            indices[i] = schema.indexOf(toRead.get(i));
+            String colfile = ColumnStore.fileOf(tabname, schema.getAttribute(indices[i]).getColName());
+            readers[i] = new TupleReader(colfile, ColumnStore.columnSchema(schema, indices[i]), batchsize);
+            readers[i].setPrefetch(prefetch / toRead.size());
+            if (!readers[i].open()) {
+                System.err.println(" Error reading " + colfile);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Next operator - puts the next tuples together from the column files
+     **/
+    public Batch next() {
+        if (eos) {
+            close();
+            return null;
+        }
+        Batch tuples = new Batch(batchsize);
+        while (!tuples.isFull()) {
+            Tuple first = readers[0].next();
+            if (first == null) {
+                eos = true;
+                break;
+            }
+            Object[] data = new Object[schema.getNumCols()];
+            data[indices[0]] = first.dataAt(0);
+            for (int i = 1; i < readers.length; ++i) {
+                data[indices[i]] = readers[i].next().dataAt(0);
+            }
+            tuples.add(new Tuple(data));
+        }
+        if (tuples.isEmpty()) {
+            close();
+            return null;
+        }
+        return tuples;
+    }
+
+    /**
+     * Close the column files
+     **/
+    public boolean close() {
+        boolean closed = true;
+        if (readers != null) {
+            for (TupleReader reader : readers) {
+                if (reader != null && !reader.close()) {
+                    System.err.println("ColumnScan: Error closing " + reader.getFileName());
+                    closed = false;
+                }
+            }
+        }
+        return closed;
+    }
+
+    public Object clone() {
+        ArrayList<Attribute> newcols = new ArrayList<>();
+        for (Attribute attr : columns) {
+            newcols.add((Attribute) attr.clone());
+        }
+        ColumnScan newscan = new ColumnScan(tabname, newcols, optype);
+        newscan.setSchema((Schema) schema.clone());
+        newscan.setPrefetch(prefetch);
+        return newscan;
+    }
+
+}
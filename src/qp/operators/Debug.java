@@ -92,6 +92,12 @@ public class Debug {
                 case JoinType.SORTMERGE:
                     System.out.print("SortMerge(");
                     break;
+                case JoinType.HASHJOIN:
+                    System.out.print("HashJoin(");
+                    break;
+                case JoinType.INDEXNESTED:
+                    System.out.print("IndexNestedJoin(");
+                    break;
                 case JoinType.CROSSPRODUCT:
                     System.out.print("CrossProduct(");
                     break;
@@ -109,14 +115,34 @@ public class Debug {
             System.out.print("Select(");
             PPrint(((Select) node).getBase());
             System.out.print("  '");
-            PPrint(((Select) node).getCondition());
+            boolean first = true;
+            for (Condition con : ((Select) node).getConditionList()) {
+                if (!first) {
+                    System.out.print(" AND ");
+                }
+                PPrint(con);
+                first = false;
+            }
             System.out.print(")");
         } else if (optype == OpType.PROJECT) {
             System.out.print("Project(");
             PPrint(((Project) node).getBase());
             System.out.print(")");
+        } else if (node instanceof ColumnScan) {
+            System.out.print("ColumnScan(" + ((ColumnScan) node).getTabName() + "  " + ((ColumnScan) node).getColumns() + ")");
         } else if (optype == OpType.SCAN) {
             System.out.print(((Scan) node).getTabName());
+        } else if (optype == OpType.INDEXSCAN) {
+            System.out.print("IndexScan(" + ((IndexScan) node).getTabName() + "  '");
+            boolean first = true;
+            for (Condition con : ((IndexScan) node).getConditionList()) {
+                if (!first) {
+                    System.out.print(" AND ");
+                }
+                PPrint(con);
+                first = false;
+            }
+            System.out.print(")");
         } else if (optype == OpType.GROUPBY) {
             System.out.print("GroupBy(");
             PPrint(((GroupBy) node).getBase());
@@ -131,6 +157,25 @@ public class Debug {
             System.out.print("Distinct(");
             PPrint(((Distinct) node).getBase());
             System.out.print(")");
+        } else if (optype == OpType.TOPK) {
+            TopK topk = (TopK) node;
+            System.out.print("Top" + topk.getK());
+            if (!topk.getOrderAttr().isEmpty()) {
+                System.out.print(topk.getIsDesc() ? "DESC" : "ASC");
+            }
+            System.out.print("(");
+            PPrint(topk.getBase());
+            System.out.print(")");
+        } else if (optype == OpType.EXCHANGE) {
+            Exchange exchange = (Exchange) node;
+            String[] modes = new String[]{"Hash", "RoundRobin", "Broadcast"};
+            System.out.print(modes[exchange.getMode()]);
+            if (exchange.getMode() == Exchange.HASH) {
+                System.out.print(exchange.getKeys());
+            }
+            System.out.print(exchange.getNumProducers() + "->" + exchange.getNumConsumers() + "(");
+            PPrint(exchange.getBase());
+            System.out.print(")");
         }
     }
 
@@ -139,7 +184,7 @@ public class Debug {
      * print a tuple
      **/
     public static void PPrint(Tuple t) {
-        for (int i = 0; i < t.data().size(); i++) {
+        for (int i = 0; i < t.size(); i++) {
             Object data = t.dataAt(i);
             if (data instanceof Integer) {
                 System.out.print((Integer) data + "\t");
@@ -1,5 +1,5 @@
 /**
- * Page Nested Join algorithm
+ * Removes the duplicate tuples of the base operator
  **/
 
 package qp.operators;
@@ -7,20 +7,64 @@ package qp.operators;
 import qp.utils.Attribute;
 import qp.utils.Batch;
 import qp.utils.Schema;
+import qp.utils.SortKey;
 import qp.utils.Tuple;
+import qp.utils.TupleWriter;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * With the HASH strategy the distinct tuples are kept in a hash set of up
+ * to (numBuff - 1) / 2 pages and a tuple is returned as soon as it is
+ * first seen, so a small result needs a single pass and no temporary file.
+ * Once the set is full, the tuples not in it are hash partitioned into
+ * files, one output page each in the rest of the buffers besides the
+ * input page; the set does not change any more, so the tuples of a
+ * partition are all new. Every partition is then read back into an empty
+ * set of up to numBuff - 1 pages, or sorted if it has more tuples than
+ * that set can hold.
+ *
+ * With the SORT strategy the input is sorted by ExternalSort and
+ * adjacent duplicates are removed.
+ */
 public class Distinct extends Operator {
+
+    /** Strategies for removing the duplicates **/
+    public static final int HASH = 0;   // hash set, spilling to hash partitions
+    public static final int SORT = 1;   // external sort, then removal of adjacent duplicates
+
+    static final AtomicInteger filenum = new AtomicInteger();  // To get unique filenum for this operation
+
     Operator base;                              // the base operator
     final ArrayList<Attribute> attrset;         // Set of attributes to project
+    private int strategy = SORT;                // Strategy for removing the duplicates
     private int batchsize;                      // Number of tuples per out batch
     private int numBuff;                        // Number of buffers available
     private boolean eos = false;                // records whether we have reached end of stream
 
     private ArrayList<Integer> projectIndices = new ArrayList<>();  // Set of index of the attributes in the base operator that are to be projected
+
+    /** HASH strategy **/
+    private HashSet<ArrayList<Object>> seen;    // Keys of the tuples returned from the current input
+    private long capacity;                      // Number of keys the set can hold while the base operator is read
+    private Operator input;                     // Input being hashed, the base operator or a partition
+    private boolean spilling;                   // Whether the input is the base operator and the set is full
+    private String[] partitions;                // File names of the partitions
+    private long[] partitionSizes;              // Number of tuples of every partition
+    private TupleWriter[] writers;              // Writers of the partitions while spilling
+    private int partition;                      // Partition being read, -1 while reading the base operator
+    private boolean sortedPartition;            // Whether the partition being read is sorted, without duplicates
+
+    /** SORT strategy **/
     private ExternalSort sortedBase;            // the sort operator being applied on the base operator
+    private SortKey sortKey;                    // Normalized keys of the attributes
+    private byte[] lastOutKey;                  // Key of the last tuple being output
+
+    private Batch inBatch;                      // Current input page
+    private int inIndex;                        // the index for the current element being read from input batch
 
     public Distinct(Operator base, ArrayList<Attribute> as, int type) {
     	super(type);
@@ -55,22 +99,90 @@ public class Distinct extends Operator {
         return this.numBuff;
     }
 
+    public void setStrategy(int strategy) {
+        this.strategy = strategy;
+    }
+
+    public int getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Only the SORT strategy returns the tuples sorted on the attributes
+     **/
+    public boolean isSortedOn(ArrayList<Attribute> attrs) {
+        return attrs.isEmpty() || (strategy == SORT && isPrefixOf(attrs, attrset));
+    }
+
+    /**
+     * Number of distinct tuples held in memory by the HASH strategy while
+     * * the base operator is read, before the tuples are partitioned
+     **/
+    public static long getCapacity(Schema schema, int numBuff) {
+        long batchsize = Math.max(1, Batch.getPageSize() / schema.getTupleSize());
+        return getSetPages(numBuff) * batchsize;
+    }
+
+    /**
+     * Number of distinct tuples of a partition held in memory by the HASH
+     * * strategy, which has all but the input page for the set
+     **/
+    public static long getPartitionCapacity(Schema schema, int numBuff) {
+        long batchsize = Math.max(1, Batch.getPageSize() / schema.getTupleSize());
+        return Math.max(1, numBuff - 1) * batchsize;
+    }
+
+    /**
+     * Number of partitions of the HASH strategy, one output page each in
+     * * the buffers left by the set and the input page
+     **/
+    public static int getNumPartitions(int numBuff) {
+        return Math.max(1, numBuff - 1 - getSetPages(numBuff));
+    }
+
+    /**
+     * Number of pages of the set while the base operator is read, about
+     * * half the buffers besides the input page, the partitions taking the
+     * * others once the set is full
+     **/
+    private static int getSetPages(int numBuff) {
+        return Math.max(1, (numBuff - 1) / 2);
+    }
+
     /**
      * During open
-     * * Runs External Sort on base operator
+     * * Opens the base operator for hashing or runs External Sort on it
      **/
     public boolean open() {
         int tuplesize = schema.getTupleSize();
         batchsize = Batch.getPageSize() / tuplesize;
+        eos = false;
+        projectIndices = new ArrayList<>();
         for (Object attribute : this.attrset) {
         	projectIndices.add(schema.indexOf( (Attribute) attribute));
         }
+        inBatch = null;
+        inIndex = 0;
+
+        if (strategy == HASH) {
+            capacity = getCapacity(schema, numBuff);
+            seen = new HashSet<>();
+            partitions = null;
+            partition = -1;
+            spilling = false;
+            sortedPartition = false;
+            input = base;
+            return base.open();
+        }
+
         sortedBase = new ExternalSort(base, attrset, OpType.DISTINCT, numBuff);
         sortedBase.setSchema(schema);
         if (!sortedBase.open()) {
             System.out.println("External sort failed to open");
             return false;
         }
+        sortKey = new SortKey(projectIndices);
+        lastOutKey = null;
         return true;
     }
 
@@ -78,56 +190,191 @@ public class Distinct extends Operator {
      * Read next tuple from operator
      */
     public Batch next() {
-        Batch inBatch = null; // input batch
-        int inIndex = 0; // the index for the current element being read from input batch
-        Tuple lastOutTuple = null; // the last tuple being output
-
         if (eos) {
-        	close();
         	return null;
-        } else if (inBatch == null) {
-        	inBatch = sortedBase.next();
         }
-
         Batch outBatch = new Batch(batchsize);
-        lastOutTuple = null;
         while (!outBatch.isFull()) {
+            Tuple current = (strategy == HASH) ? nextHashed() : nextSorted();
+            if (current == null) {
+                eos = true;
+                break;
+            }
+            outBatch.add(current);
+        }
+        if (outBatch.isEmpty()) {
+            return null;
+        }
+        return outBatch;
+    }
 
-        	// if finished scanning
-        	if (inBatch == null || inBatch.size() <= inIndex) {
-        		eos = true;
-        		break;
-        	}
+    /**
+     * Returns the next tuple of the input which is not a duplicate,
+     * * moving on to the next partition at the end of an input
+     **/
+    private Tuple nextHashed() {
+        while (true) {
+            Tuple current = nextInput(input);
+            if (current == null) {
+                input.close();
+                if (!nextPartition()) {
+                    return null;
+                }
+                continue;
+            }
+            if (sortedPartition) {
+                return current;
+            }
+            ArrayList<Object> key = keyOf(current);
+            if (seen.contains(key)) {
+                continue;
+            }
+            if (spilling) {
+                int p = (key.hashCode() & 0x7fffffff) % partitions.length;
+                writers[p].next(current);
+                partitionSizes[p]++;
+                continue;
+            }
+            if (partition == -1 && seen.size() >= capacity) {
+                startSpilling();
+                continue;
+            }
+            seen.add(key);
+            return current;
+        }
+    }
 
-        	Tuple current = inBatch.get(inIndex);
-        	if (lastOutTuple == null || !isEqualTuples(lastOutTuple, current)) {
-        		outBatch.add(current);
-        		lastOutTuple = current;
-        	}
-        	inIndex++;
+    /**
+     * The set is full: creates the partitions and puts back the tuple
+     * * that did not fit, which is the first one to be partitioned
+     **/
+    private void startSpilling() {
+        int num = filenum.incrementAndGet();
+        int numPartitions = getNumPartitions(numBuff);
+        partitions = new String[numPartitions];
+        partitionSizes = new long[numPartitions];
+        writers = new TupleWriter[numPartitions];
+        for (int p = 0; p < numPartitions; ++p) {
+            partitions[p] = "DStemp-" + num + "-" + p;
+            writers[p] = new TupleWriter(partitions[p], schema, batchsize);
+            if (!writers[p].open()) {
+                System.out.println("Distinct: Error writing to temporary file");
+                System.exit(1);
+            }
+        }
+        spilling = true;
+        inIndex--;
+    }
 
-        	if (inIndex == batchsize) {
-        		inBatch = sortedBase.next();
-        		inIndex = 0;
-        	}
+    /**
+     * Sets up the next non empty partition as the input. A partition with
+     * * more tuples than the set can hold is sorted instead. Returns false
+     * * if there is none left
+     **/
+    private boolean nextPartition() {
+        if (spilling) {
+            for (TupleWriter writer : writers) {
+                writer.close();
+            }
+            writers = null;
+            spilling = false;
         }
-        return outBatch;
+        if (partitions == null) {
+            return false;
+        }
+        while (++partition < partitions.length) {
+            if (partitionSizes[partition] == 0) {
+                continue;
+            }
+            Scan scan = new Scan(partitions[partition], partitions[partition], OpType.SCAN);
+            scan.setSchema(schema);
+            sortedPartition = (partitionSizes[partition] > getPartitionCapacity(schema, numBuff));
+            if (!sortedPartition) {
+                input = scan;
+            } else {
+                ExternalSort sorted = new ExternalSort(scan, attrset, OpType.DISTINCT, numBuff);
+                sorted.setSchema(schema);
+                input = new Distinct(sorted, attrset, OpType.DISTINCT, numBuff);
+                input.setSchema(schema);
+            }
+            if (!input.open()) {
+                System.exit(1);
+            }
+            seen = new HashSet<>();
+            inBatch = null;
+            inIndex = 0;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the next tuple of the sorted input which differs from the last one
+     **/
+    private Tuple nextSorted() {
+        while (true) {
+            Tuple current = nextInput(sortedBase);
+            if (current == null) {
+                return null;
+            }
+            byte[] key = sortKey.keyOf(current);
+            if (lastOutKey == null || SortKey.compare(lastOutKey, key) != 0) {
+                lastOutKey = key;
+                return current;
+            }
+        }
+    }
+
+    /**
+     * Returns the next tuple of the operator, or null at its end
+     **/
+    private Tuple nextInput(Operator op) {
+        while (inBatch == null || inIndex >= inBatch.size()) {
+            inBatch = op.next();
+            inIndex = 0;
+            if (inBatch == null) {
+                return null;
+            }
+        }
+        return inBatch.get(inIndex++);
     }
 
     /**
      * Close the operator
      */
     public boolean close() {
-        return sortedBase.close();
+        seen = null;
+        inBatch = null;
+        if (sortedBase != null) {
+            sortedBase.close();
+            sortedBase = null;
+        }
+        /** The input is still open if the caller stopped before the end **/
+        if (input != null) {
+            input.close();
+            input = null;
+        }
+        if (partitions != null) {
+            if (writers != null) {
+                for (TupleWriter writer : writers) {
+                    writer.close();
+                }
+                writers = null;
+            }
+            for (String name : partitions) {
+                new File(name).delete();
+            }
+            partitions = null;
+        }
+        return true;
     }
 
-    private boolean isEqualTuples(Tuple tuple1, Tuple tuple2) {
-    	for (int index : projectIndices) {
-    		if (Tuple.compareTuples(tuple1, tuple2, index) != 0) {
-    			return false;
-    		}
-    	}
-    	return true;
+    private ArrayList<Object> keyOf(Tuple tuple) {
+        ArrayList<Object> key = new ArrayList<>(projectIndices.size());
+        for (int index : projectIndices) {
+            key.add(tuple.dataAt(index));
+        }
+        return key;
     }
 
     public Object clone() {
@@ -139,6 +386,7 @@ public class Distinct extends Operator {
         Schema newSchema = newbase.getSchema().subSchema(newattr);
         newDistinct.setSchema(newSchema);
         newDistinct.setNumBuff(numBuff);
+        newDistinct.setStrategy(strategy);
         return newDistinct;
     }
 
@@ -0,0 +1,376 @@
+/**
+ * Exchange operator, runs instances of its base on worker threads
+ **/
+
+package qp.operators;
+
+import qp.utils.Attribute;
+import qp.utils.Batch;
+import qp.utils.Schema;
+import qp.utils.Tuple;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An exchange runs numProducers instances of its base, copies made with
+ * clone, each on a worker thread, and deals the pages they return to
+ * numConsumers consumers: by a hash of the key attributes of every tuple
+ * (HASH), a page to each consumer in turn (ROUND_ROBIN), or every page to
+ * every consumer (BROADCAST).
+ *
+ * With several producers, the i-th instance of the base reads the i-th
+ * part of the pages of every table it scans (see Scan.setPartition), and
+ * the exchanges in it are their consumer number i, so that the instances
+ * together return every tuple of the base once. The exchanges in the base
+ * then have as many consumers as this one has producers.
+ *
+ * The exchange in the plan is a consumer of the pages, the one given by
+ * setConsumer; its clones are the other consumers of the same producers,
+ * which are started when the first consumer is opened. An exchange with a
+ * single consumer gathers the tuples of all the instances of its base, in
+ * no particular order.
+ *
+ * Every consumer has a queue of QUEUE_PAGES pages per producer, and a
+ * producer waits while the queue it puts a page into is full.
+ */
+public class Exchange extends Operator {
+
+    public static final int HASH = 0;         // By a hash of the key attributes of every tuple
+    public static final int ROUND_ROBIN = 1;  // Every page to the next consumer in turn
+    public static final int BROADCAST = 2;    // Every page to every consumer
+
+    static final int QUEUE_PAGES = 2;         // Pages per producer in the queue of a consumer
+
+    /** Threads running the instances and the sort tasks, started as needed and reused once idle **/
+    static final ExecutorService workers = Executors.newCachedThreadPool(Worker::new);
+
+    Operator base;                 // Plan of which instances are run
+    int mode;                      // HASH, ROUND_ROBIN or BROADCAST
+    ArrayList<Attribute> keys;     // Attributes hashed to choose the consumer of a tuple
+    int numProducers;              // Number of instances of the base run
+    int numConsumers;              // Number of consumers of the pages
+    int consumer;                  // Consumer of the pages this exchange returns
+    Channel channel;               // Queues shared by all the consumers
+    boolean closed;                // Whether this consumer is closed
+
+    public Exchange(Operator base, int mode, ArrayList<Attribute> keys, int numProducers, int numConsumers) {
+        super(OpType.EXCHANGE);
+        this.base = base;
+        this.mode = mode;
+        this.keys = keys;
+        this.numProducers = numProducers;
+        this.numConsumers = numConsumers;
+        this.schema = base.getSchema();
+        channel = new Channel(this);
+    }
+
+    public Operator getBase() {
+        return base;
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    public ArrayList<Attribute> getKeys() {
+        return keys;
+    }
+
+    public int getNumProducers() {
+        return numProducers;
+    }
+
+    public int getNumConsumers() {
+        return numConsumers;
+    }
+
+    public void setConsumer(int consumer) {
+        this.consumer = consumer;
+    }
+
+    /**
+     * Starts the instances of the base if no other consumer did, and waits
+     * * for all of them to be open
+     **/
+    public boolean open() {
+        closed = false;
+        return channel.open();
+    }
+
+    /**
+     * Next page for this consumer, waiting for the instances to return one
+     **/
+    public Batch next() {
+        if (closed) {
+            return null;
+        }
+        return channel.take(consumer);
+    }
+
+    /**
+     * Drops the pages not read yet by this consumer. Once every consumer
+     * * is closed the instances are stopped and closed
+     **/
+    public boolean close() {
+        if (!closed) {
+            closed = true;
+            channel.close(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * The clones are consumers of the same instances of the base
+     **/
+    public Object clone() {
+        Exchange newex = new Exchange(base, mode, keys, numProducers, numConsumers);
+        newex.setSchema(schema);
+        newex.channel = channel;
+        newex.consumer = consumer;
+        return newex;
+    }
+
+    /**
+     * Makes the instance of the plan that is the part-th of numParts: its
+     * * scans read the part-th range of pages of their table and its
+     * * exchanges are consumer number part
+     **/
+    static void bind(Operator node, int part, int numParts) {
+        int optype = node.getOpType();
+        if (optype == OpType.EXCHANGE) {
+            ((Exchange) node).setConsumer(part);
+        } else if (optype == OpType.SCAN) {
+            ((Scan) node).setPartition(part, numParts);
+        } else if (optype == OpType.JOIN) {
+            bind(((Join) node).getLeft(), part, numParts);
+            bind(((Join) node).getRight(), part, numParts);
+        } else if (optype == OpType.SELECT) {
+            bind(((Select) node).getBase(), part, numParts);
+        } else if (optype == OpType.PROJECT) {
+            bind(((Project) node).getBase(), part, numParts);
+        } else if (optype == OpType.GROUPBY) {
+            bind(((GroupBy) node).getBase(), part, numParts);
+        } else if (optype == OpType.DISTINCT) {
+            bind(((Distinct) node).getBase(), part, numParts);
+        } else if (optype == OpType.ORDER) {
+            bind(((Order) node).getBase(), part, numParts);
+        } else if (optype == OpType.TOPK) {
+            bind(((TopK) node).getBase(), part, numParts);
+        }
+    }
+
+    /**
+     * Whether the calling thread is one of the worker threads, which run
+     * * the instances of the plans and the tasks of the operators
+     **/
+    public static boolean isWorker() {
+        return Thread.currentThread() instanceof Worker;
+    }
+
+    /**
+     * A thread of the pool of workers, that does not keep the program running
+     **/
+    static final class Worker extends Thread {
+        Worker(Runnable task) {
+            super(task, "Exchange worker");
+            setDaemon(true);
+        }
+    }
+
+    /**
+     * The instances of the base and the queues of pages of the consumers
+     **/
+    static final class Channel {
+        final Exchange exchange;       // The exchange the channel was made for
+        ArrayList<ArrayDeque<Batch>> queues;  // Pages not read yet by every consumer
+        boolean[] consumerClosed;      // Whether every consumer is closed
+        int numClosed;                 // Number of consumers closed
+        boolean started;               // Whether the instances were started
+        int numOpened;                 // Number of instances done opening
+        int numRunning;                // Number of instances not done yet
+        boolean failed;                // Whether an instance could not be opened
+
+        Channel(Exchange exchange) {
+            this.exchange = exchange;
+        }
+
+        synchronized boolean open() {
+            if (!started) {
+                start();
+            }
+            while (numOpened < exchange.numProducers && !failed) {
+                waitForChange();
+            }
+            return !failed;
+        }
+
+        private void start() {
+            int numConsumers = exchange.numConsumers;
+            int numProducers = exchange.numProducers;
+            queues = new ArrayList<>(numConsumers);
+            for (int i = 0; i < numConsumers; ++i) {
+                queues.add(new ArrayDeque<>());
+            }
+            consumerClosed = new boolean[numConsumers];
+            started = true;
+            numRunning = numProducers;
+            for (int i = 0; i < numProducers; ++i) {
+                Operator instance = exchange.base;
+                if (numProducers > 1) {
+                    instance = (Operator) exchange.base.clone();
+                    bind(instance, i, numProducers);
+                }
+                int producer = i;
+                Operator run = instance;
+                workers.execute(() -> produce(producer, run));
+            }
+        }
+
+        /**
+         * Runs an instance of the base, putting its pages in the queues
+         **/
+        private void produce(int producer, Operator instance) {
+            try {
+                boolean opened = instance.open();
+                synchronized (this) {
+                    numOpened++;
+                    failed = failed || !opened;
+                    notifyAll();
+                }
+                if (opened) {
+                    route(producer, instance);
+                }
+                instance.close();
+            } catch (RuntimeException | Error e) {
+                System.out.println("Exchange: error in running an instance of the plan");
+                e.printStackTrace();
+                System.exit(1);
+            }
+            synchronized (this) {
+                numRunning--;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Deals the pages of the instance to the consumers, until they are
+         * * all read or every consumer is closed
+         **/
+        private void route(int producer, Operator instance) {
+            int numConsumers = exchange.numConsumers;
+            Schema schema = exchange.schema;
+            int batchsize = Math.max(1, Batch.getPageSize() / schema.getTupleSize());
+            int[] keyIndex = new int[(exchange.keys == null) ? 0 : exchange.keys.size()];
+            for (int i = 0; i < keyIndex.length; ++i) {
+                keyIndex[i] = schema.indexOf(exchange.keys.get(i));
+            }
+            Batch[] out = new Batch[numConsumers];
+            int next = producer % numConsumers;
+            Batch page;
+            while (!isCancelled() && (page = instance.next()) != null) {
+                if (exchange.mode == HASH && numConsumers > 1) {
+                    for (int i = 0; i < page.size(); ++i) {
+                        Tuple tuple = page.get(i);
+                        int c = consumerOf(tuple, keyIndex, numConsumers);
+                        if (out[c] == null) {
+                            out[c] = new Batch(batchsize);
+                        }
+                        out[c].add(tuple);
+                        if (out[c].isFull()) {
+                            put(c, out[c]);
+                            out[c] = null;
+                        }
+                    }
+                } else if (exchange.mode == BROADCAST && numConsumers > 1) {
+                    /** Every consumer gets a page of its own, as operators may change their input pages **/
+                    for (int c = 0; c < numConsumers; ++c) {
+                        Batch copy = new Batch(page.capacity());
+                        for (int i = 0; i < page.size(); ++i) {
+                            copy.add(page.get(i));
+                        }
+                        put(c, copy);
+                    }
+                } else {
+                    put(next, page);
+                    next = (next + 1) % numConsumers;
+                }
+            }
+            for (int c = 0; c < numConsumers; ++c) {
+                if (out[c] != null && !out[c].isEmpty()) {
+                    put(c, out[c]);
+                }
+            }
+        }
+
+        /**
+         * The consumer of the tuple is chosen from the mixed bits of the
+         * * hash code of its key, so that it does not depend on the bits
+         * * that the hash tables and partitions of the consumer use
+         **/
+        static int consumerOf(Tuple tuple, int[] keyIndex, int numConsumers) {
+            int h = 0;
+            for (int index : keyIndex) {
+                Object value = tuple.dataAt(index);
+                h = 31 * h + ((value == null) ? 0 : value.hashCode());
+            }
+            h ^= h >>> 16;
+            h *= 0x85EBCA6B;
+            h ^= h >>> 13;
+            h *= 0xC2B2AE35;
+            h ^= h >>> 16;
+            return (h & 0x7FFFFFFF) % numConsumers;
+        }
+
+        synchronized boolean isCancelled() {
+            return numClosed == exchange.numConsumers;
+        }
+
+        synchronized void put(int consumer, Batch page) {
+            int capacity = QUEUE_PAGES * exchange.numProducers;
+            while (queues.get(consumer).size() >= capacity && !consumerClosed[consumer]) {
+                waitForChange();
+            }
+            if (!consumerClosed[consumer]) {
+                queues.get(consumer).add(page);
+                notifyAll();
+            }
+        }
+
+        synchronized Batch take(int consumer) {
+            while (queues.get(consumer).isEmpty() && numRunning > 0) {
+                waitForChange();
+            }
+            Batch page = queues.get(consumer).poll();
+            notifyAll();
+            return page;
+        }
+
+        synchronized void close(int consumer) {
+            if (!started || consumerClosed[consumer]) {
+                return;
+            }
+            consumerClosed[consumer] = true;
+            queues.get(consumer).clear();
+            numClosed++;
+            notifyAll();
+            /** The last consumer waits for the instances to stop and close their files **/
+            if (numClosed == exchange.numConsumers) {
+                while (numRunning > 0) {
+                    waitForChange();
+                }
+            }
+        }
+
+        private void waitForChange() {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                System.out.println("Exchange: interrupted while waiting for the instances of the plan");
+                System.exit(1);
+            }
+        }
+    }
+}
@@ -4,41 +4,106 @@
 
 package qp.operators;
 
+import qp.utils.AsyncIO;
 import qp.utils.Attribute;
 import qp.utils.Batch;
+import qp.utils.RandomAccessTupleReader;
 import qp.utils.Schema;
+import qp.utils.SortKey;
 import qp.utils.Tuple;
+import qp.utils.TupleReader;
+import qp.utils.TupleWriter;
 
-import java.io.BufferedInputStream;
-import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.BitSet;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * External Sort operator - sort data from a file
+ * If the base operator already returns its tuples in the sort order, no
+ * run is generated nor merged: the tuples are passed through, or, if the
+ * pages are read back by getBatch, copied once into the sorted file
+ *
+ * The runs are merged until at most numBuff - 1 are left, and the last
+ * merge pass is done by next(), so the sorted relation is never written
+ * out in full. Only if the pages are read back by getBatch are the runs
+ * merged into a single sorted file
+ *
+ * A sort with several threads (see setParallelism) hands every numBuff /
+ * threads pages read from the base operator to a worker thread, which
+ * sorts them and writes them out as a run, while the next pages are read.
+ * The merges of a pass are run at the same time, up to one per thread,
+ * each of numBuff / threads - 1 runs so that they share the numBuff
+ * buffers. When the pages are read back by getBatch, the runs are merged
+ * down to that many, and the final merge is split into
+ * key ranges at splitters sampled from the first keys of the pages of the
+ * runs, and every range is merged into a sorted file of its own at the
+ * same time; the sorted relation is those files one after the other. The
+ * last pass read by next() stays on the calling thread, as splitting it
+ * would write the sorted relation out once more.
+ *
+ * A sort in an instance of a plan run by an Exchange uses a single thread,
+ * as the instances already run on every thread.
+ *
+ * The runs are written behind on an I/O thread (see AsyncIO), in up to a
+ * quarter of the buffers that hold the tuples of a run.
  */
 public class ExternalSort extends Operator {
 	public static long totaltime = 0;
 	static final int DEBUGLEVEL = 0;
-	static int filenum = 0;
+	static final AtomicInteger filenum = new AtomicInteger();
+
+	/** Strategies for generating the initial sorted runs **/
+	public static final int SORT_PAGES = 0;             // sort numBuff pages at a time, runs of numBuff pages
+	public static final int REPLACEMENT_SELECTION = 1;  // heap of numBuff-2 pages, runs of ~2(numBuff-2) pages
+
+	static int runGeneration = SORT_PAGES;
+
+	public static void setRunGeneration(int strategy) {
+		runGeneration = strategy;
+	}
+
+	public static int getRunGeneration() {
+		return runGeneration;
+	}
+
+	/** Number of threads a sort runs on **/
+	static int parallelism = 1;
+
+	/** Number of samples of keys per key range of the final parallel merge **/
+	static final int SAMPLES_PER_RANGE = 16;
+
+	public static void setParallelism(int threads) {
+		parallelism = threads;
+	}
+
+	public static int getParallelism() {
+		return parallelism;
+	}
 
     Operator base;                 // Base table to project
     ArrayList<Attribute> attrset;  // Set of attributes to project
     ArrayList<Integer> attrIndex;  // index of the attributes in the base operator
+    SortKey sortKey;               // Normalized keys of the tuples in the sort order
     int numBuff;                   // Number of buffers available
     int batchsize;                 // Number of tuples per outbatch
-    String rfname;                 // Name of temp storage file
-    File sortedFile;
+    int threads;                   // Number of threads the sort runs on
     boolean isDesc;                // Sort order (default is false, i.e. ascending) 
+    boolean randomAccess;          // Whether the pages are read by getBatch, so the output has to be in a file
+    boolean presorted;             // Whether the base operator is already in the sort order
     
-    ObjectInputStream sortedFileBase;
-    boolean sortedFileEos;
+    ArrayList<String> sortedFiles;  // Sorted files, in key order, if the pages are read back by getBatch
+    int sortedFileIndex;            // Sorted file read by next()
+    TupleReader sortedFileBase;
+    RandomAccessTupleReader[] sortedFilePages;  // Random access to the pages of the sorted files, opened by getBatch
+    int[] firstPageOf;              // Index of the first page of every sorted file
+
+    Merge merge;                    // Last merge pass, read by next()
     
     /**
      * Constructor - just save filename
@@ -75,6 +140,17 @@ public class ExternalSort extends Operator {
         this.isDesc = isDesc;
     }
 
+    /**
+     * Must be set before open if the pages are to be read by getBatch
+     **/
+    public void setRandomAccess(boolean randomAccess) {
+        this.randomAccess = randomAccess;
+    }
+
+    public boolean isSortedOn(ArrayList<Attribute> attrs) {
+        return attrs.isEmpty() || (!isDesc && isPrefixOf(attrs, attrset));
+    }
+
     /**
      * Opens the connection to the base operator
      * * Also figures out what are the columns to be
@@ -99,58 +175,100 @@ public class ExternalSort extends Operator {
         attrIndex = new ArrayList<Integer>(attrset.size());
         for (int i = 0; i < attrset.size(); ++i) {
             Attribute attr = attrset.get(i);
-
-            if (attr.getAggType() != Attribute.NONE) {
-                System.err.println("Aggragation is not implemented.");
-                System.exit(1);
+            int index = baseSchema.indexOf(attr);
+            if (index == -1) {
+                index = baseSchema.indexOf(attr.getBaseAttribute());
             }
-
-            int index = baseSchema.indexOf(attr.getBaseAttribute());
             attrIndex.add(index);
         }
+        sortKey = new SortKey(attrIndex, isDesc);
+        threads = Exchange.isWorker() ? 1 : Math.max(1, parallelism);
+        
+        presorted = !isDesc && base.isSortedOn(attrset);
+        if (presorted && !randomAccess) {
+        	return true;
+        }
         
         // generate sorted runs
-        ArrayList<String> sortedRuns = generateSortedRuns(base);
+        ArrayList<String> sortedRuns;
+        if (presorted) {
+        	sortedRuns = copyRun(base);
+        } else if (runGeneration == REPLACEMENT_SELECTION) {
+        	sortedRuns = generateReplacementSelectionRuns(base);
+        } else {
+        	sortedRuns = generateSortedRuns(base);
+        }
         base.close();
 
-        // merge sorted run
-        rfname = mergeSortedRuns(sortedRuns);
-        if (rfname == "") {
+        if (!randomAccess) {
+        	// merge sorted runs, leaving the last pass to next()
+        	sortedRuns = mergeSortedRuns(sortedRuns, numBuff - 1);
+        	if (sortedRuns == null) {
+        		return false;
+        	}
+        	return openMerge(sortedRuns);
+        }
+
+        // merge sorted runs, the final merge split into key ranges merged in parallel
+        sortedFiles = mergeSortedRuns(sortedRuns, (threads > 1) ? mergeFanIn() : 1);
+        if (sortedFiles == null) {
         	return false;
         }
-        
-        try {
-        	sortedFileBase = new ObjectInputStream(new FileInputStream(rfname));
-            sortedFileEos = false;
-        } catch (IOException io) {
-            System.err.println("ExternalSort: error in reading sorted file" + rfname);
+        if (sortedFiles.size() > 1) {
+        	sortedFiles = rangeMerge(sortedFiles);
+        	if (sortedFiles == null) {
+        		return false;
+        	}
+        }
+        return openSortedFile(0);
+    }
+
+    /**
+     * Opens the i-th sorted file to be read by next()
+     **/
+    private boolean openSortedFile(int i) {
+        sortedFileIndex = i;
+        sortedFileBase = new TupleReader(sortedFiles.get(i), schema, batchsize);
+        if (!sortedFileBase.open()) {
+            System.err.println("ExternalSort: error in reading sorted file" + sortedFiles.get(i));
             return false;
         }
         return true;
     }
 
     /**
-     * Next operator - get a tuple from the file
+     * Next operator - get a page from the last merge pass, or from the file
      **/
     public Batch next() {
-        if (sortedFileEos) {
-            return null;
-        }
-		try {
-	    	Batch outbatch = (Batch) sortedFileBase.readObject();
-	        return outbatch;
-	        
-		} catch (ClassNotFoundException cnf) {
-            System.err.println("ExternalSort: Class not found for reading file  " + rfname);
-            System.exit(1);
-	    } catch (EOFException e) {
-	    	sortedFileEos = true;
-        	close();
-	    } catch (IOException io) {
-            System.err.println("ExternalSort: " + io.getMessage());
-            System.exit(1);
-	    }
-		return null;
+    	if (presorted && !randomAccess) {
+    		return base.next();
+    	}
+    	if (!randomAccess) {
+    		if (merge == null) {
+    			return null;
+    		}
+    		Batch outbatch = new Batch(batchsize);
+    		Tuple tuple;
+    		while (!outbatch.isFull() && (tuple = merge.next()) != null) {
+    			outbatch.add(tuple);
+    		}
+    		if (outbatch.isEmpty()) {
+    			close();
+    			return null;
+    		}
+    		return outbatch;
+    	}
+    	Batch outbatch = sortedFileBase.nextBatch();
+    	while (outbatch == null && sortedFileIndex + 1 < sortedFiles.size()) {
+    		if (!openSortedFile(sortedFileIndex + 1)) {
+    			break;
+    		}
+    		outbatch = sortedFileBase.nextBatch();
+    	}
+    	if (outbatch == null) {
+    		close();
+    	}
+    	return outbatch;
     }
 
     /**
@@ -158,14 +276,32 @@ public class ExternalSort extends Operator {
      * * is already reached
      **/
     public boolean close() {
-    	try {
+    	if (presorted && !randomAccess) {
+    		return base.close();
+    	}
+    	if (!randomAccess) {
+    		if (merge != null) {
+    			merge.close(true);
+    			merge = null;
+    		}
+    		return true;
+    	}
+    	if (sortedFileBase != null) {
     		sortedFileBase.close();
-    	} catch (IOException io) {
-            System.err.println("ExternalSort: Error closing file" + io.getMessage());
-            System.exit(1);
-	    }
-    	File f = new File(rfname);
-        f.delete();
+    	}
+    	if (sortedFilePages != null) {
+    		for (RandomAccessTupleReader pages : sortedFilePages) {
+    			if (pages != null) {
+    				pages.close();
+    			}
+    		}
+    		sortedFilePages = null;
+    	}
+    	if (sortedFiles != null) {
+    		for (String sorted : sortedFiles) {
+    			new File(sorted).delete();
+    		}
+    	}
         return true;
     }
 
@@ -177,288 +313,611 @@ public class ExternalSort extends Operator {
         ExternalSort newExternalSort = new ExternalSort(newbase, newattr, optype, numBuff);
         Schema newSchema = newbase.getSchema().subSchema(newattr);
         newExternalSort.setSchema(newSchema);
-        newExternalSort.rfname = this.rfname;
+        newExternalSort.setIsDesc(isDesc);
+        newExternalSort.setRandomAccess(randomAccess);
         return newExternalSort;
     }
 
 	/*
 	 * Get the i-th page from file 
+	 * Pages of the sorted file are of a fixed size, so the page is read
+	 * directly at its offset instead of reading all the pages before it.
+	 * The pages of the sorted files of the key ranges are numbered one
+	 * file after the other
 	 */
     public Batch getBatch(int idx) {
     	long starttime = System.currentTimeMillis();
-    	ObjectInputStream tempSortedFileBase;
-    	boolean tempSortedFileEos;
-        try {
-        	tempSortedFileBase = new ObjectInputStream(new BufferedInputStream(new FileInputStream(rfname)));
-            tempSortedFileEos = false;
-        } catch (IOException io) {
-            System.err.println("ExternalSort:getBatch: error in reading sorted file" + rfname);
-            return null;
-        }
-
-    	Batch outbatch = new Batch(batchsize);
-    	for (int i = 0; i <= idx; i++) {
-    		try {
-    	    	outbatch = (Batch) tempSortedFileBase.readObject();
-    		} catch (ClassNotFoundException cnf) {
-                System.err.println("ExternalSort:getBatch: Class not found for reading file  " + rfname);
-                System.exit(1);
-    	    } catch (EOFException e) {
-    	    	if (DEBUGLEVEL>=1) System.err.println("ExternalSort:getBatch: EOF reached.");
-    	    	tempSortedFileEos = true;
-    	    } catch (IOException io) {
-                System.err.println("ExternalSort:getBatch: " + io.getMessage());
-                System.exit(1);
-    	    }
-    	}
-        try {
-        	tempSortedFileBase.close();
-        } catch (IOException io) {
-            System.err.println("ExternalSort:getBatch: Error in closing temporary file");
-        }
+    	if (sortedFiles == null) {
+    		System.err.println("ExternalSort:getBatch: random access was not requested before open");
+    		return null;
+    	}
+    	if (sortedFilePages == null) {
+    		RandomAccessTupleReader[] pages = new RandomAccessTupleReader[sortedFiles.size()];
+    		firstPageOf = new int[sortedFiles.size()];
+    		for (int i = 0; i < pages.length; i++) {
+    			pages[i] = new RandomAccessTupleReader(sortedFiles.get(i), schema, batchsize);
+    			if (!pages[i].open()) {
+    				System.err.println("ExternalSort:getBatch: error in reading sorted file" + sortedFiles.get(i));
+    				for (int j = 0; j < i; j++) {
+    					pages[j].close();
+    				}
+    				return null;
+    			}
+    			firstPageOf[i] = (i == 0) ? 0 : firstPageOf[i - 1] + pages[i - 1].getNumPages();
+    		}
+    		sortedFilePages = pages;
+    	}
+    	int file = sortedFilePages.length - 1;
+    	while (file > 0 && firstPageOf[file] > idx) {
+    		file--;
+    	}
+    	Batch outbatch = sortedFilePages[file].getBatch(idx - firstPageOf[file]);
+    	if (outbatch == null && DEBUGLEVEL>=1) System.err.println("ExternalSort:getBatch: EOF reached.");
         long endtime = System.currentTimeMillis();
         totaltime += (endtime-starttime);
-        if (tempSortedFileEos) {
-        	return null;
-        } else {
-        	return outbatch;
-        }
+        return outbatch;
     }
     
     
     
+    /**
+     * Sorts numBuff / threads pages at a time into runs, less the pages
+     * * written behind. With several threads, the pages read are sorted
+     * * and written by a worker thread while the next pages are read, up
+     * * to threads - 1 runs at a time, so that the pages held stay within
+     * * the numBuff buffers. With more threads than buffers, the runs
+     * * are of a page each and at most numBuff - 1 are sorted at a time
+     **/
     private ArrayList<String> generateSortedRuns(Operator base) {
     	ArrayList<String> sortedRuns = new ArrayList<>();
+    	ArrayDeque<Future<String>> pending = new ArrayDeque<>();
+    	int runTasks = Math.max(1, Math.min(threads, numBuff));
+    	int share = numBuff / runTasks;
+    	int writeBehind = AsyncIO.depthFor(share / 4);
+    	int pagesPerRun = Math.max(1, share - writeBehind);
     	Batch inbatch = base.next();
- 		try {
-	    	while (inbatch != null && inbatch.size() > 0) {
-	    		// Initialize output file
-	         	String srfname = "SRtemp-" + String.valueOf(filenum++); 
-	         	ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(srfname));
-	         	ArrayList<Tuple> srTuples = new ArrayList<>();
-	         	
-	         	// Read B pages per sorted run
-	         	int numPagesRead = 0; 
-	         	while (inbatch != null  && inbatch.size() > 0 && numPagesRead < numBuff) {
-	             	for (int i = 0; i < inbatch.size(); i++) {
-	             		srTuples.add(inbatch.get(i));
-	             	}
-	             	numPagesRead++;
-	             	inbatch = base.next();
-	         	}
-	         	
-	     		// In-memory sort tuples by attributes
-	     		srTuples.sort((t1, t2)-> {
-	     			return isDesc ? -Tuple.compareTuples(t1, t2, attrIndex, attrIndex)
-	     				          : Tuple.compareTuples(t1, t2, attrIndex, attrIndex);
-	     		});
-	     		
-         		// Write tuples into output file page by page to form a sorted run
-         		Batch outbatch = new Batch(batchsize);
-         		for (int j = 0; j < srTuples.size(); j++) {
-         			outbatch.add(srTuples.get(j));
-         			if (outbatch.isFull() && outbatch.size() > 0) {
-         				out.writeObject(outbatch);
-         				outbatch = new Batch(batchsize);
-         			}
-         		}
-     			if (outbatch.size()>0) {
-     				out.writeObject(outbatch);
-     			}
-         		out.close();
-         		sortedRuns.add(srfname); // Store filename to output array
-	    	}
-	    	
- 		} catch (IOException io) {
-            System.out.println("ExternalSort: " + io.toString());
+    	while (inbatch != null && inbatch.size() > 0) {
+         	ArrayList<Tuple> srTuples = new ArrayList<>();
+         	
+         	// Read B pages per sorted run
+         	int numPagesRead = 0; 
+         	while (inbatch != null  && inbatch.size() > 0 && numPagesRead < pagesPerRun) {
+             	for (int i = 0; i < inbatch.size(); i++) {
+             		srTuples.add(inbatch.get(i));
+             	}
+             	numPagesRead++;
+             	inbatch = base.next();
+         	}
+         	
+         	if (runTasks == 1) {
+         		sortedRuns.add(writeSortedRun(srTuples, writeBehind));
+         		continue;
+         	}
+         	while (pending.size() >= runTasks - 1) {
+         		sortedRuns.add(await(pending.poll()));
+         	}
+         	pending.add(Exchange.workers.submit(() -> writeSortedRun(srTuples, writeBehind)));
+    	}
+    	while (!pending.isEmpty()) {
+    		sortedRuns.add(await(pending.poll()));
+    	}
+    	return sortedRuns;
+    }
+    
+    /**
+     * Sorts the tuples in memory by their keys and writes them out as a run
+     **/
+    private String writeSortedRun(ArrayList<Tuple> tuples, int writeBehind) {
+    	// Initialize output file
+     	String srfname = "SRtemp-" + String.valueOf(filenum.getAndIncrement()); 
+     	TupleWriter out = new TupleWriter(srfname, schema, batchsize);
+     	out.setWriteBehind(writeBehind);
+     	if (!out.open()) {
+            System.out.println("ExternalSort: Error in writing sorted run " + srfname);
             System.exit(1);
-        } 
+     	}
+     	ArrayList<RunTuple> srTuples = new ArrayList<>(tuples.size());
+     	for (Tuple tuple : tuples) {
+     		srTuples.add(new RunTuple(tuple, sortKey.keyOf(tuple), 0));
+     	}
+     	
+ 		// In-memory sort tuples by their keys
+ 		srTuples.sort((a, b) -> SortKey.compare(a.key, b.key));
+ 		
+ 		// Write tuples into output file page by page to form a sorted run
+ 		for (int j = 0; j < srTuples.size(); j++) {
+ 			out.next(srTuples.get(j).tuple);
+ 		}
+ 		out.close();
+ 		return srfname;
+    }
+    
+    /**
+     * Waits for the result of a task run on a worker thread
+     **/
+    private static <T> T await(Future<T> task) {
+    	try {
+    		return task.get();
+    	} catch (InterruptedException | ExecutionException e) {
+    		System.out.println("ExternalSort: error in sorting on a worker thread");
+    		e.printStackTrace();
+    		System.exit(1);
+    		return null;
+    	}
+    }
+    
+    
+    /**
+     * Copies the base operator, which is already in the sort
+     * * order, into a single sorted run
+     **/
+    private ArrayList<String> copyRun(Operator base) {
+    	ArrayList<String> sortedRuns = new ArrayList<>();
+    	String srfname = "SRtemp-" + String.valueOf(filenum.getAndIncrement());
+    	TupleWriter out = new TupleWriter(srfname, schema, batchsize);
+    	if (!out.open()) {
+    		System.out.println("ExternalSort: Error in writing sorted run " + srfname);
+    		System.exit(1);
+    	}
+    	Batch inbatch;
+    	while ((inbatch = base.next()) != null) {
+    		out.next(inbatch);
+    	}
+    	out.close();
+    	sortedRuns.add(srfname);
     	return sortedRuns;
     }
     
+    /**
+     * Generates sorted runs by replacement selection. A heap of numBuff-2
+     * * pages (one input and one output page are kept aside) always writes
+     * * out its smallest tuple; an incoming tuple that is not smaller than
+     * * the last tuple written joins the current run, otherwise it is held
+     * * back for the next run. Runs average twice the heap size on random
+     * * input, and an already sorted input comes out as a single run.
+     * * The pages written behind are taken from the heap
+     **/
+    private ArrayList<String> generateReplacementSelectionRuns(Operator base) {
+    	ArrayList<String> sortedRuns = new ArrayList<>();
+    	int writeBehind = AsyncIO.depthFor((numBuff - 2) / 4);
+    	int capacity = Math.max(1, numBuff - 2 - writeBehind) * batchsize;
+    	PriorityQueue<RunTuple> heap = new PriorityQueue<>(capacity, (a, b) -> {
+    		if (a.run != b.run) return a.run - b.run;
+    		return SortKey.compare(a.key, b.key);
+    	});
+    	
+    	// Fill the heap with the first run's tuples
+    	Batch inbatch = base.next();
+    	int incurs = 0;
+    	while (inbatch != null && heap.size() < capacity) {
+    		if (incurs >= inbatch.size()) {
+    			inbatch = base.next();
+    			incurs = 0;
+    			continue;
+    		}
+    		Tuple tuple = inbatch.get(incurs++);
+    		heap.add(new RunTuple(tuple, sortKey.keyOf(tuple), 0));
+    	}
+    	
+    	int currentRun = -1;
+    	TupleWriter out = null;
+    	while (!heap.isEmpty()) {
+    		RunTuple smallest = heap.poll();
+    		if (smallest.run != currentRun) {
+    			// Current run cannot be extended any more, start the next one
+    			if (out != null) {
+    				out.close();
+    			}
+    			currentRun = smallest.run;
+    			String srfname = "SRtemp-" + String.valueOf(filenum.getAndIncrement());
+    			out = new TupleWriter(srfname, schema, batchsize);
+    			out.setWriteBehind(writeBehind);
+    			if (!out.open()) {
+    				System.out.println("ExternalSort: Error in writing sorted run " + srfname);
+    				System.exit(1);
+    			}
+    			sortedRuns.add(srfname);
+    		}
+    		out.next(smallest.tuple);
+    		
+    		// Replace the tuple written out with the next input tuple
+    		while (inbatch != null && incurs >= inbatch.size()) {
+    			inbatch = base.next();
+    			incurs = 0;
+    		}
+    		if (inbatch != null) {
+    			Tuple next = inbatch.get(incurs++);
+    			byte[] key = sortKey.keyOf(next);
+    			int run = (SortKey.compare(key, smallest.key) >= 0) ? currentRun : currentRun + 1;
+    			heap.add(new RunTuple(next, key, run));
+    		}
+    	}
+    	if (out != null) {
+    		out.close();
+    	}
+    	return sortedRuns;
+    }
     
-    private String mergeSortedRuns(ArrayList<String> sortedRuns) {
+    /**
+     * Number of runs merged at a time by each of the merges run at the
+     * * same time, with a share of the numBuff buffers each
+     **/
+    private int mergeFanIn() {
+    	return Math.max(2, numBuff / threads - 1);
+    }
+    
+    /**
+     * Merges the sorted runs, numBuff - 1 at a time, or mergeFanIn with
+     * * several threads, until at most maxRuns are left, up to threads
+     * * merges of a pass at a time. Returns the remaining runs, or null
+     * * on error
+     **/
+    private ArrayList<String> mergeSortedRuns(ArrayList<String> sortedRuns, int maxRuns) {
+    	int fanIn = (threads > 1) ? mergeFanIn() : numBuff - 1;
+        // An empty input still needs a (empty) sorted file to be read back
+        if (sortedRuns.isEmpty()) {
+        	String srfname = "SRtemp-" + String.valueOf(filenum.getAndIncrement());
+        	TupleWriter out = new TupleWriter(srfname, schema, batchsize);
+        	if (!out.open()) {
+        		return null;
+        	}
+        	out.close();
+        	sortedRuns.add(srfname);
+        }
         // Merge sorted runs. Each iteration of this while loop represent one pass of merging phase
-        while (sortedRuns.size() > 1) {       	
+        while (sortedRuns.size() > maxRuns) {       	
         	ArrayList<String> newSortedRuns = new ArrayList<>();
+        	ArrayDeque<Future<String>> pending = new ArrayDeque<>();
         	int i = 0;
         	ArrayList<String> mergeSet = new ArrayList<>();
         	while (i < sortedRuns.size()) {
         		// Sort B-1 sortedRuns at each pass
         		mergeSet.add(sortedRuns.get(i++));
-        		if (i == sortedRuns.size() || mergeSet.size() == numBuff-1) {
+        		if (i == sortedRuns.size() || mergeSet.size() == fanIn) {
             		// |R| writes and |R| reads
-            		String newSortedRun = multiwayMerge(mergeSet);
-            		if (newSortedRun == "") {
-            			System.out.println("ExternalSort: Error in multiway merge");
-            			return "";
+            		if (threads == 1) {
+            			newSortedRuns.add(multiwayMerge(mergeSet));
+            		} else {
+            			while (pending.size() >= threads) {
+            				newSortedRuns.add(await(pending.poll()));
+            			}
+            			ArrayList<String> runs = mergeSet;
+            			pending.add(Exchange.workers.submit(() -> multiwayMerge(runs)));
             		}
-            		newSortedRuns.add(newSortedRun);
             		mergeSet = new ArrayList<>();
         		}
         	}
+        	while (!pending.isEmpty()) {
+        		newSortedRuns.add(await(pending.poll()));
+        	}
+        	if (newSortedRuns.contains("")) {
+        		System.out.println("ExternalSort: Error in multiway merge");
+        		return null;
+        	}
 
-        	assert(newSortedRuns.size() == Math.ceil((double)sortedRuns.size() / (double)(numBuff - 1)));
+        	assert(newSortedRuns.size() == Math.ceil((double)sortedRuns.size() / (double)fanIn));
         	sortedRuns = newSortedRuns;
         }
         
-    	return sortedRuns.get(0);
+    	return sortedRuns;
     }
     
+    /**
+     * Merges the given sorted runs into one sorted run with a loser tree,
+     * * so that each output tuple costs log(k) comparisons for k runs
+     **/
     private String multiwayMerge(ArrayList<String> mergeSet) {
-    	ArrayList<ObjectInputStream> scannedRuns = new ArrayList<>();
-    	ArrayList<Boolean> eos = new ArrayList<>();  // maintain the end of stream status of every input stream
-    	ArrayList<Batch> inbatches = new ArrayList<>(); // maintain the current batch pointer for each run
-    	ArrayList<Integer> idxs = new ArrayList<>(); // maintain the current tuple index for each run
-    	HashSet<Integer> completedRuns = new HashSet<>();
+    	String srfname = mergeRange(mergeSet, null, null);
+    	if (!srfname.isEmpty()) {
+    		// Delete old sorted runs file
+    		deleteRuns(mergeSet);
+    	}
+    	return srfname;
+    }
+    
+    /**
+     * Merges the tuples of the sorted runs with keys from lo, up to but
+     * * excluding hi, into a new sorted run, or all the tuples if lo and hi
+     * * are null. The runs are kept. Returns the name of the new sorted
+     * * run, or "" on error
+     **/
+    private String mergeRange(ArrayList<String> runs, byte[] lo, byte[] hi) {
+    	Merge rangeMerge = new Merge();
+    	if (!rangeMerge.open(runs, lo, hi)) {
+    		rangeMerge.close(false);
+    		return "";
+    	}
     	
-    	// Scan every sorted run file 
-    	for (int i = 0; i < mergeSet.size(); i++) {
-    		ObjectInputStream scannedRun;
-    		try {
-    			scannedRun = new ObjectInputStream(new FileInputStream(mergeSet.get(i)));
-    		} catch (Exception e) {
-                System.err.println("External Sort: Error reading " + mergeSet.get(i) + "\n" + e.getMessage());
-                return "";
-            }
-    		scannedRuns.add(scannedRun);
-    		inbatches.add(null);
-    		eos.add(false);
-    		idxs.add(-1);
+    	// Perform k way merge
+    	String srfname = "SRtemp-" + String.valueOf(filenum.getAndIncrement());
+     	TupleWriter out = new TupleWriter(srfname, schema, batchsize);
+     	if (!out.open()) {
+            System.out.println("ExternalSort: Error writing to temporary file");
+            rangeMerge.close(false);
+            return "";
+     	}
+     	Tuple tuple;
+     	while ((tuple = rangeMerge.next()) != null) {
+     		out.next(tuple);
+     	}
+     	
+     	// Close current out file, flushing the unfilled output page
+        out.close();
+        rangeMerge.close(false);
+    	return srfname;
+    }
+    
+    /**
+     * Final merge of the runs, split into a key range per thread at
+     * * splitters sampled from the runs. The ranges are merged at the
+     * * same time into sorted files, returned in key order, or null on
+     * * error. There are at most mergeFanIn runs, so that the ranges
+     * * share the numBuff buffers. The runs are deleted
+     **/
+    private ArrayList<String> rangeMerge(ArrayList<String> runs) {
+    	ArrayList<byte[]> splitters = sampleSplitters(runs, threads);
+    	ArrayList<Future<String>> ranges = new ArrayList<>();
+    	for (int i = 0; i <= splitters.size(); i++) {
+    		byte[] lo = (i == 0) ? null : splitters.get(i - 1);
+    		byte[] hi = (i == splitters.size()) ? null : splitters.get(i);
+    		ranges.add(Exchange.workers.submit(() -> mergeRange(runs, lo, hi)));
+    	}
+    	ArrayList<String> sortedFiles = new ArrayList<>();
+    	for (Future<String> range : ranges) {
+    		sortedFiles.add(await(range));
+    	}
+    	deleteRuns(runs);
+    	if (sortedFiles.contains("")) {
+    		System.out.println("ExternalSort: Error in multiway merge");
+    		for (String sorted : sortedFiles) {
+    			new File(sorted).delete();
+    		}
+    		return null;
+    	}
+    	return sortedFiles;
+    }
+    
+    /**
+     * Up to numRanges - 1 distinct keys, in order, that split the tuples of
+     * * the runs into ranges of about the same size. They are taken from
+     * * the first keys of pages sampled at the same interval in every run
+     **/
+    private ArrayList<byte[]> sampleSplitters(ArrayList<String> runs, int numRanges) {
+    	RandomAccessTupleReader[] pages = new RandomAccessTupleReader[runs.size()];
+    	int totalPages = 0;
+    	for (int i = 0; i < runs.size(); i++) {
+    		pages[i] = new RandomAccessTupleReader(runs.get(i), schema, batchsize);
+    		if (pages[i].open()) {
+    			totalPages += pages[i].getNumPages();
+    		} else {
+    			pages[i] = null;
+    		}
+    	}
+    	int step = Math.max(1, totalPages / (numRanges * SAMPLES_PER_RANGE));
+    	ArrayList<byte[]> samples = new ArrayList<>();
+    	for (RandomAccessTupleReader run : pages) {
+    		if (run == null) {
+    			continue;
+    		}
+    		for (int page = step / 2; page < run.getNumPages(); page += step) {
+    			samples.add(sortKey.keyOf(run.getBatch(page).get(0)));
+    		}
+    		run.close();
     	}
+    	samples.sort(SortKey::compare);
     	
+    	ArrayList<byte[]> splitters = new ArrayList<>();
+    	for (int i = 1; i < numRanges && !samples.isEmpty(); i++) {
+    		byte[] splitter = samples.get(i * samples.size() / numRanges);
+    		if (splitters.isEmpty() || SortKey.compare(splitters.get(splitters.size() - 1), splitter) < 0) {
+    			splitters.add(splitter);
+    		}
+    	}
+    	return splitters;
+    }
+    
+    /**
+     * The pages of the sorted run from the last one that starts with a key
+     * * before lo, the ones before it holding no key from lo on. Null, for
+     * * every page, if the run cannot be read by page
+     **/
+    private BitSet pagesFrom(String run, byte[] lo) {
+    	RandomAccessTupleReader pages = new RandomAccessTupleReader(run, schema, batchsize);
+    	if (!pages.open()) {
+    		return null;
+    	}
+    	int numPages = pages.getNumPages();
+    	int first = 0;
+    	int low = 0;
+    	int high = numPages - 1;
+    	while (low <= high) {
+    		int mid = (low + high) >>> 1;
+    		if (SortKey.compare(sortKey.keyOf(pages.getBatch(mid).get(0)), lo) < 0) {
+    			first = mid;
+    			low = mid + 1;
+    		} else {
+    			high = mid - 1;
+    		}
+    	}
+    	pages.close();
+    	BitSet filter = new BitSet(numPages);
+    	filter.set(first, numPages);
+    	return filter;
+    }
+    
+    /**
+     * Opens the sorted runs for the last merge pass, read by next()
+     **/
+    private boolean openMerge(ArrayList<String> runs) {
+    	merge = new Merge();
+    	if (!merge.open(runs, null, null)) {
+    		merge.close(true);
+    		merge = null;
+    		return false;
+    	}
+    	return true;
+    }
+    
+    /**
+     * Deletes the sorted runs
+     **/
+    private void deleteRuns(ArrayList<String> runs) {
+    	for (String run : runs) {
+    		File f = new File(run);
+    		if (!f.delete()) {
+    			System.out.println("Unable to delete sorted run: " + run);
+    		}
+    	}
+    }
+    
+    /**
+     * Plays the matches below the given node of the loser tree, storing the
+     * * loser at every internal node, and returns the winning run.
+     * * Nodes k..2k-1 are the leaves, node k+i being sorted run i
+     **/
+    private int buildLoserTree(int[] tree, byte[][] keys, int node) {
+    	int numRuns = keys.length;
+    	if (node >= numRuns) {
+    		return node - numRuns;
+    	}
+    	int left = buildLoserTree(tree, keys, 2 * node);
+    	int right = buildLoserTree(tree, keys, 2 * node + 1);
+    	if (beats(left, right, keys)) {
+    		tree[node] = right;
+    		return left;
+    	}
+    	tree[node] = left;
+    	return right;
+    }
+    
+    /**
+     * Whether run i comes before run j in the output, given the keys of their
+     * * front tuples. Exhausted runs lose every match, and ties go to the
+     * * earlier run to keep the merge stable
+     **/
+    private boolean beats(int i, int j, byte[][] keys) {
+    	if (keys[j] == null) return true;
+    	if (keys[i] == null) return false;
+    	int cmp = SortKey.compare(keys[i], keys[j]);
+    	return cmp < 0 || (cmp == 0 && i < j);
+    }
+    
+    /**
+     * A multiway merge of sorted runs with a loser tree, of the tuples with
+     * * keys from lo, up to but excluding hi, if they are given
+     **/
+    private class Merge {
+    	ArrayList<String> runs;   // File names of the runs being merged
+    	TupleReader[] readers;    // Readers of the runs being merged
+    	Tuple[] heads;            // Front tuple of every run, null at end of stream
+    	byte[][] keys;            // Sort key of every front tuple, null at end of stream
+    	int[] tree;               // Loser tree over the runs, tree[0] is the winner
+    	byte[] hi;                // Key the merge ends at, null for none
     	
-    	// Perform k way merge
-    	String srfname = "SRtemp-" + String.valueOf(filenum++);
+    	/**
+    	 * Opens the sorted runs, skipping the tuples before lo, and builds
+    	 * * the loser tree on their front tuples
+    	 **/
+    	boolean open(ArrayList<String> runs, byte[] lo, byte[] hi) {
+    		int numRuns = runs.size();
+    		this.runs = runs;
+    		this.hi = hi;
+    		readers = new TupleReader[numRuns];
+    		heads = new Tuple[numRuns];
+    		keys = new byte[numRuns][];
+    		
+    		// Scan every sorted run file 
+    		for (int i = 0; i < numRuns; i++) {
+    			readers[i] = new TupleReader(runs.get(i), schema, batchsize);
+    			if (lo != null) {
+    				readers[i].setPageFilter(pagesFrom(runs.get(i), lo));
+    			}
+    			if (!readers[i].open()) {
+    				System.err.println("External Sort: Error reading " + runs.get(i));
+    				return false;
+    			}
+    			advance(i);
+    			while (lo != null && keys[i] != null && SortKey.compare(keys[i], lo) < 0) {
+    				advance(i);
+    			}
+    		}
+    		
+    		// tree[0] holds the run with the minimum front tuple, tree[1..k-1] the losers of each match
+    		tree = new int[numRuns];
+    		tree[0] = buildLoserTree(tree, keys, 1);
+    		return true;
+    	}
     	
-    	try {
-         	ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(srfname));
+    	/**
+    	 * Moves run i to its next tuple
+    	 **/
+    	private void advance(int i) {
+    		heads[i] = readers[i].next();
+    		keys[i] = (heads[i] == null) ? null : sortKey.keyOf(heads[i]);
+    	}
     	
-         	Batch outbatch = new Batch(batchsize); // initialize output buffer
-	     	while (completedRuns.size() < mergeSet.size()) {
-	     		
-	     		// TODO: Optimize to heap search
-	     		// Linear scan to choose minimum tuple to be added to output page
-	     		Tuple mintuple = null;
-	     		int minIdx = -1;
-	     		for (int i = 0; i < scannedRuns.size(); i++) {
-	     			// If current sorted run is already at end of stream, continue
-	     			if (eos.get(i)) {
-	     				continue;
-	     				
-	     			// If cursor is at start of page, pull new page in
-	     			} else if (idxs.get(i) == -1) {
-	     				try {
-	     					inbatches.set(i, (Batch)scannedRuns.get(i).readObject());
-	     					idxs.set(i, 0); // initialize index to 0
-	                    } catch (EOFException e) {
-	                        eos.set(i, true); // reached end of last page for i-th run
-	                        completedRuns.add(i); // add i-th run to the set of completed runs
-	                        continue;
-	                    } catch (ClassNotFoundException c) {
-	                        System.out.println("ExternalSort: Error in deserialising temporary file ");
-	                        System.exit(1);
-	                    } 
-	     			}
-	     			
-	     			// get front tuple of current SortedRun's page
-	 				Batch currbatch = inbatches.get(i);
-	 				Tuple currtuple = currbatch.get(idxs.get(i));
-	 				
-	     			// get minimum tuple
-	 				if (minIdx == -1) {
-	     				mintuple = currtuple;
-	     				minIdx = i;
-	     				
-	     			// Ascending order
-	 				} else if (!isDesc) {
-		     			if (Tuple.compareTuples(mintuple, currtuple, attrIndex, attrIndex) <= 0) {
-		     				// keep mintuple if mintuple < currtuple
-		     			} else {
-		     				// keep currtuple if mintuple > currtuple
-		     				mintuple = currtuple;
-		     				minIdx = i;
-		     			}
-		     		
-		     		// Descending order
-		     		// supposed to be maxtuple but reused mintuple here
-	 				} else {
-		     			if (Tuple.compareTuples(mintuple, currtuple, attrIndex, attrIndex) >= 0) {
-		     				// keep mintuple if mintuple > currtuple
-		     			} else {
-		     				// keep currtuple if mintuple < currtuple
-		     				mintuple = currtuple;
-		     				minIdx = i;
-		     			}
-	 				}
-
-	     		}
-	     		
-	     		// No more tuples (none selected hence mindIdx = -1). But output page not full yet
-	     		if (minIdx == -1) {
-	     			if (outbatch.size() > 0) {
-	     				try {
-			 				out.writeObject(outbatch);
-		 	            } catch (IOException io) {
-		 	                System.out.println("ExternalSort: Error writing to temporary file");
-		 	                return "";
-		 	            }
-	     			}
-	     			continue;	
-	     		}
-	     		
-	     		// Add selected minimum tuple to output page
-	 			outbatch.add(mintuple);
-	 			// If output page is full, flush it to file and create a new page
-	 			if (outbatch.isFull()) {
-	 				try {
-		 				out.writeObject(outbatch);
-	 	            } catch (IOException io) {
-	 	                System.out.println("ExternalSort: Error writing to temporary file");
-	 	                return "";
-	 	            }
-	 				outbatch = new Batch(batchsize);
-	 			}
-	     		
-	     		// increment idx for page where tuple was retrieved
-	     		idxs.set(minIdx, idxs.get(minIdx)+1);
-	     		
-	     		// reached end of page for this sortedRun
-	 			// set index to -1 so that it will retrieve the next page in next loop
-	     		if (idxs.get(minIdx) >= inbatches.get(minIdx).size()) { 
-	     			idxs.set(minIdx, -1);
-	     		}
-	     	}
-	     	
-     	
-	     	// Close current out file
-	        try {
-	            out.close();
-	        } catch (IOException e) {
-	            System.err.println("ExternalSort: Error closing " + srfname);
-	            return "";
-	        }
-	        
-	        // Close and delete old sorted runs file
-	        try {
-		    	for (int i = 0; i < mergeSet.size(); i++) {
-		    		scannedRuns.get(i).close();
-		    		File f = new File(mergeSet.get(i));
-		    		if (!f.delete()) {
-		    			System.out.println("Unable to delete sorted run: " + mergeSet.get(i));
-		    		}
-		    	}
-	        } catch (IOException e) {
-	            System.err.println("ExternalSort: Error closing sorted run file");
-	            return "";
-	        }
-	    	
-    	} catch (IOException io) {
-            System.out.println("ExternalSort: " + io.getMessage());
-            System.exit(1);
-        }
-    	return srfname;
+    	/**
+    	 * Returns the next tuple of the merge, or null once every run is
+    	 * * exhausted or the next key is not before hi
+    	 **/
+    	Tuple next() {
+    		int numRuns = heads.length;
+    		int winner = tree[0];
+    		Tuple tuple = heads[winner];
+    		if (tuple == null || (hi != null && SortKey.compare(keys[winner], hi) >= 0)) {
+    			return null;
+    		}
+    		
+    		// Advance the sorted run of the selected minimum tuple
+    		advance(winner);
+    		
+    		// Replay the matches on the path from the winner's leaf to the root
+    		for (int node = (winner + numRuns) / 2; node > 0; node /= 2) {
+    			if (beats(tree[node], winner, keys)) {
+    				int loser = winner;
+    				winner = tree[node];
+    				tree[node] = loser;
+    			}
+    		}
+    		tree[0] = winner;
+    		return tuple;
+    	}
+    	
+    	/**
+    	 * Closes the runs of the merge, and deletes them if asked to
+    	 **/
+    	void close(boolean delete) {
+    		if (readers == null) {
+    			return;
+    		}
+    		for (TupleReader reader : readers) {
+    			if (reader != null) {
+    				reader.close();
+    			}
+    		}
+    		if (delete) {
+    			deleteRuns(runs);
+    		}
+    		readers = null;
+    		heads = null;
+    		keys = null;
+    		tree = null;
+    	}
+    }
+    
+    /**
+     * A tuple being sorted with its sort key, tagged with the run it
+     * * belongs to in the replacement selection heap
+     **/
+    private static class RunTuple {
+    	final Tuple tuple;
+    	final byte[] key;
+    	final int run;
+    	
+    	RunTuple(Tuple tuple, byte[] key, int run) {
+    		this.tuple = tuple;
+    		this.key = key;
+    		this.run = run;
+    	}
     }
 }
-
-
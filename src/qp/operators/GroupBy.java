@@ -1,22 +1,87 @@
+/**
+ * Groups the tuples of the base operator and computes the aggregates of every group
+ **/
+
 package qp.operators;
 
 import qp.utils.Attribute;
 import qp.utils.Batch;
 import qp.utils.Schema;
 import qp.utils.Tuple;
+import qp.utils.TupleWriter;
 
-import java.io.ObjectInputStream;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Every output tuple is one group: the grouping attributes followed by the
+ * other attributes of the select list, i.e. the aggregates and any plain
+ * attribute, which takes its value from the first tuple of the group.
+ * Without grouping attributes the whole input is a single group.
+ *
+ * With the HASH strategy the groups are kept in a hash table of up to
+ * numBuff - 1 pages of output tuples, with the running aggregates in
+ * primitive accumulators. Tuples of groups that do not fit any more are
+ * written to a temporary file, which is grouped with the SORT strategy
+ * once the groups in memory have been returned. With the SORT strategy
+ * the input is sorted on the grouping attributes by ExternalSort and
+ * every group is computed in one pass over its tuples.
+ */
 public class GroupBy extends Operator {
+
+    /** Strategies for computing the groups **/
+    public static final int HASH = 0;   // hash table of the groups, spilling the tuples of groups that do not fit
+    public static final int SORT = 1;   // external sort on the grouping attributes
+
+    static final AtomicInteger filenum = new AtomicInteger();  // To get unique filenum for this operation
+
     Operator base;                              // the base operator
     private ArrayList<Attribute> groupbyList;   // Set of attributes to group by
+    private ArrayList<Attribute> outList;       // Attributes of the output tuples
+    private int strategy = HASH;                // Strategy for computing the groups
     private int batchsize;                      // Number of tuples per out batch
     private int numBuff;                        // Number of buffers available
     private boolean eos = false;                // records whether we have reached end of stream
 
-    private ArrayList<Integer> projectIndices = new ArrayList<>();  // Set of index of the attributes in the base operator that are to be projected
+    private int[] groupIndex;                   // Index of every grouping attribute in the base operator
+    private int[] outIndex;                     // Index of the base attribute of every output attribute
+    private int[] aggType;                      // Aggregate of every output attribute, NONE if plain
+    private int[] valueType;                    // Type of the base attribute of every output attribute
+
+    private HashMap<ArrayList<Object>, Group> groups;  // Groups computed in memory
+    private Iterator<Group> groupIter;          // Groups in memory still to be returned
+    private String spillFile;                   // Tuples of the groups that did not fit in memory
     private ExternalSort sortedBase;            // the sort operator being applied on the base operator
+    private Batch inbatch;                      // Current page of sorted tuples
+    private int incurs;                         // Cursor on inbatch
+
+    public GroupBy(Operator base, ArrayList<Attribute> groupbyList, int type) {
+        this(base, groupbyList, new ArrayList<>(), type);
+    }
+
+    /**
+     * The output attributes are the grouping attributes followed by the
+     * * attributes of the select list which are not grouping attributes.
+     * * An empty select list keeps all the attributes of the base operator
+     **/
+    public GroupBy(Operator base, ArrayList<Attribute> groupbyList, ArrayList<Attribute> projectList, int type) {
+        super(type);
+        this.base = base;
+        this.groupbyList = groupbyList;
+        if (projectList.isEmpty()) {
+            outList = new ArrayList<>(base.getSchema().getAttList());
+        } else {
+            outList = new ArrayList<>(groupbyList);
+            for (Attribute attr : projectList) {
+                if (!outList.contains(attr)) {
+                    outList.add(attr);
+                }
+            }
+        }
+    }
 
     public Operator getBase() {
         return base;
@@ -30,6 +95,10 @@ public class GroupBy extends Operator {
         return groupbyList;
     }
 
+    public ArrayList<Attribute> getOutList() {
+        return outList;
+    }
+
     public void setNumBuff(int num) {
         this.numBuff = num;
     }
@@ -38,28 +107,131 @@ public class GroupBy extends Operator {
         return this.numBuff;
     }
 
-    public GroupBy(Operator base, ArrayList<Attribute> groupbyList, int type) {
-        super(type);
-        this.base = base;
-        this.groupbyList = groupbyList;
+    public void setStrategy(int strategy) {
+        this.strategy = strategy;
+    }
+
+    public int getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Only the SORT strategy returns the groups sorted on the grouping attributes
+     **/
+    public boolean isSortedOn(ArrayList<Attribute> attrs) {
+        return attrs.isEmpty() || (strategy == SORT && isPrefixOf(attrs, groupbyList));
+    }
+
+    /**
+     * Number of groups held in memory by the HASH strategy
+     **/
+    public static long getGroupCapacity(Schema outSchema, int numBuff) {
+        long batchsize = Math.max(1, Batch.getPageSize() / outSchema.getTupleSize());
+        return Math.max(1, numBuff - 1) * batchsize;
     }
 
     /**
      * During open
-     * * Runs External Sort on base operator
+     * * Computes the groups in memory or runs External Sort on base operator
      **/
     public boolean open() {
         int tuplesize = schema.getTupleSize();
         batchsize = Batch.getPageSize() / tuplesize;
-        for (Object attribute : this.groupbyList) {
-            projectIndices.add(schema.indexOf( (Attribute) attribute));
+        eos = false;
+
+        Schema baseSchema = base.getSchema();
+        groupIndex = new int[groupbyList.size()];
+        for (int i = 0; i < groupbyList.size(); ++i) {
+            groupIndex[i] = baseSchema.indexOf(groupbyList.get(i));
+        }
+        outIndex = new int[outList.size()];
+        aggType = new int[outList.size()];
+        valueType = new int[outList.size()];
+        for (int i = 0; i < outList.size(); ++i) {
+            Attribute attr = outList.get(i);
+            outIndex[i] = baseSchema.indexOf(attr.getBaseAttribute());
+            aggType[i] = attr.getAggType();
+            valueType[i] = baseSchema.typeOf(outIndex[i]);
+            if (valueType[i] == Attribute.STRING
+                    && (aggType[i] == Attribute.SUM || aggType[i] == Attribute.AVG)) {
+                System.err.println("GroupBy: cannot compute " + attr + " of a string attribute");
+                System.exit(1);
+            }
+        }
+
+        if (strategy == SORT && groupbyList.size() > 0) {
+            return openSort(base);
+        }
+        if (!base.open()) {
+            return false;
+        }
+        if (!hashGroups()) {
+            return false;
+        }
+        base.close();
+        groupIter = groups.values().iterator();
+        return true;
+    }
+
+    /**
+     * Reads the base operator into the hash table of groups, writing the
+     * * tuples of new groups to the spill file once the table is full
+     **/
+    private boolean hashGroups() {
+        Schema baseSchema = base.getSchema();
+        int basebatchsize = Batch.getPageSize() / baseSchema.getTupleSize();
+        long capacity = getGroupCapacity(schema, numBuff);
+        groups = new HashMap<>();
+        TupleWriter spill = null;
+
+        Batch page;
+        while ((page = base.next()) != null) {
+            for (int i = 0; i < page.size(); ++i) {
+                Tuple tuple = page.get(i);
+                ArrayList<Object> key = keyOf(tuple);
+                Group group = groups.get(key);
+                if (group == null) {
+                    if (groups.size() >= capacity) {
+                        if (spill == null) {
+                            spillFile = "GBtemp-" + filenum.incrementAndGet();
+                            spill = new TupleWriter(spillFile, baseSchema, basebatchsize);
+                            if (!spill.open()) {
+                                System.out.println("GroupBy: Error writing to temporary file");
+                                return false;
+                            }
+                        }
+                        spill.next(tuple);
+                        continue;
+                    }
+                    group = new Group(tuple);
+                    groups.put(key, group);
+                }
+                group.add(tuple);
+            }
+        }
+        if (spill != null) {
+            spill.close();
+        }
+
+        /** Aggregates over an empty input still give one row **/
+        if (groupbyList.isEmpty() && groups.isEmpty()) {
+            groups.put(new ArrayList<>(), new Group(null));
         }
-        sortedBase = new ExternalSort(base, groupbyList, OpType.DISTINCT, numBuff);
-        sortedBase.setSchema(schema);
+        return true;
+    }
+
+    /**
+     * Sorts the input on the grouping attributes
+     **/
+    private boolean openSort(Operator input) {
+        sortedBase = new ExternalSort(input, groupbyList, OpType.EXTERNAL_SORT, numBuff);
+        sortedBase.setSchema(input.getSchema());
         if (!sortedBase.open()) {
             System.out.println("External sort failed to open");
             return false;
         }
+        inbatch = null;
+        incurs = 0;
         return true;
     }
 
@@ -67,44 +239,189 @@ public class GroupBy extends Operator {
      * Read next tuple from operator
      */
     public Batch next() {
-        Batch inBatch = null; // input batch
-        int inIndex = 0; // the index for the current element being read from input batch
-
         if (eos) {
-            close();
             return null;
-        } else if (inBatch == null) {
-            inBatch = sortedBase.next();
         }
-
-        Batch outBatch = new Batch(batchsize);
-
-        while (!outBatch.isFull()) {
-
-            // if finished scanning
-            if (inBatch == null || inBatch.size() <= inIndex) {
+        Batch outbatch = new Batch(batchsize);
+        while (!outbatch.isFull()) {
+            Tuple group = nextGroup();
+            if (group == null) {
                 eos = true;
                 break;
             }
+            outbatch.add(group);
+        }
+        if (outbatch.isEmpty()) {
+            return null;
+        }
+        return outbatch;
+    }
 
-            Tuple current = inBatch.get(inIndex);
-            if (current != null)
-                outBatch.add(current);
-            inIndex++;
+    /**
+     * Returns the output tuple of the next group, or null if there is none
+     **/
+    private Tuple nextGroup() {
+        if (groupIter != null) {
+            if (groupIter.hasNext()) {
+                return groupIter.next().result();
+            }
+            groupIter = null;
+            groups = null;
+            if (spillFile != null) {
+                Scan spilled = new Scan(spillFile, spillFile, OpType.SCAN);
+                spilled.setSchema(base.getSchema());
+                if (!openSort(spilled)) {
+                    System.exit(1);
+                }
+            }
+        }
+        if (sortedBase == null) {
+            return null;
+        }
 
-            if (inIndex == batchsize) {
-                inBatch = sortedBase.next();
-                inIndex = 0;
+        /** The tuples of a group are consecutive in the sorted input **/
+        Group group = null;
+        while (true) {
+            if (inbatch == null || incurs >= inbatch.size()) {
+                inbatch = sortedBase.next();
+                incurs = 0;
+                if (inbatch == null) {
+                    break;
+                }
+                continue;
             }
+            Tuple tuple = inbatch.get(incurs);
+            if (group == null) {
+                group = new Group(tuple);
+            } else if (!sameGroup(group.first, tuple)) {
+                break;
+            }
+            group.add(tuple);
+            incurs++;
         }
-        return outBatch;
+        return (group == null) ? null : group.result();
     }
 
     /**
      * Close the operator
      */
     public boolean close() {
-        return sortedBase.close();
+        groups = null;
+        groupIter = null;
+        inbatch = null;
+        if (sortedBase != null) {
+            sortedBase.close();
+            sortedBase = null;
+        }
+        if (spillFile != null) {
+            new File(spillFile).delete();
+            spillFile = null;
+        }
+        return true;
+    }
+
+    private ArrayList<Object> keyOf(Tuple tuple) {
+        ArrayList<Object> key = new ArrayList<>(groupIndex.length);
+        for (int index : groupIndex) {
+            key.add(tuple.dataAt(index));
+        }
+        return key;
+    }
+
+    private boolean sameGroup(Tuple tuple1, Tuple tuple2) {
+        for (int index : groupIndex) {
+            Object value1 = tuple1.dataAt(index);
+            Object value2 = tuple2.dataAt(index);
+            if (value1 == null ? value2 != null : !value1.equals(value2)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Running aggregates of one group, in primitive arrays indexed by
+     * * output attribute. Null values are not counted
+     **/
+    private class Group {
+        final Tuple first;          // First tuple of the group, null for an empty input
+        final long[] counts;        // Number of values seen
+        final long[] longs;         // Sum, min or max of an integer attribute
+        final double[] doubles;     // Sum, min or max of a real attribute
+        final String[] strings;     // Min or max of a string attribute
+
+        Group(Tuple first) {
+            this.first = first;
+            counts = new long[outIndex.length];
+            longs = new long[outIndex.length];
+            doubles = new double[outIndex.length];
+            strings = new String[outIndex.length];
+        }
+
+        void add(Tuple tuple) {
+            for (int i = 0; i < outIndex.length; ++i) {
+                int agg = aggType[i];
+                if (agg == Attribute.NONE) {
+                    continue;
+                }
+                Object value = tuple.dataAt(outIndex[i]);
+                if (value == null) {
+                    continue;
+                }
+                boolean firstValue = (counts[i]++ == 0);
+                if (agg == Attribute.COUNT) {
+                    continue;
+                }
+                switch (valueType[i]) {
+                    case Attribute.INT:
+                        long l = (Integer) value;
+                        if (agg == Attribute.SUM || agg == Attribute.AVG) {
+                            longs[i] += l;
+                        } else if (firstValue || (agg == Attribute.MAX ? l > longs[i] : l < longs[i])) {
+                            longs[i] = l;
+                        }
+                        break;
+                    case Attribute.REAL:
+                        double d = (Float) value;
+                        if (agg == Attribute.SUM || agg == Attribute.AVG) {
+                            doubles[i] += d;
+                        } else if (firstValue || (agg == Attribute.MAX ? d > doubles[i] : d < doubles[i])) {
+                            doubles[i] = d;
+                        }
+                        break;
+                    default:
+                        String s = (String) value;
+                        int cmp = firstValue ? 0 : s.compareTo(strings[i]);
+                        if (firstValue || (agg == Attribute.MAX ? cmp > 0 : cmp < 0)) {
+                            strings[i] = s;
+                        }
+                }
+            }
+        }
+
+        Tuple result() {
+            Object[] data = new Object[outIndex.length];
+            for (int i = 0; i < outIndex.length; ++i) {
+                int agg = aggType[i];
+                if (agg == Attribute.NONE) {
+                    data[i] = (first == null) ? null : first.dataAt(outIndex[i]);
+                } else if (agg == Attribute.COUNT) {
+                    data[i] = (int) counts[i];
+                } else if (counts[i] == 0) {
+                    data[i] = null;
+                } else if (agg == Attribute.AVG) {
+                    double sum = (valueType[i] == Attribute.INT) ? (double) longs[i] : doubles[i];
+                    data[i] = (float) (sum / counts[i]);
+                } else if (valueType[i] == Attribute.INT) {
+                    data[i] = (int) longs[i];
+                } else if (valueType[i] == Attribute.REAL) {
+                    data[i] = (float) doubles[i];
+                } else {
+                    data[i] = strings[i];
+                }
+            }
+            return new Tuple(data);
+        }
     }
 
     public Object clone() {
@@ -112,10 +429,16 @@ public class GroupBy extends Operator {
         ArrayList<Attribute> newattr = new ArrayList<>();
         for (int i = 0; i < groupbyList.size(); ++i)
             newattr.add((Attribute) groupbyList.get(i).clone());
+        ArrayList<Attribute> newout = new ArrayList<>();
+        for (int i = 0; i < outList.size(); ++i)
+            newout.add((Attribute) outList.get(i).clone());
         GroupBy newGroupBy = new GroupBy(newbase, newattr, optype);
-        Schema newSchema = newbase.getSchema().subSchema(newattr);
+        /** The output attributes are kept in their order, which may not have the grouping attributes first **/
+        newGroupBy.outList = newout;
+        Schema newSchema = newbase.getSchema().subSchema(newout);
         newGroupBy.setSchema(newSchema);
         newGroupBy.setNumBuff(numBuff);
+        newGroupBy.setStrategy(strategy);
         return newGroupBy;
     }
 }
@@ -0,0 +1,520 @@
+/**
+ * Hash join algorithm
+ **/
+
+package qp.operators;
+
+import qp.utils.Attribute;
+import qp.utils.Batch;
+import qp.utils.Condition;
+import qp.utils.Schema;
+import qp.utils.Tuple;
+import qp.utils.TupleReader;
+import qp.utils.TupleWriter;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The right input is the build side and the left input is the probe side.
+ * If the build side fits in numBuff - 2 pages, it is kept in an in-memory
+ * hash table and the left input is streamed against it. Otherwise both
+ * inputs are hash partitioned into numBuff - 1 partitions on disk (Grace
+ * hash join), and each pair of partitions is joined in memory.
+ *
+ * A right partition of more than numBuff - 2 pages of tuples is partitioned
+ * again, together with its left partition, with the hash function of the
+ * next level. If it does not split (its tuples share a join value) or
+ * after MAX_LEVEL levels, it is read into the hash table numBuff - 2 pages
+ * at a time and the left partition is probed once per block, as in a
+ * block nested loop join.
+ */
+public class HashJoin extends Join {
+
+    static final AtomicInteger filenum = new AtomicInteger();  // To get unique filenum for this operation
+    static final int MAX_LEVEL = 3;  // Levels of partitioning before a partition is joined block by block
+    int batchsize;                  // Number of tuples per out batch
+    int leftbatchsize;              // Number of tuples per page of the left input
+    int rightbatchsize;             // Number of tuples per page of the right input
+    ArrayList<Integer> leftindex;   // Indices of the join attributes in left table
+    ArrayList<Integer> rightindex;  // Indices of the join attributes in right table
+    Batch outbatch;                 // Buffer page for output
+
+    /** Hash table on the join attributes of the build (right) side **/
+    HashMap<ArrayList<Object>, ArrayList<Tuple>> hashtable;
+
+    int capacity;                   // Number of build tuples the hash table holds
+    int numPartitions;              // Number of partitions, 0 if the build side is held in memory
+    ArrayDeque<Partition> pending;  // Pairs of partitions not joined yet
+    Partition current;              // Pair of partitions currently being joined
+    TupleReader buildReader;        // Reader of the right partition, until all its blocks are loaded
+    TupleReader probeReader;        // Reader of the left partition currently being probed
+
+    Batch leftbatch;                // Buffer page for left input stream (in-memory case)
+    int lcurs;                      // Cursor for left side buffer
+    Tuple probetuple;               // Left tuple currently being matched
+    ArrayList<Tuple> matches;       // Build tuples matching probetuple
+    int mcurs;                      // Cursor in matches
+    boolean eos;                    // Whether end of the probe input is reached
+
+    public HashJoin(Join jn) {
+        super(jn.getLeft(), jn.getRight(), jn.getConditionList(), jn.getOpType());
+        schema = jn.getSchema();
+        jointype = jn.getJoinType();
+        numBuff = jn.getNumBuff();
+    }
+
+    /**
+     * During open finds the index of the join attributes
+     * * Builds the hash table on the right input, partitioning
+     * * both inputs to disk if the right input does not fit in memory
+     **/
+    public boolean open() {
+        /** select number of tuples per batch **/
+        batchsize = Batch.getPageSize() / schema.getTupleSize();
+        leftbatchsize = Math.max(1, Batch.getPageSize() / left.getSchema().getTupleSize());
+        rightbatchsize = Math.max(1, Batch.getPageSize() / right.getSchema().getTupleSize());
+
+        /** find indices attributes of join conditions **/
+        leftindex = new ArrayList<>();
+        rightindex = new ArrayList<>();
+        for (Condition con : conditionList) {
+            Attribute leftattr = con.getLhs();
+            Attribute rightattr = (Attribute) con.getRhs();
+            leftindex.add(left.getSchema().indexOf(leftattr));
+            rightindex.add(right.getSchema().indexOf(rightattr));
+        }
+
+        if (numBuff < 3) {
+            System.out.println("Minimum 3 buffers are required per join operator ");
+            System.exit(1);
+        }
+
+        eos = false;
+        lcurs = 0;
+        leftbatch = null;
+        probetuple = null;
+        matches = null;
+        mcurs = 0;
+
+        /** Read the build side until it is exhausted or overflows
+         ** the memory left after one input and one output buffer
+         **/
+        if (!right.open()) {
+            return false;
+        }
+        capacity = (numBuff - 2) * rightbatchsize;
+        ArrayList<Tuple> buildtuples = new ArrayList<>();
+        Batch rightpage = right.next();
+        while (rightpage != null && buildtuples.size() <= capacity) {
+            for (int i = 0; i < rightpage.size(); ++i) {
+                buildtuples.add(rightpage.get(i));
+            }
+            rightpage = right.next();
+        }
+
+        if (rightpage == null && buildtuples.size() <= capacity) {
+            /** In-memory hash join **/
+            numPartitions = 0;
+            hashtable = new HashMap<>();
+            for (Tuple tuple : buildtuples) {
+                insert(tuple);
+            }
+            if (!right.close()) {
+                return false;
+            }
+            return left.open();
+        }
+
+        /** Grace hash join: partition the build side, then the probe side **/
+        numPartitions = numBuff - 1;
+        Partition[] parts = newPartitions(0);
+        pending = new ArrayDeque<>();
+        current = null;
+        TupleWriter[] writers = flushBuildTuples(buildtuples, parts);
+        buildtuples = null;
+        if (writers == null) {
+            return false;
+        }
+        while (rightpage != null) {
+            for (int i = 0; i < rightpage.size(); ++i) {
+                Tuple tuple = rightpage.get(i);
+                int p = partitionOf(tuple, rightindex, 0);
+                writers[p].next(tuple);
+                parts[p].numRight++;
+            }
+            rightpage = right.next();
+        }
+        for (TupleWriter writer : writers) {
+            writer.close();
+        }
+        if (!right.close()) {
+            return false;
+        }
+
+        if (!left.open()) {
+            return false;
+        }
+        writers = openWriters(parts, left.getSchema(), leftbatchsize, true);
+        if (writers == null) {
+            return false;
+        }
+        Batch leftpage;
+        while ((leftpage = left.next()) != null) {
+            for (int i = 0; i < leftpage.size(); ++i) {
+                Tuple tuple = leftpage.get(i);
+                writers[partitionOf(tuple, leftindex, 0)].next(tuple);
+            }
+        }
+        for (TupleWriter writer : writers) {
+            writer.close();
+        }
+        if (!left.close()) {
+            return false;
+        }
+
+        for (Partition part : parts) {
+            pending.add(part);
+        }
+        return true;
+    }
+
+    /**
+     * from input buffers selects the tuples satisfying join condition
+     * * And returns a page of output tuples
+     **/
+    public Batch next() {
+        if (eos) {
+            return null;
+        }
+        outbatch = new Batch(batchsize);
+        while (!outbatch.isFull()) {
+            if (matches != null && mcurs < matches.size()) {
+                outbatch.add(probetuple.joinWith(matches.get(mcurs)));
+                mcurs++;
+                continue;
+            }
+            probetuple = nextProbeTuple();
+            if (probetuple == null) {
+                eos = true;
+                break;
+            }
+            matches = hashtable.get(keyOf(probetuple, leftindex));
+            mcurs = 0;
+        }
+        if (outbatch.isEmpty()) {
+            return null;
+        }
+        return outbatch;
+    }
+
+    /**
+     * Close the operator
+     */
+    public boolean close() {
+        /** The in-memory join streams the left input until the end **/
+        if (hashtable != null && numPartitions == 0) {
+            left.close();
+        }
+        hashtable = null;
+        if (probeReader != null) {
+            probeReader.close();
+            probeReader = null;
+        }
+        if (buildReader != null) {
+            buildReader.close();
+            buildReader = null;
+        }
+        if (numPartitions > 0) {
+            if (current != null) {
+                current.delete();
+                current = null;
+            }
+            for (Partition part : pending) {
+                part.delete();
+            }
+            pending = null;
+            numPartitions = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next tuple of the probe input, or null if there is none.
+     * * In the partitioned case, moves on to the next block of the right
+     * * partition, or to the next pair of partitions, when the current
+     * * left partition is exhausted
+     **/
+    private Tuple nextProbeTuple() {
+        if (numPartitions == 0) {
+            while (leftbatch == null || lcurs >= leftbatch.size()) {
+                leftbatch = left.next();
+                lcurs = 0;
+                if (leftbatch == null) {
+                    return null;
+                }
+            }
+            return leftbatch.get(lcurs++);
+        }
+
+        while (true) {
+            if (probeReader != null) {
+                Tuple tuple = probeReader.next();
+                if (tuple != null) {
+                    return tuple;
+                }
+                probeReader.close();
+                probeReader = null;
+            }
+            if (buildReader == null) {
+                if (current != null) {
+                    current.delete();
+                }
+                current = pending.poll();
+                if (current == null) {
+                    hashtable = null;
+                    return null;
+                }
+                if (current.numRight > capacity && current.level < MAX_LEVEL) {
+                    if (!repartition(current)) {
+                        System.out.println("HashJoin: Error in repartitioning " + current.rightfile);
+                        System.exit(1);
+                    }
+                    current = null;
+                    continue;
+                }
+                buildReader = new TupleReader(current.rightfile, right.getSchema(), rightbatchsize);
+                if (!buildReader.open()) {
+                    System.out.println("HashJoin: Error in reading partition " + current.rightfile);
+                    System.exit(1);
+                }
+            }
+            if (!loadBlock()) {
+                System.out.println("HashJoin: Error in reading partition " + current.leftfile);
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Builds the hash table from the next numBuff - 2 pages of the right
+     * * partition and opens the matching left partition for probing.
+     * * The block ends at the end of a page, so that the reader of the
+     * * right partition holds no page while the left one is probed
+     **/
+    private boolean loadBlock() {
+        hashtable = new HashMap<>();
+        int firstpage = buildReader.getNumBatch();
+        boolean loaded = false;
+        Tuple tuple;
+        while (true) {
+            tuple = buildReader.next();
+            if (tuple == null) {
+                buildReader.close();
+                buildReader = null;
+                break;
+            }
+            insert(tuple);
+            loaded = true;
+            if (buildReader.isPageEnd() && buildReader.getNumBatch() - firstpage >= numBuff - 2) {
+                break;
+            }
+        }
+        if (!loaded) {
+            return true;
+        }
+        probeReader = new TupleReader(current.leftfile, left.getSchema(), leftbatchsize);
+        return probeReader.open();
+    }
+
+    /**
+     * Partitions both files of the pair with the hash function of the next
+     * * level and queues the pairs of partitions it is split into
+     **/
+    private boolean repartition(Partition part) {
+        int level = part.level + 1;
+        Partition[] parts = newPartitions(level);
+        if (!split(part.rightfile, right.getSchema(), rightbatchsize, rightindex, parts, level, false)
+                || !split(part.leftfile, left.getSchema(), leftbatchsize, leftindex, parts, level, true)) {
+            for (Partition sub : parts) {
+                sub.delete();
+            }
+            return false;
+        }
+        part.delete();
+        for (Partition sub : parts) {
+            /** All the tuples went to one partition: they share a join value,
+             ** and partitioning them again would not split them either
+             **/
+            if (sub.numRight == part.numRight) {
+                sub.level = MAX_LEVEL;
+            }
+            pending.add(sub);
+        }
+        return true;
+    }
+
+    /**
+     * Writes the tuples of the file to the left or right files of the partitions
+     **/
+    private boolean split(String filename, Schema schema, int pagesize, ArrayList<Integer> indices,
+                          Partition[] parts, int level, boolean isLeft) {
+        TupleWriter[] writers = openWriters(parts, schema, pagesize, isLeft);
+        if (writers == null) {
+            return false;
+        }
+        TupleReader reader = new TupleReader(filename, schema, pagesize);
+        if (!reader.open()) {
+            for (TupleWriter writer : writers) {
+                writer.close();
+            }
+            return false;
+        }
+        Tuple tuple;
+        while ((tuple = reader.next()) != null) {
+            int p = partitionOf(tuple, indices, level);
+            writers[p].next(tuple);
+            if (!isLeft) {
+                parts[p].numRight++;
+            }
+        }
+        reader.close();
+        for (TupleWriter writer : writers) {
+            writer.close();
+        }
+        return true;
+    }
+
+    /**
+     * Opens the writers of the right files of the partitions and writes the
+     * * build tuples read so far to them. The tuples are grouped by partition
+     * * first, and every group is written and dropped as soon as its writer
+     * * is open, so that the pages of the writers take the place of those of
+     * * the tuples instead of being added to them. Returns null if one of the
+     * * writers cannot be opened
+     **/
+    private TupleWriter[] flushBuildTuples(ArrayList<Tuple> buildtuples, Partition[] parts) {
+        ArrayList<ArrayList<Tuple>> groups = new ArrayList<>(parts.length);
+        for (int p = 0; p < parts.length; ++p) {
+            groups.add(new ArrayList<>());
+        }
+        for (Tuple tuple : buildtuples) {
+            groups.get(partitionOf(tuple, rightindex, 0)).add(tuple);
+        }
+        buildtuples.clear();
+
+        TupleWriter[] writers = new TupleWriter[parts.length];
+        for (int p = 0; p < parts.length; ++p) {
+            writers[p] = new TupleWriter(parts[p].rightfile, right.getSchema(), rightbatchsize);
+            if (!writers[p].open()) {
+                for (int q = 0; q < p; ++q) {
+                    writers[q].close();
+                }
+                return null;
+            }
+            for (Tuple tuple : groups.get(p)) {
+                writers[p].next(tuple);
+            }
+            parts[p].numRight = groups.get(p).size();
+            groups.set(p, null);
+        }
+        return writers;
+    }
+
+    /**
+     * Names the files of the numPartitions partitions of a partitioning pass
+     **/
+    private Partition[] newPartitions(int level) {
+        String prefix = "HJtemp-" + filenum.incrementAndGet();
+        Partition[] parts = new Partition[numPartitions];
+        for (int p = 0; p < numPartitions; ++p) {
+            parts[p] = new Partition(prefix + "-L" + p, prefix + "-R" + p, level);
+        }
+        return parts;
+    }
+
+    /**
+     * Opens a writer on the left or right file of every partition,
+     * * or returns null if one of them cannot be opened
+     **/
+    private TupleWriter[] openWriters(Partition[] parts, Schema schema, int pagesize, boolean isLeft) {
+        TupleWriter[] writers = new TupleWriter[parts.length];
+        for (int p = 0; p < parts.length; ++p) {
+            writers[p] = new TupleWriter(isLeft ? parts[p].leftfile : parts[p].rightfile, schema, pagesize);
+            if (!writers[p].open()) {
+                for (int q = 0; q < p; ++q) {
+                    writers[q].close();
+                }
+                return null;
+            }
+        }
+        return writers;
+    }
+
+    private void insert(Tuple tuple) {
+        ArrayList<Object> key = keyOf(tuple, rightindex);
+        ArrayList<Tuple> bucket = hashtable.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<>();
+            hashtable.put(key, bucket);
+        }
+        bucket.add(tuple);
+    }
+
+    private static ArrayList<Object> keyOf(Tuple tuple, ArrayList<Integer> indices) {
+        ArrayList<Object> key = new ArrayList<>(indices.size());
+        for (int index : indices) {
+            key.add(tuple.dataAt(index));
+        }
+        return key;
+    }
+
+    /**
+     * Partitioning uses the high bits of a scrambled hash code, so that the
+     * * in-memory hash table built on one partition does not see keys that all
+     * * share the same low bits. Every further level mixes the hash code again
+     * * with a seed of its own, so that the tuples of one partition are spread
+     * * over the partitions of the next level
+     **/
+    private int partitionOf(Tuple tuple, ArrayList<Integer> indices, int level) {
+        int h = keyOf(tuple, indices).hashCode() * 0x9E3779B9;
+        if (level > 0) {
+            h ^= level * 0x85EBCA6B;
+            h ^= h >>> 16;
+            h *= 0x7FEB352D;
+            h ^= h >>> 15;
+            h *= 0x846CA68B;
+            h ^= h >>> 16;
+        }
+        return (h >>> 16) % numPartitions;
+    }
+
+    public Object clone() {
+        return new HashJoin((Join) super.clone());
+    }
+
+    /**
+     * A left partition and the matching right partition, written at the
+     * * given level of partitioning
+     **/
+    static class Partition {
+        final String leftfile;
+        final String rightfile;
+        int level;
+        int numRight;  // Number of tuples in the right partition
+
+        Partition(String leftfile, String rightfile, int level) {
+            this.leftfile = leftfile;
+            this.rightfile = rightfile;
+            this.level = level;
+        }
+
+        void delete() {
+            new File(leftfile).delete();
+            new File(rightfile).delete();
+        }
+    }
+}
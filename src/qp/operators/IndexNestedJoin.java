@@ -0,0 +1,208 @@
+/**
+ * Index Nested Loop Join algorithm
+ **/
+
+package qp.operators;
+
+import qp.utils.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * The right input is a base table, read through a Scan or an IndexScan,
+ * possibly under a Select, with an index on the right attribute of the
+ * first join condition. The right input is never run: for every left
+ * tuple the index is searched for its join value, and the matching tuples
+ * are fetched from the table by record id. The fetched tuples are checked
+ * against the selection conditions of the right input and the other join
+ * conditions. The output is in the order of the left input.
+ */
+public class IndexNestedJoin extends Join {
+
+    int batchsize;                  // Number of tuples per out batch
+    ArrayList<Integer> leftindex;   // Indices of the join attributes in left table
+    ArrayList<Integer> rightindex;  // Indices of the join attributes in right table
+    Batch leftbatch;                // Buffer page for left input stream
+    int lcurs;                      // Cursor for left side buffer
+    boolean eosl;                   // Whether end of stream (left table) is reached
+
+    String tabname;                 // The right table
+    Predicate filter;               // Selection conditions of the right input, null if none
+    BPlusTree index;                // Index on the right join attribute
+    BPlusTree.Cursor cursor;        // Entry of the index for the current left tuple, null if none
+    byte[] probe;                   // Key of the current left tuple
+    PageFile table;                 // The open right table file
+    PageFormat format;              // Binary layout of the tuples of the right table
+    int curPage;                    // Table page of the tuples in curTuples
+    Tuple[] curTuples;              // Tuples of the last table page read
+
+    public IndexNestedJoin(Join jn) {
+        super(jn.getLeft(), jn.getRight(), jn.getConditionList(), jn.getOpType());
+        schema = jn.getSchema();
+        jointype = jn.getJoinType();
+        numBuff = jn.getNumBuff();
+    }
+
+    /**
+     * Table read by a plan that only scans a base table and selects its
+     * * tuples, or null for any other plan
+     **/
+    public static String baseTableOf(Operator op) {
+        if (op.getOpType() == OpType.SCAN) {
+            Scan scan = (Scan) op;
+            return scan.getFileName().equals(scan.getTabName() + ".tbl") ? scan.getTabName() : null;
+        } else if (op.getOpType() == OpType.INDEXSCAN) {
+            return ((IndexScan) op).getTabName();
+        } else if (op.getOpType() == OpType.SELECT) {
+            return baseTableOf(((Select) op).getBase());
+        }
+        return null;
+    }
+
+    /**
+     * Selection conditions applied by a plan on a base table
+     **/
+    static ArrayList<Condition> selectionsOf(Operator op) {
+        ArrayList<Condition> conditions = new ArrayList<>();
+        while (op.getOpType() == OpType.SELECT) {
+            conditions.addAll(((Select) op).getConditionList());
+            op = ((Select) op).getBase();
+        }
+        if (op.getOpType() == OpType.INDEXSCAN) {
+            conditions.addAll(((IndexScan) op).getConditionList());
+        }
+        return conditions;
+    }
+
+    /**
+     * The index probed by an index nested join of the right input on the
+     * * condition, opened, or null if the right input is not a base table
+     * * or if there is no index on its join attribute
+     **/
+    public static BPlusTree indexFor(Operator right, Condition con) {
+        String table = baseTableOf(right);
+        if (table == null || right.getSchema().indexOf((Attribute) con.getRhs()) < 0) {
+            return null;
+        }
+        return BPlusTree.forTable(table, ((Attribute) con.getRhs()).getColName());
+    }
+
+    public boolean open() {
+        /** select number of tuples per batch **/
+        int tuplesize = schema.getTupleSize();
+        batchsize = Batch.getPageSize() / tuplesize;
+
+        /** find indices attributes of join conditions **/
+        leftindex = new ArrayList<>();
+        rightindex = new ArrayList<>();
+        for (Condition con : conditionList) {
+            Attribute leftattr = con.getLhs();
+            Attribute rightattr = (Attribute) con.getRhs();
+            leftindex.add(left.getSchema().indexOf(leftattr));
+            rightindex.add(right.getSchema().indexOf(rightattr));
+        }
+
+        tabname = baseTableOf(right);
+        index = indexFor(right, conditionList.get(0));
+        if (index == null) {
+            System.err.println("IndexNestedJoin: No index on the right join attribute");
+            return false;
+        }
+        table = new PageFile(tabname + ".tbl");
+        if (!table.open()) {
+            System.err.println("IndexNestedJoin: Error reading " + tabname + ".tbl");
+            return false;
+        }
+        format = new PageFormat(right.getSchema());
+        ArrayList<Condition> selections = selectionsOf(right);
+        filter = selections.isEmpty() ? null : Predicate.compile(selections, right.getSchema());
+        curPage = -1;
+        curTuples = null;
+
+        leftbatch = null;
+        lcurs = 0;
+        eosl = false;
+        cursor = null;
+        return left.open();
+    }
+
+    /**
+     * Returns a page of the joined tuples, probing the index with the left
+     * * tuples in turn and resuming from the current entry of the index
+     **/
+    public Batch next() {
+        if (eosl) {
+            return null;
+        }
+        Batch outbatch = new Batch(batchsize);
+        while (!outbatch.isFull()) {
+            if (cursor == null) {
+                /** The next left tuple, from a new left page if needed **/
+                if (leftbatch == null || lcurs >= leftbatch.size()) {
+                    leftbatch = left.next();
+                    lcurs = 0;
+                    if (leftbatch == null) {
+                        eosl = true;
+                        break;
+                    }
+                    continue;
+                }
+                probe = BPlusTree.keyOf(leftbatch.get(lcurs).dataAt(leftindex.get(0)));
+                if (probe == null) {
+                    lcurs++;
+                    continue;
+                }
+                cursor = index.seek(probe);
+            }
+            if (!cursor.isValid() || SortKey.compare(cursor.getKey(), probe) != 0) {
+                /** No more entries of the join value **/
+                cursor = null;
+                lcurs++;
+                continue;
+            }
+            Tuple lefttuple = leftbatch.get(lcurs);
+            Tuple righttuple = fetch(cursor.getPage(), cursor.getSlot());
+            cursor.next();
+            if ((filter == null || filter.test(righttuple)) && lefttuple.checkJoin(righttuple, leftindex, rightindex)) {
+                outbatch.add(lefttuple.joinWith(righttuple));
+            }
+        }
+        if (outbatch.isEmpty()) {
+            return null;
+        }
+        return outbatch;
+    }
+
+    /**
+     * Reads the tuple of the record id, the last table page read is kept
+     * * as the following entries often point to the same page
+     **/
+    private Tuple fetch(int page, int slot) {
+        if (page != curPage) {
+            byte[] data = BufferPool.pin(table, page);
+            curTuples = format.decodePage(ByteBuffer.wrap(data));
+            BufferPool.unpin(table, page);
+            curPage = page;
+        }
+        return curTuples[slot];
+    }
+
+    public boolean close() {
+        cursor = null;
+        curTuples = null;
+        if (index != null) {
+            index.close();
+            index = null;
+        }
+        if (table != null) {
+            table.close();
+            table = null;
+        }
+        return left.close();
+    }
+
+    public Object clone() {
+        return new IndexNestedJoin((Join) super.clone());
+    }
+}
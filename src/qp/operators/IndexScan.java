@@ -0,0 +1,205 @@
+/**
+ * Scans the tuples of a base table through a B+-tree index
+ **/
+
+package qp.operators;
+
+import qp.utils.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * The conditions of an index scan compare the indexed attribute with a
+ * constant, other than with !=. They are turned into a range of keys, the
+ * index is searched for the first key of the range, and the tuples of the
+ * entries up to the end of the range are fetched from the table by their
+ * record ids. The tuples returned satisfy all the conditions, so the other
+ * selection conditions on the table are left to a Select above, and come
+ * in the order of the indexed attribute.
+ */
+public class IndexScan extends Operator {
+
+    String tabname;                     // Table name
+    String filename;                    // Table file
+    Attribute attr;                     // Indexed attribute
+    ArrayList<Condition> conditions;    // Conditions on the indexed attribute
+    int batchsize;                      // Number of tuples per out batch
+
+    /**
+     * The following fields are required during execution
+     **/
+    BPlusTree index;                    // The open index
+    BPlusTree.Cursor cursor;            // Current entry of the index
+    byte[] high;                        // Last key of the range, null if unbounded
+    boolean highInclusive;              // Whether the last key of the range is in it
+    boolean eos;                        // Whether the end of the range is reached
+    PageFile table;                     // The open table file
+    PageFormat format;                  // Binary layout of the tuples of the table
+    int curPage;                        // Table page of the tuples in curTuples
+    Tuple[] curTuples;                  // Tuples of the last table page read
+
+    public IndexScan(String tabname, Attribute attr, ArrayList<Condition> conditions, int type) {
+        super(type);
+        this.tabname = tabname;
+        this.filename = tabname + ".tbl";
+        this.attr = attr;
+        this.conditions = conditions;
+    }
+
+    public String getTabName() {
+        return tabname;
+    }
+
+    public Attribute getAttribute() {
+        return attr;
+    }
+
+    public ArrayList<Condition> getConditionList() {
+        return conditions;
+    }
+
+    /**
+     * Whether the condition can be answered by an index scan
+     **/
+    public static boolean isIndexable(Condition con) {
+        return con.getOpType() == Condition.SELECT && con.getRhs() instanceof String
+                && con.getExprType() != Condition.NOTEQUAL;
+    }
+
+    /**
+     * The entries of the index are in the order of the indexed attribute
+     **/
+    public boolean isSortedOn(ArrayList<Attribute> attrs) {
+        ArrayList<Attribute> order = new ArrayList<>();
+        order.add(attr);
+        return isPrefixOf(attrs, order);
+    }
+
+    public boolean open() {
+        /** num of tuples per batch**/
+        int tuplesize = schema.getTupleSize();
+        batchsize = Batch.getPageSize() / tuplesize;
+
+        index = BPlusTree.forTable(tabname, attr.getColName());
+        if (index == null) {
+            System.err.println("IndexScan: No index on " + tabname + "." + attr.getColName());
+            return false;
+        }
+        table = new PageFile(filename);
+        if (!table.open()) {
+            System.err.println(" Error reading " + filename);
+            return false;
+        }
+        format = new PageFormat(schema);
+        curPage = -1;
+        curTuples = null;
+
+        /** The range of keys is the intersection of the ranges of the conditions **/
+        byte[] low = null;
+        boolean lowInclusive = true;
+        high = null;
+        highInclusive = true;
+        eos = false;
+        int type = schema.typeOf(attr);
+        for (Condition con : conditions) {
+            byte[] key = BPlusTree.keyOf(Predicate.constantOf((String) con.getRhs(), type));
+            if (key == null) {
+                /** A NaN constant, which no value satisfies **/
+                eos = true;
+                continue;
+            }
+            int exprtype = con.getExprType();
+            boolean inclusive = exprtype == Condition.EQUAL || exprtype == Condition.GTOE || exprtype == Condition.LTOE;
+            if (exprtype == Condition.EQUAL || exprtype == Condition.GREATERTHAN || exprtype == Condition.GTOE) {
+                int cmp = (low == null) ? 1 : SortKey.compare(key, low);
+                if (cmp > 0 || (cmp == 0 && !inclusive)) {
+                    low = key;
+                    lowInclusive = inclusive;
+                }
+            }
+            if (exprtype == Condition.EQUAL || exprtype == Condition.LESSTHAN || exprtype == Condition.LTOE) {
+                int cmp = (high == null) ? -1 : SortKey.compare(key, high);
+                if (cmp < 0 || (cmp == 0 && !inclusive)) {
+                    high = key;
+                    highInclusive = inclusive;
+                }
+            }
+        }
+
+        cursor = index.seek(low);
+        while (low != null && !lowInclusive && cursor.isValid() && SortKey.compare(cursor.getKey(), low) == 0) {
+            cursor.next();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the tuples of the next entries of the range
+     **/
+    public Batch next() {
+        if (eos) {
+            close();
+            return null;
+        }
+        Batch outbatch = new Batch(batchsize);
+        while (!outbatch.isFull()) {
+            if (!cursor.isValid()) {
+                eos = true;
+                break;
+            }
+            if (high != null) {
+                int cmp = SortKey.compare(cursor.getKey(), high);
+                if (cmp > 0 || (cmp == 0 && !highInclusive)) {
+                    eos = true;
+                    break;
+                }
+            }
+            outbatch.add(fetch(cursor.getPage(), cursor.getSlot()));
+            cursor.next();
+        }
+        if (outbatch.isEmpty()) {
+            close();
+            return null;
+        }
+        return outbatch;
+    }
+
+    /**
+     * Reads the tuple of the record id, the last table page read is kept
+     * * as the following entries often point to the same page
+     **/
+    private Tuple fetch(int page, int slot) {
+        if (page != curPage) {
+            byte[] data = BufferPool.pin(table, page);
+            curTuples = format.decodePage(ByteBuffer.wrap(data));
+            BufferPool.unpin(table, page);
+            curPage = page;
+        }
+        return curTuples[slot];
+    }
+
+    public boolean close() {
+        cursor = null;
+        curTuples = null;
+        if (index != null) {
+            index.close();
+            index = null;
+        }
+        if (table != null) {
+            table.close();
+            table = null;
+        }
+        return true;
+    }
+
+    public Object clone() {
+        ArrayList<Condition> newcons = new ArrayList<>();
+        for (Condition con : conditions) {
+            newcons.add((Condition) con.clone());
+        }
+        IndexScan newscan = new IndexScan(tabname, (Attribute) attr.clone(), newcons, optype);
+        newscan.setSchema((Schema) schema.clone());
+        return newscan;
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Inner input of the nested loop joins, which is scanned once per outer page or block
+ **/
+
+package qp.operators;
+
+import qp.utils.AsyncIO;
+import qp.utils.Batch;
+import qp.utils.Schema;
+import qp.utils.TupleReader;
+import qp.utils.TupleWriter;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * The pages of the input are kept in memory as long as they fit in the
+ * given number of pages, and every rescan goes over them again. An input
+ * that overflows is written to a file, with the pages read so far, and
+ * every rescan reads that file back.
+ *
+ * The file can be written behind and read ahead on an I/O thread (see
+ * AsyncIO), with buffers the join spares for it (see setPrefetch), so
+ * that the rescans overlap with the join of the pages already read.
+ */
+public class InnerInput {
+
+    final String filename;        // File where the input is materialized if it overflows
+    final Schema schema;          // Schema of the input
+    final int batchsize;          // Number of tuples per page of the input
+    final int maxPages;           // Number of pages the input may take in memory
+
+    ArrayList<Batch> pages;       // Pages of the input, null if it is in the file
+    long numTuples;               // Number of tuples of the input
+    boolean materialized;         // Whether the file has been written
+    int pcurs;                    // Next page of the in-memory scan
+    TupleReader in;               // Reader of the file scan
+    int prefetch;                 // Number of pages of the file written behind and read ahead
+
+    public InnerInput(String filename, Schema schema, int batchsize, int maxPages) {
+        this.filename = filename;
+        this.schema = schema;
+        this.batchsize = Math.max(1, batchsize);
+        this.maxPages = Math.max(0, maxPages);
+    }
+
+    public String getFileName() {
+        return filename;
+    }
+
+    /**
+     * Must be set before load, the pages are taken from the buffers of
+     * * the join, not from those the input may take in memory
+     **/
+    public void setPrefetch(int pages) {
+        this.prefetch = pages;
+    }
+
+    public boolean isInMemory() {
+        return pages != null;
+    }
+
+    /**
+     * Number of pages the input takes in memory, 0 if it is in the file
+     **/
+    public int getNumPages() {
+        if (pages == null) {
+            return 0;
+        }
+        return (int) ((numTuples + batchsize - 1) / batchsize);
+    }
+
+    /**
+     * Reads the whole input, which is opened and closed here
+     **/
+    public boolean load(Operator input) {
+        if (!input.open()) {
+            return false;
+        }
+        long capacity = (long) maxPages * batchsize;
+        pages = new ArrayList<>();
+        numTuples = 0;
+        TupleWriter out = null;
+        Batch page;
+        while ((page = input.next()) != null) {
+            numTuples += page.size();
+            if (out == null && numTuples <= capacity) {
+                pages.add(page);
+                continue;
+            }
+            if (out == null) {
+                /** The input overflows: moves the pages read so far to the file **/
+                out = new TupleWriter(filename, schema, batchsize);
+                out.setWriteBehind(prefetch);
+                if (!out.open()) {
+                    System.out.println("InnerInput: Error writing to temporary file");
+                    return false;
+                }
+                materialized = true;
+                for (Batch p : pages) {
+                    out.next(p);
+                }
+                pages = null;
+            }
+            out.next(page);
+        }
+        if (out != null) {
+            out.close();
+        }
+        pcurs = 0;
+        return input.close();
+    }
+
+    /**
+     * Starts a new scan of the input
+     **/
+    public boolean rescan() {
+        if (pages != null) {
+            pcurs = 0;
+            return true;
+        }
+        if (in != null) {
+            in.close();
+        }
+        in = new TupleReader(filename, schema, batchsize);
+        in.setPrefetch(prefetch);
+        return in.open();
+    }
+
+    /**
+     * Returns the next page of the current scan, or null at its end
+     **/
+    public Batch nextBatch() {
+        if (pages != null) {
+            if (pcurs >= pages.size()) {
+                return null;
+            }
+            return pages.get(pcurs++);
+        }
+        Batch page = in.nextBatch();
+        if (page == null) {
+            in.close();
+            in = null;
+        }
+        return page;
+    }
+
+    /**
+     * Releases the pages and deletes the file
+     **/
+    public void close() {
+        pages = null;
+        if (in != null) {
+            in.close();
+            in = null;
+        }
+        if (materialized) {
+            new File(filename).delete();
+            materialized = false;
+        }
+    }
+}
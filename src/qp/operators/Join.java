@@ -4,6 +4,7 @@
 
 package qp.operators;
 
+import qp.utils.Attribute;
 import qp.utils.Condition;
 import qp.utils.Schema;
 
@@ -102,6 +103,31 @@ public class Join extends Operator {
         conditionList.add(condition);
     }
 
+    /**
+     * A sort merge join returns its tuples sorted on the join attributes
+     * * of its left input, which are equal to those of its right input
+     **/
+    public boolean isSortedOn(ArrayList<Attribute> attrs) {
+        if (attrs.isEmpty()) {
+            return true;
+        }
+        /** The index nested join keeps the order of the left input **/
+        if (jointype == JoinType.INDEXNESTED) {
+            return left.isSortedOn(attrs);
+        }
+        if (jointype != JoinType.SORTMERGE || attrs.size() > conditionList.size()) {
+            return false;
+        }
+        for (int i = 0; i < attrs.size(); ++i) {
+            Attribute attr = attrs.get(i);
+            Condition cn = conditionList.get(i);
+            if (!attr.equals(cn.getLhs()) && !attr.equals(cn.getRhs())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public Object clone() {
         Operator newleft = (Operator) left.clone();
         Operator newright = (Operator) right.clone();
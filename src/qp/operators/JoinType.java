@@ -8,12 +8,18 @@ package qp.operators;
 
 public class JoinType {
 
-    public static final int NESTEDJOIN = 1;
-    public static final int BLOCKNESTED = 2;
     public static final int SORTMERGE = 0;
-    public static final int CROSSPRODUCT = 3;
+    public static final int HASHJOIN = 1;
+    public static final int INDEXNESTED = 2;
+    public static final int NESTEDJOIN = 3;
+    public static final int BLOCKNESTED = 4;
+    public static final int CROSSPRODUCT = 5;
 
+    /**
+     * Number of join types the optimizer may choose from,
+     * i.e. the join types numbered 0 to numJoinTypes() - 1
+     **/
     public static int numJoinTypes() {
-        return 1;
+        return 3;
     }
 }
@@ -5,24 +5,25 @@
 package qp.operators;
 
 import qp.utils.Attribute;
+import qp.utils.AsyncIO;
 import qp.utils.Batch;
 import qp.utils.Condition;
 import qp.utils.Tuple;
 
-import java.io.*;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class NestedJoin extends Join {
 
-    static int filenum = 0;         // To get unique filenum for this operation
+    static final AtomicInteger filenum = new AtomicInteger();  // To get unique filenum for this operation
     int batchsize;                  // Number of tuples per out batch
+    int rightbatchsize;             // Number of tuples per page of the right input
     ArrayList<Integer> leftindex;   // Indices of the join attributes in left table
     ArrayList<Integer> rightindex;  // Indices of the join attributes in right table
-    String rfname;                  // The file name where the right table is materialized
     Batch outbatch;                 // Buffer page for output
     Batch leftbatch;                // Buffer page for left input stream
     Batch rightbatch;               // Buffer page for right input stream
-    ObjectInputStream in;           // File pointer to the right hand materialized file
+    InnerInput inner;               // The right table, in memory or materialized in a file
 
     int lcurs;                      // Cursor for left side buffer
     int rcurs;                      // Cursor for right side buffer
@@ -45,6 +46,7 @@ public class NestedJoin extends Join {
         /** select number of tuples per batch **/
         int tuplesize = schema.getTupleSize();
         batchsize = Batch.getPageSize() / tuplesize;
+        rightbatchsize = Batch.getPageSize() / right.getSchema().getTupleSize();
 
         /** find indices attributes of join conditions **/
         leftindex = new ArrayList<>();
@@ -55,8 +57,6 @@ public class NestedJoin extends Join {
             leftindex.add(left.getSchema().indexOf(leftattr));
             rightindex.add(right.getSchema().indexOf(rightattr));
         }
-        Batch rightpage;
-
         /** initialize the cursors of input buffers **/
         lcurs = 0;
         rcurs = 0;
@@ -66,31 +66,15 @@ public class NestedJoin extends Join {
          **/
         eosr = true;
 
-        /** Right hand side table is to be materialized
-         ** for the Nested join to perform
+        /** Right hand side table is kept in memory if it fits in the
+         ** buffers left after one left and one output page, and is
+         ** materialized into a file otherwise, which is read ahead in
+         ** the buffers left after the right page
          **/
-        if (!right.open()) {
+        inner = new InnerInput("NJtemp-" + String.valueOf(filenum.incrementAndGet()), right.getSchema(), rightbatchsize, numBuff - 2);
+        inner.setPrefetch(AsyncIO.depthFor(numBuff - 3));
+        if (!inner.load(right))
             return false;
-        } else {
-            /** If the right operator is not a base table then
-             ** Materialize the intermediate result from right
-             ** into a file
-             **/
-            filenum++;
-            rfname = "NJtemp-" + String.valueOf(filenum);
-            try {
-                ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(rfname));
-                while ((rightpage = right.next()) != null) {
-                    out.writeObject(rightpage);
-                }
-                out.close();
-            } catch (IOException io) {
-                System.out.println("NestedJoin: Error writing to temporary file");
-                return false;
-            }
-            if (!right.close())
-                return false;
-        }
         if (left.open())
             return true;
         else
@@ -118,62 +102,49 @@ public class NestedJoin extends Join {
                 /** Whenever a new left page came, we have to start the
                  ** scanning of right table
                  **/
-                try {
-                    in = new ObjectInputStream(new FileInputStream(rfname));
-                    eosr = false;
-                } catch (IOException io) {
+                if (!inner.rescan()) {
                     System.err.println("NestedJoin:error in reading the file");
                     System.exit(1);
                 }
+                eosr = false;
 
             }
             while (eosr == false) {
-                try {
-                    if (rcurs == 0 && lcurs == 0) {
-                        rightbatch = (Batch) in.readObject();
+                if (rcurs == 0 && lcurs == 0) {
+                    rightbatch = inner.nextBatch();
+                    if (rightbatch == null) {
+                        eosr = true;
+                        break;
                     }
-                    for (i = lcurs; i < leftbatch.size(); ++i) {
-                        for (j = rcurs; j < rightbatch.size(); ++j) {
-                            Tuple lefttuple = leftbatch.get(i);
-                            Tuple righttuple = rightbatch.get(j);
-                            if (lefttuple.checkJoin(righttuple, leftindex, rightindex)) {
-                                Tuple outtuple = lefttuple.joinWith(righttuple);
-                                outbatch.add(outtuple);
-                                if (outbatch.isFull()) {
-                                    if (i == leftbatch.size() - 1 && j == rightbatch.size() - 1) {  //case 1
-                                        lcurs = 0;
-                                        rcurs = 0;
-                                    } else if (i != leftbatch.size() - 1 && j == rightbatch.size() - 1) {  //case 2
-                                        lcurs = i + 1;
-                                        rcurs = 0;
-                                    } else if (i == leftbatch.size() - 1 && j != rightbatch.size() - 1) {  //case 3
-                                        lcurs = i;
-                                        rcurs = j + 1;
-                                    } else {
-                                        lcurs = i;
-                                        rcurs = j + 1;
-                                    }
-                                    return outbatch;
+                }
+                for (i = lcurs; i < leftbatch.size(); ++i) {
+                    for (j = rcurs; j < rightbatch.size(); ++j) {
+                        Tuple lefttuple = leftbatch.get(i);
+                        Tuple righttuple = rightbatch.get(j);
+                        if (lefttuple.checkJoin(righttuple, leftindex, rightindex)) {
+                            Tuple outtuple = lefttuple.joinWith(righttuple);
+                            outbatch.add(outtuple);
+                            if (outbatch.isFull()) {
+                                if (i == leftbatch.size() - 1 && j == rightbatch.size() - 1) {  //case 1
+                                    lcurs = 0;
+                                    rcurs = 0;
+                                } else if (i != leftbatch.size() - 1 && j == rightbatch.size() - 1) {  //case 2
+                                    lcurs = i + 1;
+                                    rcurs = 0;
+                                } else if (i == leftbatch.size() - 1 && j != rightbatch.size() - 1) {  //case 3
+                                    lcurs = i;
+                                    rcurs = j + 1;
+                                } else {
+                                    lcurs = i;
+                                    rcurs = j + 1;
                                 }
+                                return outbatch;
                             }
                         }
-                        rcurs = 0;
                     }
-                    lcurs = 0;
-                } catch (EOFException e) {
-                    try {
-                        in.close();
-                    } catch (IOException io) {
-                        System.out.println("NestedJoin: Error in reading temporary file");
-                    }
-                    eosr = true;
-                } catch (ClassNotFoundException c) {
-                    System.out.println("NestedJoin: Error in deserialising temporary file ");
-                    System.exit(1);
-                } catch (IOException io) {
-                    System.out.println("NestedJoin: Error in reading temporary file");
-                    System.exit(1);
+                    rcurs = 0;
                 }
+                lcurs = 0;
             }
         }
         return outbatch;
@@ -183,9 +154,14 @@ public class NestedJoin extends Join {
      * Close the operator
      */
     public boolean close() {
-        File f = new File(rfname);
-        f.delete();
+        if (inner != null) {
+            inner.close();
+        }
+        left.close();
         return true;
     }
 
+    public Object clone() {
+        return new NestedJoin((Join) super.clone());
+    }
 }
@@ -14,4 +14,7 @@ public class OpType {
     public static final int GROUPBY = 5;
     public static final int ORDER = 6;
     public static final int DISTINCT = 7;
+    public static final int TOPK = 8;
+    public static final int INDEXSCAN = 9;
+    public static final int EXCHANGE = 10;
 }
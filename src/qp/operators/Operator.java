@@ -3,9 +3,12 @@
  **/
 package qp.operators;
 
+import qp.utils.Attribute;
 import qp.utils.Batch;
 import qp.utils.Schema;
 
+import java.util.ArrayList;
+
 public class Operator {
 
     int optype;     // Whether it is OpType.SELECT/ Optype.PROJECT/OpType.JOIN
@@ -47,6 +50,31 @@ public class Operator {
         return true;
     }
 
+    /**
+     * Whether the tuples are returned in ascending order of the given
+     * * attributes, so that sorting them again can be skipped. Operators
+     * * that produce or keep an order override this
+     **/
+    public boolean isSortedOn(ArrayList<Attribute> attrs) {
+        return attrs.isEmpty();
+    }
+
+    /**
+     * Whether the attributes are a prefix of the sort order,
+     * * i.e. whether tuples sorted on order are also sorted on attrs
+     **/
+    static boolean isPrefixOf(ArrayList<Attribute> attrs, ArrayList<Attribute> order) {
+        if (attrs.size() > order.size()) {
+            return false;
+        }
+        for (int i = 0; i < attrs.size(); ++i) {
+            if (!attrs.get(i).equals(order.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public Object clone() {
         return new Operator(optype);
     }
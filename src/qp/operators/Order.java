@@ -69,6 +69,10 @@ public class Order extends Operator {
         this.isDesc = isDesc;
     }
 
+    public boolean isSortedOn(ArrayList<Attribute> attrs) {
+        return attrs.isEmpty() || (!isDesc && isPrefixOf(attrs, attrset));
+    }
+
 
     /**
      * Opens the connection to the base operator
@@ -80,7 +84,7 @@ public class Order extends Operator {
         int tuplesize = schema.getTupleSize();
         batchsize = Batch.getPageSize() / tuplesize;
 
-        if (!base.open()) return false;
+        /** The base operator is opened by the external sort **/
 
         /** The following loop finds the index of the columns that
          ** are required from the base operator
@@ -89,13 +93,10 @@ public class Order extends Operator {
         attrIndex = new int[attrset.size()];
         for (int i = 0; i < attrset.size(); ++i) {
             Attribute attr = attrset.get(i);
-
-            if (attr.getAggType() != Attribute.NONE) {
-                System.err.println("Aggragation is not implemented.");
-                System.exit(1);
+            int index = baseSchema.indexOf(attr);
+            if (index == -1) {
+                index = baseSchema.indexOf(attr.getBaseAttribute());
             }
-
-            int index = baseSchema.indexOf(attr.getBaseAttribute());
             attrIndex[i] = index;
         }
 
@@ -6,6 +6,7 @@ package qp.operators;
 
 import qp.utils.Attribute;
 import qp.utils.Batch;
+import qp.utils.ColumnBatch;
 import qp.utils.Schema;
 import qp.utils.Tuple;
 
@@ -48,6 +49,13 @@ public class Project extends Operator {
         return attrset;
     }
 
+    /**
+     * The projected tuples keep the order of the base operator
+     **/
+    public boolean isSortedOn(ArrayList<Attribute> attrs) {
+        return base.isSortedOn(attrs);
+    }
+
 
     /**
      * Opens the connection to the base operator
@@ -69,12 +77,15 @@ public class Project extends Operator {
         for (int i = 0; i < attrset.size(); ++i) {
             Attribute attr = attrset.get(i);
 
-            if (attr.getAggType() != Attribute.NONE) {
-                System.err.println("Aggragation is not implemented.");
+            /** Aggregates are computed by the GroupBy operator below **/
+            int index = baseSchema.indexOf(attr);
+            if (index == -1 && attr.getAggType() != Attribute.NONE) {
+                System.err.println("Project: " + attr + " is not computed by the base operator");
                 System.exit(1);
             }
-
-            int index = baseSchema.indexOf(attr.getBaseAttribute());
+            if (index == -1) {
+                index = baseSchema.indexOf(attr.getBaseAttribute());
+            }
             attrIndex[i] = index;
         }
         return true;
@@ -92,14 +103,18 @@ public class Project extends Operator {
             return null;
         }
 
+        /** The projection of column vectors only picks the vectors **/
+        if (inbatch instanceof ColumnBatch && ((ColumnBatch) inbatch).isColumnar()) {
+            return ((ColumnBatch) inbatch).project(attrIndex, batchsize);
+        }
+
         for (int i = 0; i < inbatch.size(); i++) {
             Tuple basetuple = inbatch.get(i);
             //Debug.PPrint(basetuple);
             //System.out.println();
-            ArrayList<Object> present = new ArrayList<>();
-            for (int j = 0; j < attrset.size(); j++) {
-                Object data = basetuple.dataAt(attrIndex[j]);
-                present.add(data);
+            Object[] present = new Object[attrIndex.length];
+            for (int j = 0; j < attrIndex.length; j++) {
+                present[j] = basetuple.dataAt(attrIndex[j]);
             }
             Tuple outtuple = new Tuple(present);
             outbatch.add(outtuple);
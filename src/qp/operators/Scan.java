@@ -5,24 +5,46 @@
 package qp.operators;
 
 import qp.utils.Batch;
+import qp.utils.Condition;
 import qp.utils.Schema;
-import qp.utils.Tuple;
+import qp.utils.TupleReader;
+import qp.utils.ZoneMap;
 
-import java.io.EOFException;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
 
 /**
  * Scan operator - read data from a file
+ *
+ * The tuples are returned page by page as column batches (see
+ * ColumnBatch), which the Select and Project above work on without making
+ * the tuples.
+ *
+ * The selection conditions of the Select above the scan can be pushed
+ * down to it. If the table has a zone map, the scan then skips the pages
+ * on which the conditions cannot hold. The scan still returns every tuple
+ * of the pages it reads, the Select filters them.
+ *
+ * The scan can be restricted to a part of the pages of the file (see
+ * setPartition), so that instances of a plan run by an Exchange each
+ * read a different part of the table.
+ *
+ * The pages of the table are read ahead on an I/O thread (see AsyncIO),
+ * so that reading them overlaps with the work of the operators above, in
+ * the buffers the plan sets aside for the scan (see setPrefetch).
+ * A scan of a temporary file reads no page ahead.
  */
 public class Scan extends Operator {
 
     String filename;       // Corresponding file name
     String tabname;        // Table name
     int batchsize;         // Number of tuples per out batch;
-    ObjectInputStream in;  // Input file being scanned
+    TupleReader in;        // Input file being scanned
     boolean eos;           // To indicate whether end of stream reached or not
+    ArrayList<Condition> pushedConditions;  // Conditions of the Select above, if pushed down
+    int partition = 0;     // Part of the pages of the file to read
+    int numPartitions = 1; // Number of parts the pages of the file are split into
+    int prefetch = 0;      // Number of pages read ahead
 
     /**
      * Constructor - just save filename
@@ -33,10 +55,48 @@ public class Scan extends Operator {
         filename = tabname + ".tbl";
     }
 
+    /**
+     * Constructor for scanning a file other than the table file,
+     * * e.g. a temporary file written by another operator
+     */
+    public Scan(String tabname, String filename, int type) {
+        super(type);
+        this.tabname = tabname;
+        this.filename = filename;
+    }
+
     public String getTabName() {
         return tabname;
     }
 
+    public String getFileName() {
+        return filename;
+    }
+
+    public ArrayList<Condition> getPushedConditions() {
+        return pushedConditions;
+    }
+
+    public void setPushedConditions(ArrayList<Condition> conditions) {
+        this.pushedConditions = conditions;
+    }
+
+    /**
+     * Reads only the part-th of numParts ranges of pages of the file
+     **/
+    public void setPartition(int part, int numParts) {
+        this.partition = part;
+        this.numPartitions = numParts;
+    }
+
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    public void setPrefetch(int pages) {
+        this.prefetch = pages;
+    }
+
     /**
      * Open file prepare a stream pointer to read input file
      */
@@ -45,9 +105,18 @@ public class Scan extends Operator {
         int tuplesize = schema.getTupleSize();
         batchsize = Batch.getPageSize() / tuplesize;
         eos = false;
-        try {
-            in = new ObjectInputStream(new FileInputStream(filename));
-        } catch (Exception e) {
+        in = new TupleReader(filename, schema, batchsize);
+        in.setColumnar(true);
+        in.setPartition(partition, numPartitions);
+        in.setPrefetch(prefetch);
+        if (pushedConditions != null) {
+            ZoneMap zoneMap = ZoneMap.forTable(filename);
+            if (zoneMap != null) {
+                BitSet pages = zoneMap.pagesMatching(pushedConditions, schema);
+                in.setPageFilter(pages);
+            }
+        }
+        if (!in.open()) {
             System.err.println(" Error reading " + filename);
             return false;
         }
@@ -63,24 +132,10 @@ public class Scan extends Operator {
             close();
             return null;
         }
-        Batch tuples = new Batch(batchsize);
-        while (!tuples.isFull()) {
-            try {
-                Tuple data = (Tuple) in.readObject();
-                tuples.add(data);
-            } catch (ClassNotFoundException cnf) {
-                System.err.println("Scan:Class not found for reading file  " + filename);
-                System.exit(1);
-            } catch (EOFException EOF) {
-                /** At this point incomplete page is sent and at next call it considered
-                 ** as end of file
-                 **/
-                eos = true;
-                return tuples;
-            } catch (IOException e) {
-                System.err.println("Scan:Error reading " + filename);
-                System.exit(1);
-            }
+        Batch tuples = in.nextBatch();
+        if (tuples == null) {
+            eos = true;
+            close();
         }
         return tuples;
     }
@@ -90,9 +145,7 @@ public class Scan extends Operator {
      * * is already reached
      **/
     public boolean close() {
-        try {
-            in.close();
-        } catch (IOException e) {
+        if (!in.close()) {
             System.err.println("Scan: Error closing " + filename);
             return false;
         }
@@ -101,8 +154,17 @@ public class Scan extends Operator {
 
     public Object clone() {
         String newtab = tabname;
-        Scan newscan = new Scan(newtab, optype);
+        Scan newscan = new Scan(newtab, filename, optype);
         newscan.setSchema((Schema) schema.clone());
+        if (pushedConditions != null) {
+            ArrayList<Condition> newcons = new ArrayList<>();
+            for (Condition con : pushedConditions) {
+                newcons.add((Condition) con.clone());
+            }
+            newscan.setPushedConditions(newcons);
+        }
+        newscan.setPartition(partition, numPartitions);
+        newscan.setPrefetch(prefetch);
         return newscan;
     }
 
@@ -6,11 +6,13 @@ package qp.operators;
 
 import qp.utils.*;
 
+import java.util.ArrayList;
+
 public class Select extends Operator {
 
-    Operator base;  // Base operator
-    Condition con;  // Select condition
-    int batchsize;  // Number of tuples per outbatch
+    Operator base;                       // Base operator
+    ArrayList<Condition> conditionList;  // Select conditions, all of which must hold
+    int batchsize;                       // Number of tuples per outbatch
 
     /**
      * The following fields are required during
@@ -20,6 +22,9 @@ public class Select extends Operator {
     Batch inbatch;   // This is the current input buffer
     Batch outbatch;  // This is the current output buffer
     int start;       // Cursor position in the input buffer
+    Predicate predicate;  // Conditions compiled against the schema
+    ColumnBatch pending;  // Selected tuples of a column batch left for the next call
+    boolean held;         // Whether inbatch is read from the base operator but not looked at yet
 
     /**
      * constructor
@@ -27,7 +32,14 @@ public class Select extends Operator {
     public Select(Operator base, Condition con, int type) {
         super(type);
         this.base = base;
-        this.con = con;
+        this.conditionList = new ArrayList<>();
+        this.conditionList.add(con);
+    }
+
+    public Select(Operator base, ArrayList<Condition> conditionList, int type) {
+        super(type);
+        this.base = base;
+        this.conditionList = conditionList;
     }
 
     public Operator getBase() {
@@ -39,11 +51,27 @@ public class Select extends Operator {
     }
 
     public Condition getCondition() {
-        return con;
+        return conditionList.get(0);
     }
 
     public void setCondition(Condition cn) {
-        this.con = cn;
+        conditionList = new ArrayList<>();
+        conditionList.add(cn);
+    }
+
+    public ArrayList<Condition> getConditionList() {
+        return conditionList;
+    }
+
+    public void setConditionList(ArrayList<Condition> conditionList) {
+        this.conditionList = conditionList;
+    }
+
+    /**
+     * The selected tuples keep the order of the base operator
+     **/
+    public boolean isSortedOn(ArrayList<Attribute> attrs) {
+        return base.isSortedOn(attrs);
     }
 
     /**
@@ -52,11 +80,16 @@ public class Select extends Operator {
     public boolean open() {
         eos = false;  // Since the stream is just opened
         start = 0;    // Set the cursor to starting position in input buffer
+        pending = null;
+        held = false;
 
         /** Set number of tuples per page**/
         int tuplesize = schema.getTupleSize();
         batchsize = Batch.getPageSize() / tuplesize;
 
+        /** The conditions are resolved against the schema once, not per tuple **/
+        predicate = Predicate.compile(conditionList, schema);
+
         if (base.open())
             return true;
         else
@@ -74,6 +107,9 @@ public class Select extends Operator {
             close();
             return null;
         }
+        if (pending != null) {
+            return nextColumns(null);
+        }
 
         /** An output buffer is initiated **/
         outbatch = new Batch(batchsize);
@@ -83,12 +119,19 @@ public class Select extends Operator {
          **/
         while (!outbatch.isFull()) {
             if (start == 0) {
-                inbatch = base.next();
+                if (!held) {
+                    inbatch = base.next();
+                }
+                held = false;
                 /** There is no more incoming pages from base operator **/
                 if (inbatch == null) {
                     eos = true;
                     return outbatch;
                 }
+                /** Column batches are selected as a whole, without making their tuples **/
+                if (outbatch.isEmpty() && isColumnar(inbatch)) {
+                    return nextColumns((ColumnBatch) inbatch);
+                }
             }
 
             /** Continue this for loop until this page is fully observed
@@ -114,6 +157,62 @@ public class Select extends Operator {
         return outbatch;
     }
 
+    private static boolean isColumnar(Batch batch) {
+        return batch instanceof ColumnBatch && ((ColumnBatch) batch).isColumnar();
+    }
+
+    /**
+     * Selects the tuples of the column batches of the base operator,
+     * * starting with the given one if it is not null, and returns them
+     * * as a column batch. The tuples selected from several input batches
+     * * are copied together until the batch is full, the ones that do not
+     * * fit are kept for the next call
+     **/
+    private Batch nextColumns(ColumnBatch first) {
+        ArrayList<ColumnBatch> parts = new ArrayList<>();
+        int count = 0;
+        ColumnBatch in = first;
+        while (count < batchsize) {
+            ColumnBatch part;
+            if (pending != null) {
+                part = pending;
+                pending = null;
+            } else {
+                if (in == null) {
+                    Batch batch = base.next();
+                    if (batch == null) {
+                        eos = true;
+                        break;
+                    }
+                    if (!isColumnar(batch)) {
+                        /** Left to the tuple at a time selection of the next call **/
+                        inbatch = batch;
+                        start = 0;
+                        held = true;
+                        break;
+                    }
+                    in = (ColumnBatch) batch;
+                }
+                part = predicate.select(in);
+                in = null;
+            }
+            if (count + part.size() > batchsize) {
+                pending = part.slice(batchsize - count, part.size(), batchsize);
+                part = part.slice(0, batchsize - count, batchsize);
+            }
+            if (!part.isEmpty()) {
+                parts.add(part);
+                count += part.size();
+            }
+        }
+        if (parts.isEmpty()) {
+            return next();
+        } else if (parts.size() == 1) {
+            return parts.get(0);
+        }
+        return ColumnBatch.concat(parts, batchsize);
+    }
+
     /**
      * closes the output connection
      * * i.e., no more pages to output
@@ -124,105 +223,20 @@ public class Select extends Operator {
     }
 
     /**
-     * To check whether the selection condition is satisfied for
+     * To check whether the selection conditions are satisfied for
      * * the present tuple
      **/
     protected boolean checkCondition(Tuple tuple) {
-        Attribute attr = con.getLhs();
-        int index = schema.indexOf(attr);
-        int datatype = schema.typeOf(attr);
-        Object srcValue = tuple.dataAt(index);
-        int exprtype = con.getExprType();
-
-        if (datatype == Attribute.INT) {
-            int srcVal = ((Integer) srcValue).intValue();
-            int checkVal = 0;
-            if (con.getRhs() instanceof String) {
-                checkVal = Integer.parseInt((String) con.getRhs());
-            } else if (con.getRhs() instanceof Attribute) {
-                checkVal = ((Integer) tuple.dataAt(schema.indexOf((Attribute) con.getRhs()))).intValue();
-            } else {
-                System.out.println("Select: Malformed condition");
-            }
-            if (exprtype == Condition.LESSTHAN) {
-                if (srcVal < checkVal)
-                    return true;
-            } else if (exprtype == Condition.GREATERTHAN) {
-                if (srcVal > checkVal)
-                    return true;
-            } else if (exprtype == Condition.LTOE) {
-                if (srcVal <= checkVal)
-                    return true;
-            } else if (exprtype == Condition.GTOE) {
-                if (srcVal >= checkVal)
-                    return true;
-            } else if (exprtype == Condition.EQUAL) {
-                if (srcVal == checkVal)
-                    return true;
-            } else if (exprtype == Condition.NOTEQUAL) {
-                if (srcVal != checkVal)
-                    return true;
-            } else {
-                System.out.println("Select: Incorrect condition operator");
-            }
-        } else if (datatype == Attribute.STRING) {
-            String srcVal = (String) srcValue;
-            int flag = 0;
-            if (con.getRhs() instanceof String) {
-                flag = srcVal.compareTo((String) con.getRhs());
-            } else if (con.getRhs() instanceof Attribute) {
-                flag = srcVal.compareTo(((String) tuple.dataAt(schema.indexOf((Attribute) con.getRhs()))));
-            } else {
-                System.out.println("Select: Malformed condition");
-            }
-            if (exprtype == Condition.LESSTHAN) {
-                if (flag < 0) return true;
-            } else if (exprtype == Condition.GREATERTHAN) {
-                if (flag > 0) return true;
-            } else if (exprtype == Condition.LTOE) {
-                if (flag <= 0) return true;
-            } else if (exprtype == Condition.GTOE) {
-                if (flag >= 0) return true;
-            } else if (exprtype == Condition.EQUAL) {
-                if (flag == 0) return true;
-            } else if (exprtype == Condition.NOTEQUAL) {
-                if (flag != 0) return true;
-            } else {
-                System.out.println("Select: Incorrect condition operator");
-            }
-        } else if (datatype == Attribute.REAL) {
-            float srcVal = ((Float) srcValue).floatValue();
-            float checkVal = 0;
-            if (con.getRhs() instanceof String) {
-                checkVal = Float.parseFloat((String) con.getRhs());
-            } else if (con.getRhs() instanceof Attribute) {
-                checkVal = ((Float) tuple.dataAt(schema.indexOf((Attribute) con.getRhs()))).floatValue();
-            } else {
-                System.out.println("Select: Malformed condition");
-            }
-            if (exprtype == Condition.LESSTHAN) {
-                if (srcVal < checkVal) return true;
-            } else if (exprtype == Condition.GREATERTHAN) {
-                if (srcVal > checkVal) return true;
-            } else if (exprtype == Condition.LTOE) {
-                if (srcVal <= checkVal) return true;
-            } else if (exprtype == Condition.GTOE) {
-                if (srcVal >= checkVal) return true;
-            } else if (exprtype == Condition.EQUAL) {
-                if (srcVal == checkVal) return true;
-            } else if (exprtype == Condition.NOTEQUAL) {
-                if (srcVal != checkVal) return true;
-            } else {
-                System.out.println("Select: Incorrect condition operator");
-            }
-        }
-        return false;
+        return predicate.test(tuple);
     }
 
     public Object clone() {
         Operator newbase = (Operator) base.clone();
-        Condition newcon = (Condition) con.clone();
-        Select newsel = new Select(newbase, newcon, optype);
+        ArrayList<Condition> newcons = new ArrayList<>();
+        for (Condition con : conditionList) {
+            newcons.add((Condition) con.clone());
+        }
+        Select newsel = new Select(newbase, newcons, optype);
         newsel.setSchema((Schema) newbase.getSchema().clone());
         return newsel;
     }
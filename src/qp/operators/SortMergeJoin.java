@@ -6,6 +6,7 @@ package qp.operators;
 import qp.utils.Attribute;
 import qp.utils.Batch;
 import qp.utils.Condition;
+import qp.utils.SortKey;
 import qp.utils.Tuple;
 
 import java.io.*;
@@ -23,6 +24,10 @@ public class SortMergeJoin extends Join {
     Batch rightbatch;               // Buffer page for right input stream
     ExternalSort sortedLeft;
     ExternalSort sortedRight;    
+    SortKey leftSortKey;            // Normalized keys of the join attributes of the left table
+    SortKey rightSortKey;           // Normalized keys of the join attributes of the right table
+    byte[][] leftkeys;              // Keys of the tuples of leftbatch
+    byte[][] rightkeys;             // Keys of the tuples of rightbatch
     
     int lcurs;                      // Cursor for left side buffer
     int rcurs;                      // Cursor for right side buffer
@@ -70,12 +75,16 @@ public class SortMergeJoin extends Join {
             rightAttrs.add(rightattr);
         }
         
+        leftSortKey = new SortKey(leftindex);
+        rightSortKey = new SortKey(rightindex);
+
         // External Sort
         sortedLeft = new ExternalSort(left, leftAttrs, OpType.EXTERNAL_SORT, numBuff);
         sortedLeft.setSchema(left.getSchema());
         
         sortedRight = new ExternalSort(right, rightAttrs, OpType.EXTERNAL_SORT, numBuff);
         sortedRight.setSchema(right.getSchema());
+        sortedRight.setRandomAccess(true);
         
         if (!(sortedLeft.open() && sortedRight.open())) {
         	return false;
@@ -112,9 +121,9 @@ public class SortMergeJoin extends Join {
     public Batch next() {
     	// Fetch new left and right page
     	if (firstCall) {
-			leftbatch = sortedLeft.next();
+			leftbatch = nextLeftBatch();
 			lcurs = 0;
-			rightbatch = sortedRight.getBatch(rpageidx);
+			rightbatch = rightBatchAt(rpageidx);
 			rcurs = 0;
 			firstCall = false;
 		}
@@ -128,14 +137,14 @@ public class SortMergeJoin extends Join {
     	while (!outbatch.isFull() && !isFinished) {
     		if (!matching) {
     			if (DEBUGLEVEL>=2) System.out.println("NOT MATCHING");
-    			int compareRes = Tuple.compareTuples(leftbatch.get(lcurs), rightbatch.get(rcurs), leftindex, rightindex);
+    			int compareRes = SortKey.compare(leftkeys[lcurs], rightkeys[rcurs]);
     			
     			// Case 1: lcurs smaller than rcurs
         		if (compareRes < 0) { 
         			if (DEBUGLEVEL>=2) System.out.println("  Case1: left smaller");
         			lcurs++;
         			if (lcurs == leftbatch.size()) {
-						if ((leftbatch = sortedLeft.next()) == null) {
+						if ((leftbatch = nextLeftBatch()) == null) {
 							isFinished = true;
 							if (DEBUGLEVEL>=2) System.out.println("    Case1a: fetch new LEFT and reached end");
 						}
@@ -148,7 +157,7 @@ public class SortMergeJoin extends Join {
         			rcurs++;
         			if (rcurs == rightbatch.size()) {
         				rpageidx++;
-        				if ((rightbatch = sortedRight.getBatch(rpageidx))==null) {
+        				if ((rightbatch = rightBatchAt(rpageidx))==null) {
         					isFinished = true;
         					if (DEBUGLEVEL>=2) System.out.println("    Case2a: fetch new RIGHT and reached end");
         				}
@@ -165,7 +174,7 @@ public class SortMergeJoin extends Join {
         			lcursStart = lcurs;
         			lcursLimit = lcurs;
         			while (lcursLimit < leftbatch.size()) {
-        				if (Tuple.compareTuples(leftbatch.get(lcurs), leftbatch.get(lcursLimit), leftindex, leftindex) == 0) {
+        				if (SortKey.compare(leftkeys[lcurs], leftkeys[lcursLimit]) == 0) {
         					lcursLimit++;
         				} else {
         					break;
@@ -187,7 +196,7 @@ public class SortMergeJoin extends Join {
         			}
         			rcursLimit = rcurs;
         			while (rcursLimit < rightbatch.size()) {
-        				if (Tuple.compareTuples(rightbatch.get(rcurs), rightbatch.get(rcursLimit), rightindex, rightindex) == 0) {
+        				if (SortKey.compare(rightkeys[rcurs], rightkeys[rcursLimit]) == 0) {
         					rcursLimit++;
         				} else {
         					break;
@@ -207,7 +216,9 @@ public class SortMergeJoin extends Join {
     			if (DEBUGLEVEL>=2) System.out.println("MATCHING");
     			Tuple lefttuple = leftbatch.get(lcurs);;
     			Tuple righttuple = rightbatch.get(rcurs);
-    			int compareRes = Tuple.compareTuples(lefttuple, righttuple, leftindex, rightindex);
+    			byte[] leftkey = leftkeys[lcurs];
+    			byte[] rightkey = rightkeys[rcurs];
+    			int compareRes = SortKey.compare(leftkey, rightkey);
     			if (compareRes == 0) {
     				Tuple outtuple = lefttuple.joinWith(righttuple);
     				outbatch.add(outtuple);	
@@ -233,12 +244,12 @@ public class SortMergeJoin extends Join {
                 	} else if (!checkNextLeftPage && checkNextRightPage) {
                 		if (DEBUGLEVEL>=2) System.out.println("  Case2: false | true");
                 		rpageidx++;
-                		rightbatch = sortedRight.getBatch(rpageidx);
+                		rightbatch = rightBatchAt(rpageidx);
                 		if (rightbatch == null) {
                 			if (DEBUGLEVEL>=2) System.out.println("    Case2a: Next right null");
                 			matching = false;
                 			isFinished = true;
-                		} else if (Tuple.compareTuples(righttuple, rightbatch.get(0), rightindex, rightindex) != 0) {
+                		} else if (SortKey.compare(rightkey, rightkeys[0]) != 0) {
                 			if (DEBUGLEVEL>=2) System.out.println("    Case2b: Next right no match");
                 			matching = false;
                 			rcurs = 0;
@@ -253,12 +264,12 @@ public class SortMergeJoin extends Join {
                 	// Case 3: left true, right false
                 	} else if (checkNextLeftPage && !checkNextRightPage) {
                 		if (DEBUGLEVEL>=2) System.out.println("  Case3: true | false");
-                		leftbatch = sortedLeft.next();
+                		leftbatch = nextLeftBatch();
                 		if (leftbatch == null) {
                 			if (DEBUGLEVEL>=2) System.out.println("    Case3a: Next left null");
                 			matching = false;
                 			isFinished = true;
-                		} else if (Tuple.compareTuples(lefttuple, leftbatch.get(0), leftindex, leftindex) != 0) {
+                		} else if (SortKey.compare(leftkey, leftkeys[0]) != 0) {
                 			if (DEBUGLEVEL>=2) System.out.println("    Case3b: Next left no match");
                 			matching = false;
                 			checkNextLeftPage = false;
@@ -268,7 +279,7 @@ public class SortMergeJoin extends Join {
                 			matching = false;
                 			if (rpageidx != rpageidxStart) {
                 				rpageidx = rpageidxStart;
-                    			rightbatch = sortedRight.getBatch(rpageidx);	
+                    			rightbatch = rightBatchAt(rpageidx);	
                 			}
                 			rcurs = rcursStart;
                 			lcurs = 0;
@@ -278,15 +289,15 @@ public class SortMergeJoin extends Join {
                 	} else {
                 		if (DEBUGLEVEL>=2) System.out.println("  Case4: true | true");
                 		rpageidx++;
-                		rightbatch = sortedRight.getBatch(rpageidx);
-                		if (rightbatch == null || Tuple.compareTuples(righttuple, rightbatch.get(0), rightindex, rightindex) != 0) {
+                		rightbatch = rightBatchAt(rpageidx);
+                		if (rightbatch == null || SortKey.compare(rightkey, rightkeys[0]) != 0) {
                 			if (DEBUGLEVEL>=2) System.out.println("    Case4a: Next right null or next right no match");
-                    		leftbatch = sortedLeft.next();
+                    		leftbatch = nextLeftBatch();
                     		if (leftbatch == null) {
                     			if (DEBUGLEVEL>=2) System.out.println("      Case4a1: Next left null");
                     			matching = false;
                     			isFinished = true;
-                    		} else if (Tuple.compareTuples(lefttuple, leftbatch.get(0), leftindex, leftindex) != 0) {
+                    		} else if (SortKey.compare(leftkey, leftkeys[0]) != 0) {
                     			if (DEBUGLEVEL>=2) System.out.println("      Case4a2: Next left no match");
                     			matching = false;
                     			lcurs = 0;
@@ -296,7 +307,7 @@ public class SortMergeJoin extends Join {
                     			if (DEBUGLEVEL>=2) System.out.println("      Case4a3: Next left match");
                     			matching = false;
                     			rpageidx = rpageidxStart;
-                    			rightbatch = sortedRight.getBatch(rpageidx);
+                    			rightbatch = rightBatchAt(rpageidx);
                     			rcurs = rcursStart;  
                     			lcurs = 0;
                     		}           	
@@ -350,12 +361,45 @@ public class SortMergeJoin extends Join {
     	}
     }
 
+    /**
+     * Reads the next page of the sorted left table and the keys of its tuples
+     **/
+    private Batch nextLeftBatch() {
+    	Batch batch = sortedLeft.next();
+    	leftkeys = keysOf(batch, leftSortKey);
+    	return batch;
+    }
+
+    /**
+     * Reads the given page of the sorted right table and the keys of its tuples
+     **/
+    private Batch rightBatchAt(int idx) {
+    	Batch batch = sortedRight.getBatch(idx);
+    	rightkeys = keysOf(batch, rightSortKey);
+    	return batch;
+    }
+
+    private static byte[][] keysOf(Batch batch, SortKey sortKey) {
+    	if (batch == null) {
+    		return null;
+    	}
+    	byte[][] keys = new byte[batch.size()][];
+    	for (int i = 0; i < batch.size(); ++i) {
+    		keys[i] = sortKey.keyOf(batch.get(i));
+    	}
+    	return keys;
+    }
+
     public boolean close() {
     	if (DEBUGLEVEL>=2) System.out.println("Close Sort merge join");
     	sortedLeft.close();
     	sortedRight.close();
     	return true;
     }
+
+    public Object clone() {
+        return new SortMergeJoin((Join) super.clone());
+    }
 }
     
 
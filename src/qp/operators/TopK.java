@@ -0,0 +1,245 @@
+/**
+ * Returns the first k tuples of the result in the order of the given attributes
+ **/
+
+package qp.operators;
+
+import qp.utils.Attribute;
+import qp.utils.Batch;
+import qp.utils.Schema;
+import qp.utils.SortKey;
+import qp.utils.Tuple;
+
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+
+/**
+ * If the k tuples fit in numBuff - 1 pages, the input is read once into a
+ * bounded heap whose top is the last of the k best tuples so far; a new
+ * tuple only enters the heap if it comes before that one, so nothing is
+ * written to disk. Otherwise the input is sorted by ExternalSort and the
+ * first k tuples are returned. Without order attributes, or if the input
+ * is already in the order, the first k tuples of the input are returned
+ * as they come.
+ */
+public class TopK extends Operator {
+
+    Operator base;                 // Base operator
+    ArrayList<Attribute> attrset;  // Attributes to order by, empty to keep the input order
+    boolean isDesc;                // Sort order
+    int k;                         // Number of tuples to return
+    int batchsize;                 // Number of tuples per outbatch
+    int numBuff;                   // Number of buffers available
+    boolean eos;
+
+    ArrayList<Integer> attrIndex;  // index of the attributes in the base operator
+    ArrayList<Tuple> topTuples;    // The k tuples in order, when kept in memory
+    ExternalSort sortedBase;       // The sorted input, when the k tuples do not fit in memory
+    Batch inbatch;                 // Current page of the input
+    int incurs;                    // Cursor on inbatch
+    int numOut;                    // Number of tuples returned so far
+    boolean passThrough;           // Whether the input is returned as it comes
+
+    public TopK(Operator base, ArrayList<Attribute> as, int type, boolean isDesc, int k) {
+        super(type);
+        this.base = base;
+        this.attrset = as;
+        this.isDesc = isDesc;
+        this.k = k;
+    }
+
+    public Operator getBase() {
+        return base;
+    }
+
+    public void setBase(Operator base) {
+        this.base = base;
+    }
+
+    public ArrayList<Attribute> getOrderAttr() {
+        return attrset;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public int getNumBuff() {
+        return numBuff;
+    }
+
+    public void setNumBuff(int num) {
+        this.numBuff = num;
+    }
+
+    public boolean getIsDesc() {
+        return isDesc;
+    }
+
+    public boolean isSortedOn(ArrayList<Attribute> attrs) {
+        if (attrset.isEmpty()) {
+            return base.isSortedOn(attrs);
+        }
+        return attrs.isEmpty() || (!isDesc && isPrefixOf(attrs, attrset));
+    }
+
+    /**
+     * Number of tuples the bounded heap can hold
+     **/
+    public static long getCapacity(Schema schema, int numBuff) {
+        long batchsize = Math.max(1, Batch.getPageSize() / schema.getTupleSize());
+        return Math.max(1, numBuff - 1) * batchsize;
+    }
+
+    /**
+     * Opens the base operator and, if there are attributes to
+     * * order by, finds the k first tuples
+     **/
+    public boolean open() {
+        int tuplesize = schema.getTupleSize();
+        batchsize = Batch.getPageSize() / tuplesize;
+        eos = false;
+        numOut = 0;
+        inbatch = null;
+        incurs = 0;
+
+        Schema baseSchema = base.getSchema();
+        attrIndex = new ArrayList<>(attrset.size());
+        for (Attribute attr : attrset) {
+            int index = baseSchema.indexOf(attr);
+            if (index == -1) {
+                index = baseSchema.indexOf(attr.getBaseAttribute());
+            }
+            attrIndex.add(index);
+        }
+
+        passThrough = attrset.isEmpty() || (!isDesc && base.isSortedOn(attrset));
+        if (passThrough) {
+            return base.open();
+        }
+        if (k > getCapacity(schema, numBuff)) {
+            sortedBase = new ExternalSort(base, attrset, OpType.EXTERNAL_SORT, numBuff);
+            sortedBase.setSchema(baseSchema);
+            sortedBase.setIsDesc(isDesc);
+            return sortedBase.open();
+        }
+
+        if (!base.open()) {
+            return false;
+        }
+        /** The heap's top is the tuple that comes last in the order **/
+        SortKey sortKey = new SortKey(attrIndex, isDesc);
+        PriorityQueue<KeyedTuple> heap = new PriorityQueue<>(Math.max(1, k), (a, b) -> SortKey.compare(b.key, a.key));
+        Batch page;
+        while ((page = base.next()) != null) {
+            for (int i = 0; i < page.size(); ++i) {
+                Tuple tuple = page.get(i);
+                if (heap.size() < k) {
+                    heap.add(new KeyedTuple(tuple, sortKey.keyOf(tuple)));
+                    continue;
+                }
+                if (k == 0) {
+                    continue;
+                }
+                byte[] key = sortKey.keyOf(tuple);
+                if (SortKey.compare(key, heap.peek().key) < 0) {
+                    heap.poll();
+                    heap.add(new KeyedTuple(tuple, key));
+                }
+            }
+        }
+        base.close();
+        ArrayList<KeyedTuple> sorted = new ArrayList<>(heap);
+        sorted.sort((a, b) -> SortKey.compare(a.key, b.key));
+        topTuples = new ArrayList<>(sorted.size());
+        for (KeyedTuple entry : sorted) {
+            topTuples.add(entry.tuple);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next page of the k first tuples
+     **/
+    public Batch next() {
+        if (eos) {
+            return null;
+        }
+        Batch outbatch = new Batch(batchsize);
+        while (!outbatch.isFull() && numOut < k) {
+            Tuple tuple;
+            if (topTuples != null) {
+                if (numOut >= topTuples.size()) {
+                    break;
+                }
+                tuple = topTuples.get(numOut);
+            } else {
+                tuple = nextInput();
+                if (tuple == null) {
+                    break;
+                }
+            }
+            outbatch.add(tuple);
+            numOut++;
+        }
+        if (outbatch.isEmpty()) {
+            eos = true;
+            return null;
+        }
+        return outbatch;
+    }
+
+    /**
+     * Returns the next tuple of the sorted or unordered input
+     **/
+    private Tuple nextInput() {
+        Operator input = (sortedBase != null) ? sortedBase : base;
+        while (inbatch == null || incurs >= inbatch.size()) {
+            inbatch = input.next();
+            incurs = 0;
+            if (inbatch == null) {
+                return null;
+            }
+        }
+        return inbatch.get(incurs++);
+    }
+
+    /**
+     * Close the operator
+     */
+    public boolean close() {
+        topTuples = null;
+        inbatch = null;
+        if (sortedBase != null) {
+            sortedBase.close();
+            sortedBase = null;
+        } else if (passThrough) {
+            base.close();
+        }
+        return true;
+    }
+
+    public Object clone() {
+        Operator newbase = (Operator) base.clone();
+        ArrayList<Attribute> newattr = new ArrayList<>();
+        for (int i = 0; i < attrset.size(); ++i)
+            newattr.add((Attribute) attrset.get(i).clone());
+        TopK newTopK = new TopK(newbase, newattr, optype, isDesc, k);
+        newTopK.setSchema(newbase.getSchema());
+        newTopK.setNumBuff(numBuff);
+        return newTopK;
+    }
+
+    /**
+     * A tuple of the heap with its sort key
+     **/
+    private static class KeyedTuple {
+        final Tuple tuple;
+        final byte[] key;
+
+        KeyedTuple(Tuple tuple, byte[] key) {
+            this.tuple = tuple;
+            this.key = key;
+        }
+    }
+}
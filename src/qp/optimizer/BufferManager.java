@@ -1,5 +1,7 @@
 /**
  * simple buffer manager that distributes the buffers equally among all the join operators
+ * The frames of the buffer pool (see BufferPool) and the pages the scans read ahead (see AsyncIO)
+ * are set aside first, as far as every join keeps 3 buffers
  **/
 
 package qp.optimizer;
@@ -11,13 +13,40 @@ public class BufferManager {
 
     static int buffPerJoin;
 
-    public BufferManager(int numBuffer, int numJoin) {
-        this.numBuffer = numBuffer;
-        this.numJoin = numJoin;
-        buffPerJoin = numBuffer / numJoin;
+    static int poolFrames;
+    static int numScan;
+    static int readAheadBuffers;
+
+    public BufferManager(int numBuffer, int numJoin, int poolFrames, int numScan, int readAheadPerScan) {
+        BufferManager.numBuffer = numBuffer;
+        BufferManager.numJoin = numJoin;
+        BufferManager.numScan = numScan;
+        int spare = Math.max(0, numBuffer - 3 * numJoin);
+        BufferManager.poolFrames = Math.max(0, Math.min(poolFrames, spare));
+        readAheadBuffers = Math.max(0, Math.min(numScan * readAheadPerScan, spare - BufferManager.poolFrames));
+        buffPerJoin = (numBuffer - BufferManager.poolFrames - readAheadBuffers) / numJoin;
+    }
+
+    public static int getNumBuffers() {
+        return numBuffer;
     }
 
     public static int getBuffersPerJoin() {
         return buffPerJoin;
     }
+
+    public static int getPoolFrames() {
+        return poolFrames;
+    }
+
+    /**
+     * Number of pages each scan of a table may read ahead, not limited
+     * * if no buffers are given for the query
+     **/
+    public static int getReadAheadPerScan() {
+        if (numBuffer == 0) {
+            return Integer.MAX_VALUE;
+        }
+        return (numScan == 0) ? 0 : readAheadBuffers / numScan;
+    }
 }
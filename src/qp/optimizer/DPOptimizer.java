@@ -0,0 +1,255 @@
+/**
+ * performs dynamic programming (System R style) optimization of the join order
+ **/
+
+package qp.optimizer;
+
+import qp.operators.*;
+import qp.utils.Attribute;
+import qp.utils.Condition;
+import qp.utils.SQLQuery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The best plan of every subset of the tables in the FROM list is built
+ * bottom up from the best plans of its two halves, trying every split of
+ * the subset and every join method, and costing the candidates with
+ * PlanCost. Cross products are only considered for a subset that cannot
+ * be split along a join condition.
+ *
+ * Besides the cheapest plan of a subset, the cheapest plan producing each
+ * interesting order (the ORDER BY list and the GROUP BY list) is kept, as
+ * a sort merge join returns its tuples sorted on the join attributes of
+ * its left input (see Operator.isSortedOn). At the end every kept plan of
+ * the whole FROM list gets the operators above the joins and the cheapest
+ * complete plan wins; a plan already in the ORDER BY order does not need
+ * the Order operator.
+ *
+ * The number of subsets grows as 2^n, so the optimizer is meant for
+ * queries of up to MAX_RELATIONS tables.
+ */
+public class DPOptimizer {
+
+    /**
+     * Largest number of tables for which dynamic programming is used
+     **/
+    public static final int MAX_RELATIONS = 10;
+
+    SQLQuery sqlquery;
+    ArrayList<String> fromlist;
+    ArrayList<Condition> joinlist;               // List of join conditions
+    ArrayList<ArrayList<Attribute>> orders;      // Interesting orders
+    int numTables;
+
+    Operator[] bestPlan;                         // Cheapest plan of every subset of tables
+    long[] bestCost;                             // Cost of bestPlan
+    Operator[][] bestOrderedPlan;                // Cheapest plan of every subset producing every interesting order
+    long[][] bestOrderedCost;                    // Cost of bestOrderedPlan
+
+    public DPOptimizer(SQLQuery sqlquery) {
+        this.sqlquery = sqlquery;
+        fromlist = sqlquery.getFromList();
+        joinlist = sqlquery.getJoinList();
+        numTables = fromlist.size();
+
+        orders = new ArrayList<>();
+        if (!sqlquery.getOrderByList().isEmpty() && !sqlquery.isDesc()) {
+            orders.add(sqlquery.getOrderByList());
+        }
+        if (!sqlquery.getGroupByList().isEmpty()) {
+            orders.add(sqlquery.getGroupByList());
+        }
+    }
+
+    /**
+     * Finds the cheapest plan for the query
+     **/
+    public Operator getOptimizedPlan() {
+        RandomInitialPlan rip = new RandomInitialPlan(sqlquery);
+        HashMap<String, Operator> tab_op_hash = rip.prepareBasePlans();
+
+        int numSubsets = 1 << numTables;
+        bestPlan = new Operator[numSubsets];
+        bestCost = new long[numSubsets];
+        bestOrderedPlan = new Operator[orders.size()][numSubsets];
+        bestOrderedCost = new long[orders.size()][numSubsets];
+
+        /** Plans of single tables are their scan and selections **/
+        for (int i = 0; i < numTables; ++i) {
+            int subset = 1 << i;
+            bestPlan[subset] = tab_op_hash.get(fromlist.get(i));
+            bestCost[subset] = new PlanCost().getCost(bestPlan[subset]);
+        }
+
+        /** Subsets in increasing order, so that both halves of a split are done before **/
+        for (int subset = 1; subset < numSubsets; ++subset) {
+            if (Integer.bitCount(subset) < 2) {
+                continue;
+            }
+            bestCost[subset] = Long.MAX_VALUE;
+            for (int k = 0; k < orders.size(); ++k) {
+                bestOrderedCost[k][subset] = Long.MAX_VALUE;
+            }
+            if (!joinSubsets(subset, false)) {
+                joinSubsets(subset, true);
+            }
+        }
+
+        /** Put the operators above the joins on top of every candidate **/
+        int all = numSubsets - 1;
+        if (bestPlan[all] == null) {
+            return null;
+        }
+        ArrayList<Operator> candidates = new ArrayList<>();
+        candidates.add(bestPlan[all]);
+        for (int k = 0; k < orders.size(); ++k) {
+            if (bestOrderedPlan[k][all] != null && bestOrderedPlan[k][all] != bestPlan[all]) {
+                candidates.add(bestOrderedPlan[k][all]);
+            }
+        }
+        Operator finalPlan = null;
+        long MINCOST = Long.MAX_VALUE;
+        boolean grouped = !sqlquery.getGroupByList().isEmpty() || rip.hasAggregates();
+        for (Operator candidate : candidates) {
+            /** The groups are not returned in the order of the joins **/
+            boolean needOrder = sqlquery.isDesc() || grouped || !candidate.isSortedOn(sqlquery.getOrderByList());
+            Operator plan = rip.prepareUpperPlan(candidate, needOrder);
+            long cost = new PlanCost().getCost(plan);
+            if (finalPlan == null || cost < MINCOST) {
+                finalPlan = plan;
+                MINCOST = cost;
+            }
+        }
+        numberJoins(finalPlan, 0);
+
+        System.out.println("---------------------------Final Plan----------------");
+        Debug.PPrint(finalPlan);
+        System.out.println("  " + MINCOST);
+        return finalPlan;
+    }
+
+    /**
+     * Tries every split of the subset into a left and a right part, joined
+     * * by every join method, keeping the cheapest plans. Only splits
+     * * connected by a join condition are tried, unless crossProduct is set,
+     * * in which case the parts are joined by a cross product. Returns
+     * * whether any plan was found
+     **/
+    private boolean joinSubsets(int subset, boolean crossProduct) {
+        boolean found = false;
+        for (int leftSet = (subset - 1) & subset; leftSet > 0; leftSet = (leftSet - 1) & subset) {
+            int rightSet = subset & ~leftSet;
+            if (bestPlan[leftSet] == null || bestPlan[rightSet] == null) {
+                continue;
+            }
+            ArrayList<Condition> conditions = connectingConditions(leftSet, rightSet);
+            if (conditions.isEmpty() != crossProduct) {
+                continue;
+            }
+            for (Operator left : plansOf(leftSet)) {
+                for (Operator right : plansOf(rightSet)) {
+                    if (crossProduct) {
+                        ArrayList<Condition> none = new ArrayList<>();
+                        none.add(new Condition(0));
+                        consider(subset, makeJoin(left, right, none, JoinType.CROSSPRODUCT));
+                    } else {
+                        for (int joinMeth = 0; joinMeth < JoinType.numJoinTypes(); ++joinMeth) {
+                            Join join = makeJoin(left, right, conditions, joinMeth);
+                            if (joinMeth == JoinType.INDEXNESTED && !PlanCost.hasJoinIndex(join)) {
+                                continue;
+                            }
+                            consider(subset, join);
+                        }
+                    }
+                    found = true;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Keeps the plan if it is the cheapest of the subset so far,
+     * * or the cheapest of the subset producing an interesting order
+     **/
+    private void consider(int subset, Join plan) {
+        long cost = new PlanCost().getCost(plan);
+        if (cost < bestCost[subset]) {
+            bestPlan[subset] = plan;
+            bestCost[subset] = cost;
+        }
+        for (int k = 0; k < orders.size(); ++k) {
+            if (cost < bestOrderedCost[k][subset] && plan.isSortedOn(orders.get(k))) {
+                bestOrderedPlan[k][subset] = plan;
+                bestOrderedCost[k][subset] = cost;
+            }
+        }
+    }
+
+    /**
+     * The kept plans of a subset: the cheapest one and the ordered ones
+     **/
+    private ArrayList<Operator> plansOf(int subset) {
+        ArrayList<Operator> plans = new ArrayList<>();
+        plans.add(bestPlan[subset]);
+        for (int k = 0; k < orders.size(); ++k) {
+            Operator plan = bestOrderedPlan[k][subset];
+            if (plan != null && !plans.contains(plan)) {
+                plans.add(plan);
+            }
+        }
+        return plans;
+    }
+
+    private Join makeJoin(Operator left, Operator right, ArrayList<Condition> conditions, int joinMeth) {
+        Join jn = new Join(left, right, conditions, OpType.JOIN);
+        jn.setSchema(left.getSchema().joinWith(right.getSchema()));
+        jn.setJoinType(joinMeth);
+        return jn;
+    }
+
+    /**
+     * Join conditions between a table of the left set and a table of the
+     * * right set, oriented so that the left hand side is in the left set
+     **/
+    private ArrayList<Condition> connectingConditions(int leftSet, int rightSet) {
+        ArrayList<Condition> conditions = new ArrayList<>();
+        for (Condition cn : joinlist) {
+            int lhsTable = 1 << fromlist.indexOf(cn.getLhs().getTabName());
+            int rhsTable = 1 << fromlist.indexOf(((Attribute) cn.getRhs()).getTabName());
+            if ((lhsTable & leftSet) != 0 && (rhsTable & rightSet) != 0) {
+                conditions.add((Condition) cn.clone());
+            } else if ((rhsTable & leftSet) != 0 && (lhsTable & rightSet) != 0) {
+                conditions.add(cn.getFlippedCondition());
+            }
+        }
+        return conditions;
+    }
+
+    /**
+     * Numbers the joins of the plan, returns the next number to use
+     **/
+    private int numberJoins(Operator node, int num) {
+        if (node.getOpType() == OpType.JOIN) {
+            num = numberJoins(((Join) node).getLeft(), num);
+            num = numberJoins(((Join) node).getRight(), num);
+            ((Join) node).setNodeIndex(num);
+            return num + 1;
+        } else if (node.getOpType() == OpType.SELECT) {
+            return numberJoins(((Select) node).getBase(), num);
+        } else if (node.getOpType() == OpType.PROJECT) {
+            return numberJoins(((Project) node).getBase(), num);
+        } else if (node.getOpType() == OpType.GROUPBY) {
+            return numberJoins(((GroupBy) node).getBase(), num);
+        } else if (node.getOpType() == OpType.ORDER) {
+            return numberJoins(((Order) node).getBase(), num);
+        } else if (node.getOpType() == OpType.TOPK) {
+            return numberJoins(((TopK) node).getBase(), num);
+        } else if (node.getOpType() == OpType.DISTINCT) {
+            return numberJoins(((Distinct) node).getBase(), num);
+        }
+        return num;
+    }
+}
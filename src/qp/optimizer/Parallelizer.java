@@ -0,0 +1,191 @@
+/**
+ * Puts exchanges into an execution plan so that it runs on several threads
+ **/
+
+package qp.optimizer;
+
+import qp.operators.*;
+import qp.utils.Attribute;
+import qp.utils.Condition;
+import qp.utils.SQLQuery;
+
+import java.util.ArrayList;
+
+/**
+ * The parts of the plan that can be split are run as dop instances (see
+ * Exchange), each on a part of the data, and gathered by an exchange with
+ * a single consumer. The instances of a scan read a part of the pages of
+ * the table each. The inputs of a join are repartitioned on a hash of the
+ * join attributes, so that the tuples that join meet in the same instance,
+ * and those of a group by or a distinct on a hash of the grouping
+ * attributes. A cross product gets all the right input in every instance.
+ * An input that cannot be split, a scan of the columns or of an index, is
+ * run once and its pages are dealt round robin, or repartitioned.
+ *
+ * Order, TopK and a group by without grouping attributes need all their
+ * input in one instance, they stay above a gather of their input.
+ *
+ * The buffers of a join or an aggregation are shared by its instances, so
+ * that the plan uses no more buffers than the serial one, and so are the
+ * pages a scan reads ahead.
+ */
+public class Parallelizer {
+
+    /**
+     * Estimated number of page I/Os of the plan per instance below which
+     * * starting more threads does not pay off
+     **/
+    public static final int MIN_PAGES_PER_WORKER = 64;
+
+    int dop;  // Number of instances of the parts of the plan run in parallel
+
+    Parallelizer(int dop) {
+        this.dop = dop;
+    }
+
+    /**
+     * Returns the plan run on up to numThreads threads, as many as its
+     * * estimated cost and the buffers allow, or the plan itself if it is
+     * * run on a single thread
+     **/
+    public static Operator parallelize(Operator root, SQLQuery sqlquery, int numThreads) {
+        long dop = Math.min(numThreads, new PlanCost().getCost(root) / MIN_PAGES_PER_WORKER);
+        int numbuff = BufferManager.getBuffersPerJoin();
+        if (numbuff > 0) {
+            dop = Math.min(dop, numbuff / 3);
+        }
+        if (dop < 2) {
+            return root;
+        }
+        return makeParallelPlan(root, sqlquery, (int) dop);
+    }
+
+    /**
+     * Returns a copy of the plan whose parts are run as dop instances
+     **/
+    public static Operator makeParallelPlan(Operator root, SQLQuery sqlquery, int dop) {
+        Operator plan = new Parallelizer(dop).serial((Operator) root.clone());
+        /** The joins may return the tuples in the ORDER BY order, which the exchanges do not keep **/
+        ArrayList<Attribute> order = sqlquery.getOrderByList();
+        if (!order.isEmpty() && root.isSortedOn(order) && !plan.isSortedOn(order)) {
+            return root;
+        }
+        return plan;
+    }
+
+    /**
+     * Whether the instances of the plan can each be run on a part of the
+     * * data, with exchanges below the plan where needed
+     **/
+    static boolean canSplit(Operator node) {
+        int optype = node.getOpType();
+        if (optype == OpType.SCAN) {
+            return !(node instanceof ColumnScan);
+        } else if (optype == OpType.SELECT) {
+            return canSplit(((Select) node).getBase());
+        } else if (optype == OpType.PROJECT) {
+            return canSplit(((Project) node).getBase());
+        } else if (optype == OpType.GROUPBY) {
+            return !((GroupBy) node).getGroupByList().isEmpty();
+        } else {
+            return optype == OpType.JOIN || optype == OpType.DISTINCT;
+        }
+    }
+
+    /**
+     * The plan run once, on the tuples gathered from the instances of the
+     * * parts below it that can be split
+     **/
+    Operator serial(Operator node) {
+        if (canSplit(node)) {
+            return new Exchange(split(node), Exchange.ROUND_ROBIN, null, dop, 1);
+        }
+        int optype = node.getOpType();
+        if (optype == OpType.SELECT) {
+            ((Select) node).setBase(serial(((Select) node).getBase()));
+        } else if (optype == OpType.PROJECT) {
+            ((Project) node).setBase(serial(((Project) node).getBase()));
+        } else if (optype == OpType.GROUPBY) {
+            ((GroupBy) node).setBase(serial(((GroupBy) node).getBase()));
+        } else if (optype == OpType.ORDER) {
+            ((Order) node).setBase(serial(((Order) node).getBase()));
+        } else if (optype == OpType.TOPK) {
+            ((TopK) node).setBase(serial(((TopK) node).getBase()));
+        }
+        return node;
+    }
+
+    /**
+     * The plan of one of the dop instances, of a plan that can be split
+     **/
+    Operator split(Operator node) {
+        int optype = node.getOpType();
+        if (optype == OpType.SELECT) {
+            ((Select) node).setBase(split(((Select) node).getBase()));
+        } else if (optype == OpType.PROJECT) {
+            ((Project) node).setBase(split(((Project) node).getBase()));
+        } else if (optype == OpType.JOIN) {
+            Join join = (Join) node;
+            join.setNumBuff(Math.max(3, join.getNumBuff() / dop));
+            if (join.getJoinType() == JoinType.INDEXNESTED) {
+                /** The right input is not run, the index is probed for every left tuple **/
+                join.setLeft(spread(join.getLeft()));
+            } else if (join.getJoinType() == JoinType.CROSSPRODUCT || join.getConditionList().isEmpty()) {
+                join.setLeft(spread(join.getLeft()));
+                join.setRight(broadcast(join.getRight()));
+            } else {
+                ArrayList<Attribute> leftKeys = new ArrayList<>();
+                ArrayList<Attribute> rightKeys = new ArrayList<>();
+                for (Condition con : join.getConditionList()) {
+                    leftKeys.add(con.getLhs());
+                    rightKeys.add((Attribute) con.getRhs());
+                }
+                join.setLeft(repartition(join.getLeft(), leftKeys));
+                join.setRight(repartition(join.getRight(), rightKeys));
+            }
+        } else if (optype == OpType.GROUPBY) {
+            GroupBy groupby = (GroupBy) node;
+            groupby.setNumBuff(Math.max(3, groupby.getNumBuff() / dop));
+            groupby.setBase(repartition(groupby.getBase(), groupby.getGroupByList()));
+        } else if (optype == OpType.DISTINCT) {
+            Distinct distinct = (Distinct) node;
+            distinct.setNumBuff(Math.max(3, distinct.getNumBuff() / dop));
+            distinct.setBase(repartition(distinct.getBase(), distinct.getAttrSet()));
+        } else if (optype == OpType.SCAN) {
+            Scan scan = (Scan) node;
+            scan.setPrefetch(scan.getPrefetch() / dop);
+        }
+        return node;
+    }
+
+    /**
+     * The input of an instance, any part of the tuples of the plan
+     **/
+    private Operator spread(Operator node) {
+        if (canSplit(node)) {
+            return split(node);
+        }
+        return new Exchange(serial(node), Exchange.ROUND_ROBIN, null, 1, dop);
+    }
+
+    /**
+     * The input of an instance, the tuples of the plan with the keys that
+     * * hash to the instance
+     **/
+    private Operator repartition(Operator node, ArrayList<Attribute> keys) {
+        if (canSplit(node)) {
+            return new Exchange(split(node), Exchange.HASH, keys, dop, dop);
+        }
+        return new Exchange(serial(node), Exchange.HASH, keys, 1, dop);
+    }
+
+    /**
+     * The input of an instance, all the tuples of the plan
+     **/
+    private Operator broadcast(Operator node) {
+        if (canSplit(node)) {
+            return new Exchange(split(node), Exchange.BROADCAST, null, dop, dop);
+        }
+        return new Exchange(serial(node), Exchange.BROADCAST, null, 1, dop);
+    }
+}
@@ -7,13 +7,19 @@ package qp.optimizer;
 
 import qp.operators.*;
 import qp.utils.Attribute;
+import qp.utils.BPlusTree;
 import qp.utils.Batch;
+import qp.utils.ColumnStore;
 import qp.utils.Condition;
+import qp.utils.PageFile;
 import qp.utils.Schema;
+import qp.utils.ZoneMap;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.StringTokenizer;
 
@@ -35,6 +41,26 @@ public class PlanCost {
      **/
     HashMap<Attribute, Long> ht;
 
+    /**
+     * Statistics of the tables read so far, see readStatistics
+     **/
+    static HashMap<String, long[]> statCache = new HashMap<>();
+
+    /**
+     * Zone maps of the tables read so far, see readZoneMap
+     **/
+    static HashMap<String, ZoneMap> zoneMapCache = new HashMap<>();
+
+    /**
+     * Indexes of the columns read so far, see readIndex
+     **/
+    static HashMap<String, BPlusTree> indexCache = new HashMap<>();
+
+    /**
+     * Number of pages of the table files read so far, see readNumPages
+     **/
+    static HashMap<String, Long> pageCache = new HashMap<>();
+
 
     public PlanCost() {
         ht = new HashMap<>();
@@ -42,7 +68,7 @@ public class PlanCost {
     }
 
     /**
-     * Returns the cost of the plan
+     * Returns the cost of the plan, Long.MAX_VALUE if it is not feasible
      **/
     public long getCost(Operator root) {
         cost = 0;
@@ -51,7 +77,6 @@ public class PlanCost {
         if (isFeasible) {
             return cost;
         } else {
-            System.out.println("notFeasible");
             return Long.MAX_VALUE;
         }
     }
@@ -74,14 +99,22 @@ public class PlanCost {
             return getStatistics((Select) node);
         } else if (node.getOpType() == OpType.PROJECT) {
             return getStatistics((Project) node);
+        } else if (node instanceof ColumnScan) {
+            return getStatistics((ColumnScan) node);
         } else if (node.getOpType() == OpType.SCAN) {
             return getStatistics((Scan) node);
+        } else if (node.getOpType() == OpType.INDEXSCAN) {
+            return getStatistics((IndexScan) node);
         }  else if (node.getOpType() == OpType.GROUPBY) {
             return getStatistics((GroupBy) node);
         } else if (node.getOpType() == OpType.ORDER) {
             return getStatistics((Order) node);
         } else if (node.getOpType() == OpType.DISTINCT) {
             return getStatistics((Distinct) node);
+        } else if (node.getOpType() == OpType.TOPK) {
+            return getStatistics((TopK) node);
+        } else if (node.getOpType() == OpType.EXCHANGE) {
+            return getStatistics((Exchange) node);
         }
         System.out.println("operator is not supported");
         isFeasible = false;
@@ -96,12 +129,22 @@ public class PlanCost {
         return calculateCost(node.getBase());
     }
 
+    /**
+     * An exchange passes the tuples of its base on, the pages are handed
+     * * over in memory so no I/O cost is involved
+     **/
+    protected long getStatistics(Exchange node) {
+        return calculateCost(node.getBase());
+    }
+
     /**
      * Calculates the statistics and cost of join operation
      **/
     protected long getStatistics(Join node) {
         long lefttuples = calculateCost(node.getLeft());
+        long rightcost = cost;
         long righttuples = calculateCost(node.getRight());
+        rightcost = cost - rightcost;
 
         if (!isFeasible) {
             return 0;
@@ -149,21 +192,64 @@ public class PlanCost {
 
         switch (joinType) {
             case JoinType.NESTEDJOIN:
-                joincost = leftpages * rightpages;
+                if (rightpages <= numbuff - 2) {
+                    // inner input is kept in memory, each input is read once
+                    joincost = leftpages + rightpages;
+                } else {
+                    joincost = leftpages * rightpages;
+                }
                 break;
             case JoinType.BLOCKNESTED:
+                if (rightpages <= numbuff - 2) {
+                    joincost = leftpages + rightpages;
+                    break;
+                }
                 long blocksize = numbuff - 2;
                 int leftBlockCount = (int) Math.ceil(leftpages / blocksize);
                 // cost of join = (no. of outer blocks) * scan of inner block
                 joincost = leftBlockCount * rightpages;
                 break;
             case JoinType.SORTMERGE:
-            	long leftSortCost = getExternalSortCost(leftpages, numbuff);
-            	long rightSortCost = getExternalSortCost(rightpages, numbuff);
+                /** An input already in the order of the join attributes is not sorted;
+                 ** the right one is still written once, as it is read back by page
+                 **/
+                ArrayList<Attribute> leftAttrs = new ArrayList<>();
+                ArrayList<Attribute> rightAttrs = new ArrayList<>();
+                for (Condition con : node.getConditionList()) {
+                    leftAttrs.add(con.getLhs());
+                    rightAttrs.add((Attribute) con.getRhs());
+                }
+            	long leftSortCost = node.getLeft().isSortedOn(leftAttrs) ? 0 : getExternalSortCost(leftpages, numbuff);
+            	long rightSortCost = node.getRight().isSortedOn(rightAttrs) ? rightpages : getExternalSortCost(rightpages, numbuff, true);
             	joincost = leftSortCost + rightSortCost + leftpages + rightpages; // assuming one match per tuple
             	break;
+            case JoinType.HASHJOIN:
+                if (rightpages <= numbuff - 2) {
+                    // build side fits in memory, each input is read once
+                    joincost = leftpages + rightpages;
+                } else {
+                    // Grace hash join: partition both inputs, then read each partition back
+                    joincost = 3 * (leftpages + rightpages);
+                }
+                break;
+            case JoinType.INDEXNESTED:
+                /** The right input is not read; every left tuple searches the
+                 ** index and fetches the tuples of its join value from the table
+                 **/
+                BPlusTree index = readJoinIndex(node);
+                if (index == null) {
+                    isFeasible = false;
+                    return 0;
+                }
+                cost = cost - rightcost;
+                joincost = leftpages + lefttuples * getProbeCost(node, index);
+                break;
             case JoinType.CROSSPRODUCT:
-                joincost = leftpages * rightpages;
+                if (rightpages <= numbuff - 2) {
+                    joincost = leftpages + rightpages;
+                } else {
+                    joincost = leftpages * rightpages;
+                }
                 break;
             default:
                 System.out.println("join type is not supported");
@@ -180,43 +266,72 @@ public class PlanCost {
      * * Selection is performed on the fly, so no cost involved
      **/
     protected long getStatistics(Select node) {
+        long basecost = cost;
         long intuples = calculateCost(node.getBase());
         if (!isFeasible) {
-            System.out.println("notFeasible");
             return Long.MAX_VALUE;
         }
-
-        Condition con = node.getCondition();
         Schema schema = node.getSchema();
-        Attribute attr = con.getLhs();
-        int index = schema.indexOf(attr);
-        Attribute fullattr = schema.getAttribute(index);
-        int exprtype = con.getExprType();
-
-        /** Get number of distinct values of selection attributes **/
-        long numdistinct = intuples;
-        Long temp = ht.get(fullattr);
-        numdistinct = temp.longValue();
-
-        long outtuples;
-        /** Calculate the number of tuples in result **/
-        if (exprtype == Condition.EQUAL) {
-            outtuples = (long) Math.ceil((double) intuples / (double) numdistinct);
-        } else if (exprtype == Condition.NOTEQUAL) {
-            outtuples = (long) Math.ceil(intuples - ((double) intuples / (double) numdistinct));
-        } else {
-            outtuples = (long) Math.ceil(0.5 * intuples);
+
+        /** A scan of a table with a zone map reads only the pages on which the conditions may hold **/
+        ZoneMap zoneMap = null;
+        if (node.getBase().getOpType() == OpType.SCAN) {
+            zoneMap = readZoneMap(((Scan) node.getBase()).getFileName());
         }
+        if (zoneMap != null && !(node.getBase() instanceof ColumnScan)) {
+            double pageFraction = zoneMap.pageFraction(node.getConditionList(), schema);
+            long scancost = cost - basecost;
+            cost = basecost + (long) Math.ceil(pageFraction * scancost);
+        }
+
+        return selectTuples(node.getConditionList(), schema, intuples, zoneMap);
+    }
 
-        /** Modify the number of distinct values of each attribute
-         ** Assuming the values are distributed uniformly along entire
-         ** relation
-         **/
-        for (int i = 0; i < schema.getNumCols(); ++i) {
-            Attribute attri = schema.getAttribute(i);
-            long oldvalue = ht.get(attri);
-            long newvalue = (long) Math.ceil(((double) outtuples / (double) intuples) * oldvalue);
-            ht.put(attri, outtuples);
+    /**
+     * Number of tuples out of intuples that satisfy the selection
+     * * conditions, using the zone map of the table if it is not null
+     **/
+    private long selectTuples(ArrayList<Condition> conditions, Schema schema, long intuples, ZoneMap zoneMap) {
+        /** The conditions are applied one after the other, each to the output of the previous ones **/
+        long outtuples = intuples;
+        for (Condition con : conditions) {
+            intuples = outtuples;
+            Attribute attr = con.getLhs();
+            int index = schema.indexOf(attr);
+            Attribute fullattr = schema.getAttribute(index);
+            int exprtype = con.getExprType();
+
+            /** Get number of distinct values of selection attributes **/
+            long numdistinct = intuples;
+            Long temp = ht.get(fullattr);
+            numdistinct = temp.longValue();
+
+            long selected;
+            /** Calculate the number of tuples in result **/
+            if (exprtype == Condition.EQUAL) {
+                selected = (long) Math.ceil((double) intuples / (double) numdistinct);
+            } else if (exprtype == Condition.NOTEQUAL) {
+                selected = (long) Math.ceil(intuples - ((double) intuples / (double) numdistinct));
+            } else {
+                double fraction = (zoneMap != null) ? zoneMap.rangeFraction(con, schema) : -1;
+                selected = (long) Math.ceil(((fraction >= 0) ? fraction : 0.5) * intuples);
+            }
+            /** No more tuples than on the pages on which the condition may hold **/
+            if (zoneMap != null) {
+                selected = Math.min(selected, (long) Math.ceil(zoneMap.tupleFraction(con, schema) * intuples));
+            }
+
+            /** Modify the number of distinct values of each attribute
+             ** Assuming the values are distributed uniformly along entire
+             ** relation
+             **/
+            for (int i = 0; i < schema.getNumCols(); ++i) {
+                Attribute attri = schema.getAttribute(i);
+                long oldvalue = ht.get(attri);
+                long newvalue = (long) Math.ceil(((double) selected / (double) intuples) * oldvalue);
+                ht.put(attri, selected);
+            }
+            outtuples = selected;
         }
         return outtuples;
     }
@@ -229,9 +344,184 @@ public class PlanCost {
      **/
     protected long getStatistics(Scan node) {
         String tablename = node.getTabName();
-        String filename = tablename + ".stat";
         Schema schema = node.getSchema();
         int numAttr = schema.getNumCols();
+        long[] stats = readStatistics(tablename, numAttr);
+        long numtuples = stats[0];
+        for (int i = 0; i < numAttr; ++i) {
+            Attribute attr = schema.getAttribute(i);
+            ht.put(attr, stats[i + 1]);
+        }
+
+        /** The table file has its own page size, the estimate at the page size of the query is kept if it cannot be read **/
+        long numpages = readNumPages(node.getFileName());
+        if (numpages < 0) {
+            long tuplesize = schema.getTupleSize();
+            long pagesize = Math.max(Batch.getPageSize() / tuplesize, 1);
+            numpages = (long) Math.ceil((double) numtuples / (double) pagesize);
+        }
+
+        cost = cost + numpages;
+        return numtuples;
+    }
+
+    /**
+     * A scan of the columnar layout of a table reads the pages of the
+     * * columns it returns only, each column taking the pages of its
+     * * column file
+     **/
+    protected long getStatistics(ColumnScan node) {
+        String tablename = node.getTabName();
+        Schema schema = node.getSchema();
+        int numAttr = schema.getNumCols();
+        long[] stats = readStatistics(tablename, numAttr);
+        long numtuples = stats[0];
+        for (int i = 0; i < numAttr; ++i) {
+            Attribute attr = schema.getAttribute(i);
+            ht.put(attr, stats[i + 1]);
+        }
+
+        ArrayList<Attribute> columns = node.getColumns();
+        if (columns.isEmpty()) {
+            columns = new ArrayList<>(schema.getAttList().subList(0, 1));
+        }
+        long numpages = 0;
+        for (Attribute attr : columns) {
+            Attribute column = schema.getAttribute(schema.indexOf(attr));
+            long colpages = readNumPages(ColumnStore.fileOf(tablename, column.getColName()));
+            if (colpages < 0) {
+                long colsize = Math.max(column.getAttrSize(), 1);
+                long pagesize = Math.max(Batch.getPageSize() / colsize, 1);
+                colpages = (long) Math.ceil((double) numtuples / (double) pagesize);
+            }
+            numpages += colpages;
+        }
+
+        cost = cost + numpages;
+        return numtuples;
+    }
+
+    /**
+     * The index is searched from the root to the first leaf of the range,
+     * * the leaves of the range are read, and then one table page per
+     * * tuple, as the tuples of the range are spread over the table
+     **/
+    protected long getStatistics(IndexScan node) {
+        String tablename = node.getTabName();
+        Schema schema = node.getSchema();
+        int numAttr = schema.getNumCols();
+        long[] stats = readStatistics(tablename, numAttr);
+        long numtuples = stats[0];
+        for (int i = 0; i < numAttr; ++i) {
+            Attribute attr = schema.getAttribute(i);
+            ht.put(attr, stats[i + 1]);
+        }
+
+        BPlusTree index = readIndex(tablename, node.getAttribute().getColName());
+        if (index == null) {
+            System.out.println("PlanCost: No index on " + tablename + "." + node.getAttribute().getColName());
+            isFeasible = false;
+            return 0;
+        }
+        long outtuples = selectTuples(node.getConditionList(), schema, numtuples, readZoneMap(tablename + ".tbl"));
+        double fraction = (double) outtuples / Math.max(1, index.getNumEntries());
+        long leaves = Math.max(1, (long) Math.ceil(fraction * index.getNumLeaves()));
+
+        cost = cost + (index.getHeight() - 1) + leaves + outtuples;
+        return outtuples;
+    }
+
+    /**
+     * Whether the join can be an index nested join, i.e. its right input is
+     * * a base table with an index on the right join attribute
+     **/
+    public static boolean hasJoinIndex(Join node) {
+        return readJoinIndex(node) != null;
+    }
+
+    /**
+     * The index probed by an index nested join, null if the right input is
+     * * not a base table or has no index on the right join attribute
+     **/
+    private static BPlusTree readJoinIndex(Join node) {
+        String table = IndexNestedJoin.baseTableOf(node.getRight());
+        Attribute rightattr = (Attribute) node.getCondition().getRhs();
+        if (table == null || node.getRight().getSchema().indexOf(rightattr) < 0) {
+            return null;
+        }
+        return readIndex(table, rightattr.getColName());
+    }
+
+    /**
+     * Pages read by one search of the index of an index nested join: the
+     * * internal nodes, a leaf, and one table page per tuple of the join value
+     **/
+    private long getProbeCost(Join node, BPlusTree index) {
+        String table = IndexNestedJoin.baseTableOf(node.getRight());
+        Schema schema = node.getRight().getSchema();
+        long[] stats = readStatistics(table, schema.getNumCols());
+        int column = schema.indexOf((Attribute) node.getCondition().getRhs());
+        long matches = (long) Math.ceil((double) stats[0] / Math.max(1, stats[column + 1]));
+        return (index.getHeight() - 1) + 1 + matches;
+    }
+
+    /**
+     * Reads the root and statistics of the index of a column, kept like
+     * * the statistics. Returns null if there is no index on the column
+     **/
+    private static BPlusTree readIndex(String tablename, String colname) {
+        String filename = BPlusTree.fileOf(tablename, colname);
+        if (!indexCache.containsKey(filename)) {
+            BPlusTree index = BPlusTree.forTable(tablename, colname);
+            if (index != null) {
+                index.close();
+            }
+            indexCache.put(filename, index);
+        }
+        return indexCache.get(filename);
+    }
+
+    /**
+     * Reads the number of pages of a table file from its length and the
+     * * page size in its header, kept like the statistics.
+     * * Returns -1 if the file cannot be read
+     **/
+    private static long readNumPages(String filename) {
+        if (!pageCache.containsKey(filename)) {
+            long numpages = -1;
+            PageFile file = new PageFile(filename);
+            if (new File(filename).isFile() && file.open()) {
+                numpages = file.getNumPages();
+                file.close();
+            }
+            pageCache.put(filename, numpages);
+        }
+        return pageCache.get(filename);
+    }
+
+    /**
+     * Reads the zone map of a table file, kept like the statistics.
+     * * Returns null if the table has none
+     **/
+    private static ZoneMap readZoneMap(String tblfile) {
+        if (!zoneMapCache.containsKey(tblfile)) {
+            zoneMapCache.put(tblfile, ZoneMap.forTable(tblfile));
+        }
+        return zoneMapCache.get(tblfile);
+    }
+
+    /**
+     * Reads the number of tuples and the number of distinct values of
+     * * every attribute from the statistics file of the table. The
+     * * statistics are read once and kept, as the optimizers cost many
+     * * plans over the same tables
+     **/
+    private static long[] readStatistics(String tablename, int numAttr) {
+        long[] stats = statCache.get(tablename);
+        if (stats != null) {
+            return stats;
+        }
+        String filename = tablename + ".stat";
         BufferedReader in = null;
         try {
             in = new BufferedReader(new FileReader(filename));
@@ -253,8 +543,8 @@ public class PlanCost {
             System.out.println("incorrect format of statastics file " + filename);
             System.exit(1);
         }
-        String temp = tokenizer.nextToken();
-        long numtuples = Long.parseLong(temp);
+        stats = new long[numAttr + 1];
+        stats[0] = Long.parseLong(tokenizer.nextToken());
         try {
             line = in.readLine();
         } catch (IOException io) {
@@ -267,67 +557,180 @@ public class PlanCost {
             System.exit(1);
         }
         for (int i = 0; i < numAttr; ++i) {
-            Attribute attr = schema.getAttribute(i);
-            temp = tokenizer.nextToken();
-            Long distinctValues = Long.valueOf(temp);
-            ht.put(attr, distinctValues);
+            stats[i + 1] = Long.parseLong(tokenizer.nextToken());
         }
 
-        /** Number of tuples per page**/
-        long tuplesize = schema.getTupleSize();
-        long pagesize = Math.max(Batch.getPageSize() / tuplesize, 1);
-        long numpages = (long) Math.ceil((double) numtuples / (double) pagesize);
-
-        cost = cost + numpages;
-
         try {
             in.close();
         } catch (IOException io) {
             System.out.println("error in closing the file " + filename);
             System.exit(1);
         }
-        return numtuples;
+        statCache.put(tablename, stats);
+        return stats;
     }
 
     /**
-     * Calculates the cost of a Order node
+     * Calculates the cost of a Order node, which is free
+     * * if its input is already in the order
      */
     protected long getStatistics(Order node) {
+        if (!node.getIsDesc() && node.getBase().isSortedOn(node.getOrderAttr())) {
+            return calculateCost(node.getBase());
+        }
         return getSort(node.getBase());
     }
 
     /**
-     * Calculates the cost of a Groupby node
+     * Calculates the cost of a TopK node. The bounded heap is kept in
+     * * memory; only if the k tuples do not fit is the input sorted
+     */
+    protected long getStatistics(TopK node) {
+        long intuples = calculateCost(node.getBase());
+        if (!isFeasible) {
+            return 0;
+        }
+        int numBuff = Math.max(3, BufferManager.getBuffersPerJoin());
+        boolean inOrder = !node.getIsDesc() && node.getBase().isSortedOn(node.getOrderAttr());
+        if (!inOrder && node.getK() > TopK.getCapacity(node.getSchema(), numBuff)) {
+            cost = cost + getSortCost(intuples, node.getSchema());
+        }
+        return Math.min(intuples, node.getK());
+    }
+
+    /**
+     * Calculates the cost of a Groupby node. If the input is already
+     * * sorted on the grouping attributes or the groups fit in the
+     * * buffers there is no I/O cost, otherwise the input is sorted
      */
     protected long getStatistics(GroupBy node) {
-        return getSort(node.getBase());
+        long intuples = calculateCost(node.getBase());
+        if (!isFeasible) {
+            return 0;
+        }
+        long numGroups = estimateDistinct(node.getGroupByList(), intuples);
+        int numBuff = Math.max(3, BufferManager.getBuffersPerJoin());
+        if (!node.getBase().isSortedOn(node.getGroupByList())
+                && numGroups > GroupBy.getGroupCapacity(node.getSchema(), numBuff)) {
+            cost = cost + getSortCost(intuples, node.getBase().getSchema());
+        }
+        for (Attribute attr : node.getGroupByList()) {
+            Long distinct = ht.get(attr);
+            if (distinct != null) {
+                ht.put(attr, Math.min(distinct, numGroups));
+            }
+        }
+        return numGroups;
+    }
+
+    /**
+     * Estimated number of groups of the GroupBy node
+     **/
+    public long getNumGroups(GroupBy node) {
+        cost = 0;
+        isFeasible = true;
+        long intuples = calculateCost(node.getBase());
+        return estimateDistinct(node.getGroupByList(), intuples);
+    }
+
+    /**
+     * The number of distinct values of a list of attributes is the product
+     * * of the numbers of distinct values of the attributes, and at most the
+     * * number of input tuples. An empty list has one value
+     **/
+    private long estimateDistinct(ArrayList<Attribute> attrs, long intuples) {
+        if (attrs.isEmpty()) {
+            return 1;
+        }
+        double numDistinct = 1;
+        for (Attribute attr : attrs) {
+            Long distinct = ht.get(attr);
+            numDistinct *= (distinct == null) ? intuples : distinct;
+        }
+        return (long) Math.max(1, Math.min(numDistinct, (double) intuples));
     }
 
     /**
-     * Calculates the cost of a Distinct node
+     * Calculates the cost of a Distinct node. An input already sorted on
+     * * the attributes and hashing distinct tuples that fit in the buffers
+     * * are free; hashing writes and reads the input once if every hash
+     * * partition fits. Otherwise the input is sorted
      */
     protected long getStatistics(Distinct node) {
-    	return getSort(node.getBase());
+        long intuples = calculateCost(node.getBase());
+        if (!isFeasible) {
+            return 0;
+        }
+        long numDistinct = estimateDistinct(node.getAttrSet(), intuples);
+        Schema schema = node.getBase().getSchema();
+        int numBuff = Math.max(3, BufferManager.getBuffersPerJoin());
+        long capacity = Distinct.getCapacity(schema, numBuff);
+        if (numDistinct > capacity && !node.getBase().isSortedOn(node.getAttrSet())) {
+            if (numDistinct / Distinct.getNumPartitions(numBuff) <= Distinct.getPartitionCapacity(schema, numBuff)) {
+                long pagesize = Math.max(Batch.getPageSize() / schema.getTupleSize(), 1);
+                cost = cost + 2 * (long) Math.ceil((double) intuples / (double) pagesize);
+            } else {
+                cost = cost + getSortCost(intuples, schema);
+            }
+        }
+        for (Attribute attr : node.getAttrSet()) {
+            Long distinct = ht.get(attr);
+            if (distinct != null) {
+                ht.put(attr, Math.min(distinct, numDistinct));
+            }
+        }
+        return numDistinct;
+    }
+
+    /**
+     * Estimated number of distinct tuples of the Distinct node
+     **/
+    public long getNumDistinct(Distinct node) {
+        cost = 0;
+        isFeasible = true;
+        long intuples = calculateCost(node.getBase());
+        return estimateDistinct(node.getAttrSet(), intuples);
     }
 
 
     protected long getSort(Operator node) {
         long numtuples = calculateCost(node);
-        Schema schema = node.getSchema();
+        cost = cost + getSortCost(numtuples, node.getSchema());
+        return numtuples;
+    }
+
+    /**
+     * Cost of sorting numtuples tuples of the given schema
+     **/
+    private long getSortCost(long numtuples, Schema schema) {
         long tuplesize = schema.getTupleSize();
         long pagesize = Math.max(Batch.getPageSize() / tuplesize, 1);
         long numpages = (long) Math.ceil((double) numtuples / (double) pagesize);
         int numBuff = BufferManager.getBuffersPerJoin();
-        long externalSortCost = getExternalSortCost(numpages, numBuff);
-
-        cost = cost + externalSortCost;
-        return numtuples;
+        return getExternalSortCost(numpages, numBuff);
     }
 
     private long getExternalSortCost(long numPages, long numBuff) {
-        double numSortedRuns = Math.ceil((double) numPages / (double) numBuff);
+        return getExternalSortCost(numPages, numBuff, false);
+    }
+
+    /**
+     * Cost of sorting the pages, i.e. writing the initial runs and reading
+     * * and writing every page once per merge pass. Sorting numBuff pages at
+     * * a time gives runs of numBuff pages; replacement selection keeps
+     * * numBuff-2 pages in its heap and gives runs of twice that on average.
+     * * The last merge pass is only read, as its tuples go straight to the
+     * * consumer, unless the sorted file is materialized for random access
+     **/
+    private long getExternalSortCost(long numPages, long numBuff, boolean materialized) {
+        double runLength = (ExternalSort.getRunGeneration() == ExternalSort.REPLACEMENT_SELECTION)
+                ? 2.0 * Math.max(1, numBuff - 2)
+                : (double) numBuff;
+        double numSortedRuns = Math.max(1, Math.ceil((double) numPages / runLength));
         long numMergePass = (long) Math.ceil(Math.log(numSortedRuns) / Math.log(numBuff - 1));
-        long cost = 2 * numPages * (1+numMergePass);
-        return cost;
+        if (materialized) {
+            return 2 * numPages * (1 + numMergePass);
+        }
+        return 2 * numPages * Math.max(1, numMergePass);
     }
 }
@@ -49,24 +49,60 @@ public class RandomInitialPlan {
      * prepare initial plan for the query
      **/
     public Operator prepareInitialPlan() {
-        tab_op_hash = new HashMap<>();
-        createScanOp();
-        createSelectOp();
+        prepareBasePlans();
         if (numJoin != 0) {
             createJoinOp();
         } else if (fromlist.size() > 1) {
         	createCrossProductOp();
         }
-        
-        if (sqlquery.getOrderByList().size() > 0) {
-            createOrderByOp();
-        }
-        if (sqlquery.getGroupByList().size() > 0) {
+        return prepareUpperPlan(root, true);
+    }
+
+    /**
+     * Creates the scan and selection operators of every table,
+     * * and returns the mapping from table name to its operator
+     **/
+    public HashMap<String, Operator> prepareBasePlans() {
+        tab_op_hash = new HashMap<>();
+        createScanOp();
+        createSelectOp();
+        return tab_op_hash;
+    }
+
+    /**
+     * Puts the operators above the joins on top of the given plan.
+     * * The Order operator is left out if needOrder is false, i.e. the
+     * * plan already produces its tuples in the ORDER BY order
+     **/
+    public Operator prepareUpperPlan(Operator base, boolean needOrder) {
+        root = base;
+        if (sqlquery.getGroupByList().size() > 0 || hasAggregates()) {
             createGroupByOp();
         }
+        /** With a limit and no duplicates to remove afterwards, only the top tuples are ordered **/
+        boolean topK = sqlquery.hasLimit() && !sqlquery.isDistinct();
+        /** Removing the duplicates does not keep the order of its input, the distinct tuples are ordered **/
+        boolean orderDistinct = sqlquery.isDistinct() && orderbylist != null && !orderbylist.isEmpty()
+                && projectlist != null && !projectlist.isEmpty() && projectlist.containsAll(orderbylist);
+        if (needOrder && sqlquery.getOrderByList().size() > 0 && !orderDistinct) {
+            if (topK) {
+                createTopKOp(orderbylist);
+            } else {
+                createOrderByOp();
+            }
+        } else if (topK) {
+            createTopKOp(new ArrayList<>());
+        }
         createProjectOp();
         if (sqlquery.isDistinct()) {
     		createDistinctOp();
+    		if (orderDistinct && sqlquery.hasLimit()) {
+    		    createTopKOp(orderbylist);
+    		} else if (orderDistinct) {
+    		    createOrderByOp();
+    		} else if (sqlquery.hasLimit()) {
+    		    createTopKOp(new ArrayList<>());
+    		}
     	}
         return root;
     }
@@ -80,23 +116,33 @@ public class RandomInitialPlan {
         Scan tempop = null;
         for (int i = 0; i < numtab; ++i) {  // For each table in from list
             String tabname = fromlist.get(i);
-            Scan op1 = new Scan(tabname, OpType.SCAN);
-            tempop = op1;
 
             /** Read the schema of the table from tablename.md file
              ** md stands for metadata
              **/
             String filename = tabname + ".md";
+            Schema schm = null;
             try {
                 ObjectInputStream _if = new ObjectInputStream(new FileInputStream(filename));
-                Schema schm = (Schema) _if.readObject();
-                op1.setSchema(schm);
+                schm = (Schema) _if.readObject();
                 _if.close();
             } catch (Exception e) {
                 System.err.println("RandomInitialPlan:Error reading Schema of the table " + filename);
                 System.err.println(e);
                 System.exit(1);
             }
+
+            /** A table with a columnar layout is read through the columns the query refers to only **/
+            ArrayList<Attribute> columns = columnsOf(tabname, schm);
+            Scan op1;
+            if (columns.size() < schm.getNumCols() && ColumnStore.exists(tabname, schm)) {
+                op1 = new ColumnScan(tabname, columns, OpType.SCAN);
+            } else {
+                op1 = new Scan(tabname, OpType.SCAN);
+            }
+            op1.setSchema(schm);
+            op1.setPrefetch(AsyncIO.depthFor(BufferManager.getReadAheadPerScan()));
+            tempop = op1;
             tab_op_hash.put(tabname, op1);
         }
 
@@ -112,21 +158,69 @@ public class RandomInitialPlan {
 
     }
 
+    /**
+     * Columns of the table the query refers to, in schema order: in the
+     * * select list (all of them if it is empty), the conditions, and
+     * * the GROUP BY and ORDER BY lists
+     **/
+    private ArrayList<Attribute> columnsOf(String tabname, Schema schema) {
+        ArrayList<Attribute> used = new ArrayList<>();
+        if (projectlist == null || projectlist.isEmpty()) {
+            return schema.getAttList();
+        }
+        for (Attribute attr : projectlist) {
+            used.add(attr.getBaseAttribute());
+        }
+        for (Condition cn : sqlquery.getConditionList()) {
+            used.add(cn.getLhs());
+            if (cn.getRhs() instanceof Attribute) {
+                used.add((Attribute) cn.getRhs());
+            }
+        }
+        used.addAll(groupbylist);
+        used.addAll(orderbylist);
+
+        ArrayList<Attribute> columns = new ArrayList<>();
+        for (Attribute attr : schema.getAttList()) {
+            if (attr.getTabName().equals(tabname) && used.contains(attr)) {
+                columns.add(attr);
+            }
+        }
+        return columns;
+    }
+
     /**
      * Create Selection Operators for each of the
-     * * selection condition mentioned in Condition list
+     * * selection condition mentioned in Condition list.
+     * * All the selection conditions on a table go in one Select,
+     * * which evaluates them together in a single pass
      **/
     public void createSelectOp() {
         Select op1 = null;
+        HashMap<String, Select> tab_sel_hash = new HashMap<>();
         for (int j = 0; j < selectionlist.size(); ++j) {
             Condition cn = selectionlist.get(j);
             if (cn.getOpType() == Condition.SELECT) {
                 String tabname = cn.getLhs().getTabName();
+                if (tab_sel_hash.containsKey(tabname)) {
+                    op1 = tab_sel_hash.get(tabname);
+                    op1.getConditionList().add(cn);
+                    continue;
+                }
                 Operator tempop = (Operator) tab_op_hash.get(tabname);
                 op1 = new Select(tempop, cn, OpType.SELECT);
                 /** set the schema same as base relation **/
                 op1.setSchema(tempop.getSchema());
                 modifyHashtable(tempop, op1);
+                tab_sel_hash.put(tabname, op1);
+            }
+        }
+
+        /** Replace the scan by an index scan where it is cheaper **/
+        for (Select sel : tab_sel_hash.values()) {
+            Operator access = chooseAccessPath(sel);
+            if (access != sel) {
+                modifyHashtable(sel, access);
             }
         }
 
@@ -134,7 +228,56 @@ public class RandomInitialPlan {
          ** constructed thus far
          **/
         if (selectionlist.size() != 0)
-            root = op1;
+            root = tab_op_hash.get(op1.getCondition().getLhs().getTabName());
+    }
+
+    /**
+     * Returns the cheapest way to read the tuples of the table that satisfy
+     * * the conditions of the selection on its scan: the selection itself,
+     * * or an index scan on an indexed attribute compared with constants,
+     * * under a selection of the remaining conditions if there are any
+     **/
+    private Operator chooseAccessPath(Select sel) {
+        Scan scan = (Scan) sel.getBase();
+        Schema schema = scan.getSchema();
+        Operator best = sel;
+        long bestCost = new PlanCost().getCost(sel);
+        ArrayList<Attribute> tried = new ArrayList<>();
+        for (Condition cn : sel.getConditionList()) {
+            Attribute attr = cn.getLhs();
+            if (!IndexScan.isIndexable(cn) || tried.contains(attr)) {
+                continue;
+            }
+            tried.add(attr);
+            BPlusTree index = BPlusTree.forTable(scan.getTabName(), attr.getColName());
+            if (index == null) {
+                continue;
+            }
+            index.close();
+
+            ArrayList<Condition> keyconds = new ArrayList<>();
+            ArrayList<Condition> residual = new ArrayList<>();
+            for (Condition other : sel.getConditionList()) {
+                if (IndexScan.isIndexable(other) && other.getLhs().equals(attr)) {
+                    keyconds.add(other);
+                } else {
+                    residual.add(other);
+                }
+            }
+            Operator plan = new IndexScan(scan.getTabName(), schema.getAttribute(schema.indexOf(attr)), keyconds, OpType.INDEXSCAN);
+            plan.setSchema(schema);
+            if (!residual.isEmpty()) {
+                Select rest = new Select(plan, residual, OpType.SELECT);
+                rest.setSchema(schema);
+                plan = rest;
+            }
+            long cost = new PlanCost().getCost(plan);
+            if (cost < bestCost) {
+                best = plan;
+                bestCost = cost;
+            }
+        }
+        return best;
     }
 
     /**
@@ -163,9 +306,12 @@ public class RandomInitialPlan {
             Schema newsche = left.getSchema().joinWith(right.getSchema());
             jn.setSchema(newsche);
 
-            /** randomly select a join type**/
+            /** randomly select a join type, an index nested join only if the right input has an index**/
             int numJMeth = JoinType.numJoinTypes();
             int joinMeth = RandNumb.randInt(0, numJMeth - 1);
+            while (joinMeth == JoinType.INDEXNESTED && !PlanCost.hasJoinIndex(jn)) {
+                joinMeth = RandNumb.randInt(0, numJMeth - 1);
+            }
             jn.setJoinType(joinMeth);
             modifyHashtable(left, jn);
             modifyHashtable(right, jn);
@@ -231,18 +377,37 @@ public class RandomInitialPlan {
     }
 
     /**
-     * Create GroupBy operator
+     * Whether the select list has an aggregate
+     **/
+    public boolean hasAggregates() {
+        if (projectlist == null) {
+            return false;
+        }
+        for (Attribute attr : projectlist) {
+            if (attr.getAggType() != Attribute.NONE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Create GroupBy operator, which also computes the aggregates
+     * * of the select list. Without a GROUP BY clause the whole
+     * * input is one group
      **/
     public void createGroupByOp() {
         Operator base = root;
         if (groupbylist == null) {
             groupbylist = new ArrayList<Attribute>();
         }
-        if (!groupbylist.isEmpty()) {
-            root = new GroupBy(base, groupbylist, OpType.GROUPBY);
-            ((GroupBy) root).setNumBuff(BufferManager.getBuffersPerJoin());
-            root.setSchema(base.getSchema());
+        if (projectlist == null) {
+            projectlist = new ArrayList<Attribute>();
         }
+        GroupBy op = new GroupBy(base, groupbylist, projectlist, OpType.GROUPBY);
+        op.setNumBuff(BufferManager.getBuffersPerJoin());
+        op.setSchema(base.getSchema().subSchema(op.getOutList()));
+        root = op;
     }
 
     public void createOrderByOp() {
@@ -256,6 +421,17 @@ public class RandomInitialPlan {
         }
     }
 
+    /**
+     * Create TopK operator returning the first LIMIT tuples in the
+     * * order of the given attributes, or in the input order if empty
+     **/
+    public void createTopKOp(ArrayList<Attribute> attrs) {
+        Operator base = root;
+        root = new TopK(base, attrs, OpType.TOPK, sqlquery.isDesc(), sqlquery.getLimit());
+        ((TopK) root).setNumBuff(BufferManager.getBuffersPerJoin());
+        root.setSchema(base.getSchema());
+    }
+
     /**
      * Create Distinct operator
      **/
@@ -67,6 +67,19 @@ public class RandomOptimizer {
                     smj.setRight(right);
                     smj.setNumBuff(numbuff);
                 	return smj;
+                case JoinType.HASHJOIN:
+                    HashJoin hj = new HashJoin((Join) node);
+                    hj.setLeft(left);
+                    hj.setRight(right);
+                    hj.setNumBuff(numbuff);
+                    return hj;
+                case JoinType.INDEXNESTED:
+                    /** The right input is not run, its table is probed through the index **/
+                    IndexNestedJoin inj = new IndexNestedJoin((Join) node);
+                    inj.setLeft(left);
+                    inj.setRight(right);
+                    inj.setNumBuff(numbuff);
+                    return inj;
                 case JoinType.CROSSPRODUCT:
                     CrossProduct cp = new CrossProduct((Join) node);
                     cp.setLeft(left);
@@ -79,17 +92,32 @@ public class RandomOptimizer {
         } else if (node.getOpType() == OpType.SELECT) {
             Operator base = makeExecPlan(((Select) node).getBase());
             ((Select) node).setBase(base);
+            /** A scan of the table skips the pages on which the conditions cannot hold **/
+            if (base.getOpType() == OpType.SCAN) {
+                ((Scan) base).setPushedConditions(((Select) node).getConditionList());
+            }
             return node;
         } else if (node.getOpType() == OpType.PROJECT) {
             Operator base = makeExecPlan(((Project) node).getBase());
             ((Project) node).setBase(base);
             return node;
         } else if (node.getOpType() == OpType.GROUPBY) {
-            Operator base = makeExecPlan(((GroupBy) node).getBase());
             // If no buffer assigned, assign a minimum of 3
-            ((GroupBy) node).setNumBuff(numbuff);
             numbuff = Math.max(3, BufferManager.getBuffersPerJoin());
+            ((GroupBy) node).setNumBuff(numbuff);
+            Operator base = makeExecPlan(((GroupBy) node).getBase());
             ((GroupBy) node).setBase(base);
+            /** An input already sorted on the grouping attributes is grouped as it comes.
+             ** Otherwise hash the groups if they are estimated to fit in the buffers, else sort
+             **/
+            long numGroups = new PlanCost().getNumGroups((GroupBy) node);
+            if (base.isSortedOn(((GroupBy) node).getGroupByList())) {
+                ((GroupBy) node).setStrategy(GroupBy.SORT);
+            } else if (numGroups <= GroupBy.getGroupCapacity(node.getSchema(), numbuff)) {
+                ((GroupBy) node).setStrategy(GroupBy.HASH);
+            } else {
+                ((GroupBy) node).setStrategy(GroupBy.SORT);
+            }
             return node;
         } else if (node.getOpType() == OpType.ORDER) {
         	Operator base = makeExecPlan(((Order) node).getBase());
@@ -98,12 +126,31 @@ public class RandomOptimizer {
         	((Order) node).setNumBuff(numbuff);
             ((Order) node).setBase(base);
             return node;
+        } else if (node.getOpType() == OpType.TOPK) {
+            Operator base = makeExecPlan(((TopK) node).getBase());
+            // If no buffer assigned, assign a minimum of 3
+            numbuff = Math.max(3, BufferManager.getBuffersPerJoin());
+            ((TopK) node).setNumBuff(numbuff);
+            ((TopK) node).setBase(base);
+            return node;
         } else if (node.getOpType() == OpType.DISTINCT) {
             // If no buffer assigned, assign a minimum of 3
             numbuff = Math.max(3, BufferManager.getBuffersPerJoin());
             ((Distinct) node).setNumBuff(numbuff);
             Operator base = makeExecPlan(((Distinct) node).getBase());
             ((Distinct) node).setBase(base);
+            /** An input already sorted on the attributes only needs its adjacent duplicates removed.
+             ** Otherwise hash if every hash partition is estimated to fit in the buffers, else sort
+             **/
+            long numDistinct = new PlanCost().getNumDistinct((Distinct) node);
+            if (base.isSortedOn(((Distinct) node).getAttrSet())) {
+                ((Distinct) node).setStrategy(Distinct.SORT);
+            } else if (numDistinct <= Distinct.getCapacity(node.getSchema(), numbuff)
+                    || numDistinct / Distinct.getNumPartitions(numbuff) <= Distinct.getPartitionCapacity(node.getSchema(), numbuff)) {
+                ((Distinct) node).setStrategy(Distinct.HASH);
+            } else {
+                ((Distinct) node).setStrategy(Distinct.SORT);
+            }
             return node;
         } else {
             return node;
@@ -231,21 +278,24 @@ public class RandomOptimizer {
     /**
      * Selects a random method choice for join wiht number joinNum
      * *  e.g., Nested loop join, Sort-Merge Join, Hash Join etc..,
-     * * returns the modified plan
+     * * returns the modified plan. An index nested join is only chosen
+     * * if there is an index on the right input
      **/
 
     protected Operator neighborMeth(Operator root, int joinNum) {
         System.out.println("------------------neighbor by method change----------------");
         int numJMeth = JoinType.numJoinTypes();
-        if (numJMeth > 1) {
-            /** find the node that is to be altered **/
-            Join node = (Join) findNodeAt(root, joinNum);
-            int prevJoinMeth = node.getJoinType();
-            int joinMeth = RandNumb.randInt(0, numJMeth - 1);
-            while (joinMeth == prevJoinMeth) {
-                joinMeth = RandNumb.randInt(0, numJMeth - 1);
+        /** find the node that is to be altered **/
+        Join node = (Join) findNodeAt(root, joinNum);
+        int prevJoinMeth = node.getJoinType();
+        ArrayList<Integer> methods = new ArrayList<>();
+        for (int joinMeth = 0; joinMeth < numJMeth; ++joinMeth) {
+            if (joinMeth != prevJoinMeth && (joinMeth != JoinType.INDEXNESTED || PlanCost.hasJoinIndex(node))) {
+                methods.add(joinMeth);
             }
-            node.setJoinType(joinMeth);
+        }
+        if (!methods.isEmpty()) {
+            node.setJoinType(methods.get(RandNumb.randInt(0, methods.size() - 1)));
         }
         return root;
     }
@@ -405,6 +455,8 @@ public class RandomOptimizer {
             return findNodeAt(((GroupBy) node).getBase(), joinNum);
         } else if (node.getOpType() == OpType.ORDER) {
             return findNodeAt(((Order) node).getBase(), joinNum);
+        } else if (node.getOpType() == OpType.TOPK) {
+            return findNodeAt(((TopK) node).getBase(), joinNum);
         } else if (node.getOpType() == OpType.DISTINCT) {
             return findNodeAt(((Distinct) node).getBase(), joinNum);
         } else {
@@ -434,11 +486,15 @@ public class RandomOptimizer {
         } else if (node.getOpType() == OpType.GROUPBY) {
             Operator base = ((GroupBy) node).getBase();
             modifySchema(base);
-            node.setSchema(base.getSchema());
+            node.setSchema(base.getSchema().subSchema(((GroupBy) node).getOutList()));
         } else if (node.getOpType() == OpType.ORDER) {
             Operator base = ((Order) node).getBase();
             modifySchema(base);
             node.setSchema(base.getSchema());
+        } else if (node.getOpType() == OpType.TOPK) {
+            Operator base = ((TopK) node).getBase();
+            modifySchema(base);
+            node.setSchema(base.getSchema());
         } else if (node.getOpType() == OpType.DISTINCT) {
             Operator base = ((Distinct) node).getBase();
             modifySchema(base);
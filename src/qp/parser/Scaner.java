@@ -238,13 +238,13 @@ public class Scaner implements java_cup.runtime.Scanner {
 		/* 25 */ YY_NO_ANCHOR,
 		/* 26 */ YY_NO_ANCHOR,
 		/* 27 */ YY_NO_ANCHOR,
-		/* 28 */ YY_NOT_ACCEPT,
+		/* 28 */ YY_NO_ANCHOR,
 		/* 29 */ YY_NO_ANCHOR,
 		/* 30 */ YY_NOT_ACCEPT,
 		/* 31 */ YY_NO_ANCHOR,
 		/* 32 */ YY_NOT_ACCEPT,
 		/* 33 */ YY_NO_ANCHOR,
-		/* 34 */ YY_NO_ANCHOR,
+		/* 34 */ YY_NOT_ACCEPT,
 		/* 35 */ YY_NO_ANCHOR,
 		/* 36 */ YY_NO_ANCHOR,
 		/* 37 */ YY_NO_ANCHOR,
@@ -284,44 +284,52 @@ public class Scaner implements java_cup.runtime.Scanner {
 		/* 71 */ YY_NO_ANCHOR,
 		/* 72 */ YY_NO_ANCHOR,
 		/* 73 */ YY_NO_ANCHOR,
-		/* 74 */ YY_NO_ANCHOR
+		/* 74 */ YY_NO_ANCHOR,
+		/* 75 */ YY_NO_ANCHOR,
+		/* 76 */ YY_NO_ANCHOR,
+		/* 77 */ YY_NO_ANCHOR,
+		/* 78 */ YY_NO_ANCHOR,
+		/* 79 */ YY_NO_ANCHOR,
+		/* 80 */ YY_NO_ANCHOR
 	};
 	private int yy_cmap[] = unpackFromString(1,130,
 "0:9,24:2,0,24:2,0:18,28,29,27,30:4,32,35,36,23,30,34,30,40,30,26:10,30:2,38" +
 ",37,39,30:2,18,15,4,17,2,6,12,11,20,25:2,3,9,21,8,14,25,7,1,5,13,22,10,19,1" +
 "6,25,30,31,30:2,25,30,25:13,33,25:5,33,25:6,30:4,0,41:2")[0];
 
-	private int yy_rmap[] = unpackFromString(1,75,
-"0,1,2,3,2:4,4,5,2:6,6:12,7,8,9,6,10,11,12,13,14,15,16,17,18,19,20,21,22,23," +
-"24,25,26,27,28,29,30,31,32,33,34,35,36,6,37,38,39,40,41,42,43,44,45,46,47,4" +
-"8,49,50,51")[0];
+	private int yy_rmap[] = unpackFromString(1,81,
+"0,1,2,3,4,2:4,5,6,2:6,7:13,8,9,10,7,11,12,13,14,15,16,17,18,19,20,21,22,23," +
+"24,25,26,27,28,29,30,31,32,33,34,35,36,37,38,39,40,7,41,42,43,44,45,46,47,4" +
+"8,49,50,51,52,53,54,55,56")[0];
 
-	private int yy_nxt[][] = unpackFromString(52,42,
-"-1,1,59:2,65,59,66,59,67,68,69,59,70,59:4,71,72,59:4,2,3,59,-1,28,3,30,-1:3" +
-",59,4,5,6,7,8,9,10,11,-1,59,73,59:10,29,59:9,-1:2,59,31,-1:6,59,-1:74,3,-1:" +
-"3,3,-1:50,14,-1:41,15,-1:5,59:22,-1:2,59,31,-1:6,59,-1:9,28:23,-1,28:2,12,2" +
-"8:3,32,-1,28:8,-1:2,59:8,16,59:13,-1:2,59,31,-1:6,59,-1:45,13,-1:31,28,-1:3" +
-",28:3,-1:9,59:12,41,59:9,-1:2,59,31,-1:6,59,-1:9,59:7,42,59:14,-1:2,59,31,-" +
-"1:6,59,-1:9,59:16,74,59:5,-1:2,59,31,-1:6,59,-1:9,59:18,17,59:3,-1:2,59,31," +
-"-1:6,59,-1:9,59:20,18,59,-1:2,59,31,-1:6,59,-1:9,59,43,59:20,-1:2,59,31,-1:" +
-"6,59,-1:9,45,59:21,-1:2,59,31,-1:6,59,-1:9,59:11,19,59:10,-1:2,59,31,-1:6,5" +
-"9,-1:9,59:20,48,59,-1:2,59,31,-1:6,59,-1:9,59:8,20,59:13,-1:2,59,31,-1:6,59" +
-",-1:9,59:6,49,59:15,-1:2,59,31,-1:6,59,-1:9,59:12,50,59:9,-1:2,59,31,-1:6,5" +
-"9,-1:9,59:3,21,59:18,-1:2,59,31,-1:6,59,-1:9,59:4,51,59:17,-1:2,59,31,-1:6," +
-"59,-1:9,59:3,52,59:18,-1:2,59,31,-1:6,59,-1:9,59:4,22,59:17,-1:2,59,31,-1:6" +
-",59,-1:9,59,23,59:20,-1:2,59,31,-1:6,59,-1:9,59:13,64,59:8,-1:2,59,31,-1:6," +
-"59,-1:9,59:19,54,59:2,-1:2,59,31,-1:6,59,-1:9,59:4,24,59:17,-1:2,59,31,-1:6" +
-",59,-1:9,59:14,55,59:7,-1:2,59,31,-1:6,59,-1:9,59:20,57,59,-1:2,59,31,-1:6," +
-"59,-1:9,59:15,25,59:6,-1:2,59,31,-1:6,59,-1:9,59:15,26,59:6,-1:2,59,31,-1:6" +
-",59,-1:9,59:3,58,59:18,-1:2,59,31,-1:6,59,-1:9,59:4,27,59:17,-1:2,59,31,-1:" +
-"6,59,-1:9,59:7,44,59:14,-1:2,59,31,-1:6,59,-1:9,59,47,59:20,-1:2,59,31,-1:6" +
-",59,-1:9,46,59:21,-1:2,59,31,-1:6,59,-1:9,59:6,53,59:15,-1:2,59,31,-1:6,59," +
-"-1:9,59:14,56,59:7,-1:2,59,31,-1:6,59,-1:9,59:7,33,59:14,-1:2,59,31,-1:6,59" +
-",-1:9,59:6,34,59:15,-1:2,59,31,-1:6,59,-1:9,59:6,35,59:15,-1:2,59,31,-1:6,5" +
-"9,-1:9,59:17,36,59,37,59:2,-1:2,59,31,-1:6,59,-1:9,59:10,38,59:11,-1:2,59,3" +
-"1,-1:6,59,-1:9,59:6,60,59:15,-1:2,59,31,-1:6,59,-1:9,59,39,59:17,62,59:2,-1" +
-":2,59,31,-1:6,59,-1:9,59:21,40,-1:2,59,31,-1:6,59,-1:9,59:2,61,59:19,-1:2,5" +
-"9,31,-1:6,59,-1:9,59,63,59:20,-1:2,59,31,-1:6,59,-1:8");
+	private int yy_nxt[][] = unpackFromString(57,42,
+"-1,1,64,70,71,64,72,64,73,74,75,64,76,64:4,77,78,64:4,2,3,64,4,30,3,32,-1:3" +
+",64,5,6,7,8,9,10,11,12,-1,64,79,64:10,31,64:9,-1:2,64,33,-1:6,64,-1:74,3,-1" +
+":3,3,-1:39,4,-1:52,15,-1:41,16,-1:5,64:22,-1:2,64,33,-1:6,64,-1:9,30:23,-1," +
+"30:2,13,30:3,34,-1,30:8,-1:2,64:8,17,64:13,-1:2,64,33,-1:6,64,-1:45,14,-1:3" +
+"1,30,-1:3,30:3,-1:9,64:8,44,64:13,-1:2,64,33,-1:6,64,-1:9,64:12,45,64:9,-1:" +
+"2,64,33,-1:6,64,-1:9,64:7,46,64:14,-1:2,64,33,-1:6,64,-1:9,64:16,80,64:5,-1" +
+":2,64,33,-1:6,64,-1:9,64:18,18,64:3,-1:2,64,33,-1:6,64,-1:9,64:20,19,64,-1:" +
+"2,64,33,-1:6,64,-1:9,64,47,64:20,-1:2,64,33,-1:6,64,-1:9,49,64:21,-1:2,64,3" +
+"3,-1:6,64,-1:9,64:11,20,64:10,-1:2,64,33,-1:6,64,-1:9,64:19,52,64:2,-1:2,64" +
+",33,-1:6,64,-1:9,64:20,53,64,-1:2,64,33,-1:6,64,-1:9,64:8,21,64:13,-1:2,64," +
+"33,-1:6,64,-1:9,64:6,54,64:15,-1:2,64,33,-1:6,64,-1:9,64:12,55,64:9,-1:2,64" +
+",33,-1:6,64,-1:9,64:3,22,64:18,-1:2,64,33,-1:6,64,-1:9,64:4,56,64:17,-1:2,6" +
+"4,33,-1:6,64,-1:9,64:3,57,64:18,-1:2,64,33,-1:6,64,-1:9,64:4,23,64:17,-1:2," +
+"64,33,-1:6,64,-1:9,64:4,24,64:17,-1:2,64,33,-1:6,64,-1:9,64,25,64:20,-1:2,6" +
+"4,33,-1:6,64,-1:9,64:13,69,64:8,-1:2,64,33,-1:6,64,-1:9,64:19,59,64:2,-1:2," +
+"64,33,-1:6,64,-1:9,64:4,26,64:17,-1:2,64,33,-1:6,64,-1:9,64:14,60,64:7,-1:2" +
+",64,33,-1:6,64,-1:9,64:20,62,64,-1:2,64,33,-1:6,64,-1:9,64:15,27,64:6,-1:2," +
+"64,33,-1:6,64,-1:9,64:15,28,64:6,-1:2,64,33,-1:6,64,-1:9,64:3,63,64:18,-1:2" +
+",64,33,-1:6,64,-1:9,64:4,29,64:17,-1:2,64,33,-1:6,64,-1:9,64:7,48,64:14,-1:" +
+"2,64,33,-1:6,64,-1:9,64,51,64:20,-1:2,64,33,-1:6,64,-1:9,50,64:21,-1:2,64,3" +
+"3,-1:6,64,-1:9,64:6,58,64:15,-1:2,64,33,-1:6,64,-1:9,64:14,61,64:7,-1:2,64," +
+"33,-1:6,64,-1:9,64:19,35,64:2,-1:2,64,33,-1:6,64,-1:9,64:7,36,64:14,-1:2,64" +
+",33,-1:6,64,-1:9,64:6,37,64:15,-1:2,64,33,-1:6,64,-1:9,64:6,38,64:15,-1:2,6" +
+"4,33,-1:6,64,-1:9,64:17,39,64,40,64:2,-1:2,64,33,-1:6,64,-1:9,64:10,41,64:1" +
+"1,-1:2,64,33,-1:6,64,-1:9,64:6,65,64:15,-1:2,64,33,-1:6,64,-1:9,64,42,64:17" +
+",67,64:2,-1:2,64,33,-1:6,64,-1:9,64:21,43,-1:2,64,33,-1:6,64,-1:9,64:2,66,6" +
+"4:19,-1:2,64,33,-1:6,64,-1:9,64,68,64:20,-1:2,64,33,-1:6,64,-1:8");
 
 	public java_cup.runtime.Symbol next_token ()
 		throws java.io.IOException {
@@ -388,192 +396,192 @@ public class Scaner implements java_cup.runtime.Scanner {
 					case -4:
 						break;
 					case 4:
-						{
-  yybegin(NEGATE); 
-  return new Symbol(sym.COMMA, yyline,yychar,new TokenValue(yytext())); 
+						{ 
+  yybegin(YYINITIAL);
+  return new Symbol(sym.INTLIT,yyline,yychar,new TokenValue(yytext())); 
 }
 					case -5:
 						break;
 					case 5:
 						{
   yybegin(NEGATE); 
-  return new Symbol(sym.LEFTBRACKET, yyline,yychar,new TokenValue(yytext())); 
+  return new Symbol(sym.COMMA, yyline,yychar,new TokenValue(yytext())); 
 }
 					case -6:
 						break;
 					case 6:
 						{
   yybegin(NEGATE); 
-  return new Symbol(sym.RIGHTBRACKET, yyline,yychar,new TokenValue(yytext())); 
+  return new Symbol(sym.LEFTBRACKET, yyline,yychar,new TokenValue(yytext())); 
 }
 					case -7:
 						break;
 					case 7:
 						{
   yybegin(NEGATE); 
-  return new Symbol(sym.EQUAL, yyline,yychar,new TokenValue(yytext()));
+  return new Symbol(sym.RIGHTBRACKET, yyline,yychar,new TokenValue(yytext())); 
 }
 					case -8:
 						break;
 					case 8:
-						{ 
-  yybegin(NEGATE);
-  return new Symbol(sym.LESSTHAN,yyline,yychar,new TokenValue(yytext()));
+						{
+  yybegin(NEGATE); 
+  return new Symbol(sym.EQUAL, yyline,yychar,new TokenValue(yytext()));
 }
 					case -9:
 						break;
 					case 9:
 						{ 
   yybegin(NEGATE);
-  return new Symbol(sym.GREATERTHAN,yyline,yychar,new TokenValue(yytext()));
+  return new Symbol(sym.LESSTHAN,yyline,yychar,new TokenValue(yytext()));
 }
 					case -10:
 						break;
 					case 10:
-						{
-  yybegin(YYINITIAL);
-  return new Symbol(sym.DOT,yyline,yychar,new TokenValue(yytext()));
+						{ 
+  yybegin(NEGATE);
+  return new Symbol(sym.GREATERTHAN,yyline,yychar,new TokenValue(yytext()));
 }
 					case -11:
 						break;
 					case 11:
-						
+						{
+  yybegin(YYINITIAL);
+  return new Symbol(sym.DOT,yyline,yychar,new TokenValue(yytext()));
+}
 					case -12:
 						break;
 					case 12:
-						{ 
-  yybegin(YYINITIAL); 
-  return new Symbol(sym.STRINGLIT,yyline,yychar, new TokenValue(yytext().substring(1,yytext().length()-1))); 
-}
+						
 					case -13:
 						break;
 					case 13:
 						{ 
-  yybegin(NEGATE);
-  return new Symbol(sym.NOTEQUAL, yyline,yychar,new TokenValue(yytext()));
+  yybegin(YYINITIAL); 
+  return new Symbol(sym.STRINGLIT,yyline,yychar, new TokenValue(yytext().substring(1,yytext().length()-1))); 
 }
 					case -14:
 						break;
 					case 14:
 						{ 
   yybegin(NEGATE);
-  return new Symbol(sym.LTOE,yyline,yychar,new TokenValue(yytext()));
+  return new Symbol(sym.NOTEQUAL, yyline,yychar,new TokenValue(yytext()));
 }
 					case -15:
 						break;
 					case 15:
 						{ 
   yybegin(NEGATE);
-  return new Symbol(sym.GTOE, yyline,yychar,new TokenValue(yytext()));
+  return new Symbol(sym.LTOE,yyline,yychar,new TokenValue(yytext()));
 }
 					case -16:
 						break;
 					case 16:
-						{
-  yybegin(YYINITIAL);
-  return new Symbol(sym.SUM,yyline,yychar,new TokenValue(yytext()));
+						{ 
+  yybegin(NEGATE);
+  return new Symbol(sym.GTOE, yyline,yychar,new TokenValue(yytext()));
 }
 					case -17:
 						break;
 					case 17:
 						{
   yybegin(YYINITIAL);
-  return new Symbol(sym.MAX,yyline,yychar,new TokenValue(yytext()));
+  return new Symbol(sym.SUM,yyline,yychar,new TokenValue(yytext()));
 }
 					case -18:
 						break;
 					case 18:
 						{
   yybegin(YYINITIAL);
-  return new Symbol(sym.MIN,yyline,yychar,new TokenValue(yytext()));
+  return new Symbol(sym.MAX,yyline,yychar,new TokenValue(yytext()));
 }
 					case -19:
 						break;
 					case 19:
 						{
   yybegin(YYINITIAL);
-  return new Symbol(sym.AVG,yyline,yychar,new TokenValue(yytext()));
+  return new Symbol(sym.MIN,yyline,yychar,new TokenValue(yytext()));
 }
 					case -20:
 						break;
 					case 20:
 						{
   yybegin(YYINITIAL);
-  return new Symbol(sym.FROM,yyline,yychar,new TokenValue(yytext()));
+  return new Symbol(sym.AVG,yyline,yychar,new TokenValue(yytext()));
 }
 					case -21:
 						break;
 					case 21:
 						{
   yybegin(YYINITIAL);
-  return new Symbol(sym.DESC,yyline,yychar,new TokenValue(yytext()));
+  return new Symbol(sym.FROM,yyline,yychar,new TokenValue(yytext()));
 }
 					case -22:
 						break;
 					case 22:
 						{
   yybegin(YYINITIAL);
-  return new Symbol(sym.COUNT,yyline,yychar,new TokenValue(yytext()));
+  return new Symbol(sym.DESC,yyline,yychar,new TokenValue(yytext()));
 }
 					case -23:
 						break;
 					case 23:
 						{
   yybegin(YYINITIAL);
-  return new Symbol(sym.WHERE,yyline,yychar,new TokenValue(yytext()));
+  return new Symbol(sym.LIMIT,yyline,yychar,new TokenValue(yytext()));
 }
 					case -24:
 						break;
 					case 24:
 						{
   yybegin(YYINITIAL);
-  return new Symbol(sym.SELECT,yyline,yychar,new TokenValue(yytext()));
+  return new Symbol(sym.COUNT,yyline,yychar,new TokenValue(yytext()));
 }
 					case -25:
 						break;
 					case 25:
 						{
   yybegin(YYINITIAL);
-  return new Symbol(sym.ORDERBY,yyline,yychar,new TokenValue(yytext()));
+  return new Symbol(sym.WHERE,yyline,yychar,new TokenValue(yytext()));
 }
 					case -26:
 						break;
 					case 26:
 						{
   yybegin(YYINITIAL);
-  return new Symbol(sym.GROUPBY,yyline,yychar,new TokenValue(yytext()));
+  return new Symbol(sym.SELECT,yyline,yychar,new TokenValue(yytext()));
 }
 					case -27:
 						break;
 					case 27:
 						{
   yybegin(YYINITIAL);
-  return new Symbol(sym.DISTINCT,yyline,yychar,new TokenValue(yytext()));
+  return new Symbol(sym.ORDERBY,yyline,yychar,new TokenValue(yytext()));
 }
 					case -28:
 						break;
-					case 29:
-						{ 
+					case 28:
+						{
   yybegin(YYINITIAL);
-  return new Symbol(sym.ID,yyline,yychar,new TokenValue(yytext())); 
+  return new Symbol(sym.GROUPBY,yyline,yychar,new TokenValue(yytext()));
 }
 					case -29:
 						break;
-					case 31:
-						{ 
+					case 29:
+						{
   yybegin(YYINITIAL);
-  return new Symbol(sym.ID,yyline,yychar,new TokenValue(yytext())); 
+  return new Symbol(sym.DISTINCT,yyline,yychar,new TokenValue(yytext()));
 }
 					case -30:
 						break;
-					case 33:
+					case 31:
 						{ 
   yybegin(YYINITIAL);
   return new Symbol(sym.ID,yyline,yychar,new TokenValue(yytext())); 
 }
 					case -31:
 						break;
-					case 34:
+					case 33:
 						{ 
   yybegin(YYINITIAL);
   return new Symbol(sym.ID,yyline,yychar,new TokenValue(yytext())); 
@@ -860,6 +868,48 @@ public class Scaner implements java_cup.runtime.Scanner {
 }
 					case -72:
 						break;
+					case 75:
+						{ 
+  yybegin(YYINITIAL);
+  return new Symbol(sym.ID,yyline,yychar,new TokenValue(yytext())); 
+}
+					case -73:
+						break;
+					case 76:
+						{ 
+  yybegin(YYINITIAL);
+  return new Symbol(sym.ID,yyline,yychar,new TokenValue(yytext())); 
+}
+					case -74:
+						break;
+					case 77:
+						{ 
+  yybegin(YYINITIAL);
+  return new Symbol(sym.ID,yyline,yychar,new TokenValue(yytext())); 
+}
+					case -75:
+						break;
+					case 78:
+						{ 
+  yybegin(YYINITIAL);
+  return new Symbol(sym.ID,yyline,yychar,new TokenValue(yytext())); 
+}
+					case -76:
+						break;
+					case 79:
+						{ 
+  yybegin(YYINITIAL);
+  return new Symbol(sym.ID,yyline,yychar,new TokenValue(yytext())); 
+}
+					case -77:
+						break;
+					case 80:
+						{ 
+  yybegin(YYINITIAL);
+  return new Symbol(sym.ID,yyline,yychar,new TokenValue(yytext())); 
+}
+					case -78:
+						break;
 					default:
 						yy_error(YY_E_INTERNAL,false);
 					case -1:
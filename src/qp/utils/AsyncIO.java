@@ -0,0 +1,66 @@
+/**
+ * Threads reading pages ahead and writing pages behind for the tuple readers and writers
+ **/
+
+package qp.utils;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A TupleReader with pages to read ahead (see TupleReader.setPrefetch)
+ * reads and decodes the next pages of its file on one of these threads
+ * while the operator works on the current one, and a TupleWriter with
+ * pages to write behind (see TupleWriter.setWriteBehind) hands its full
+ * pages to one of them and goes on filling the next page.
+ *
+ * The pages read ahead or written behind are buffers of the operator: the
+ * depth set here is the most an operator uses, and an operator with a
+ * budget of buffers takes them from the budget (see depthFor).
+ */
+public class AsyncIO {
+
+    static int depth = 0;  // Pages read ahead or written behind per file, 0 for synchronous I/O
+
+    /** Threads doing the I/O, started as needed and reused once idle **/
+    static final ExecutorService threads = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "I/O worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static void setDepth(int pages) {
+        depth = Math.max(0, pages);
+    }
+
+    public static int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Number of pages to read ahead or write behind for a file, given the
+     * * number of buffers the operator can spare for it
+     **/
+    public static int depthFor(int spare) {
+        return Math.max(0, Math.min(depth, spare));
+    }
+
+    static Future<?> submit(Runnable task) {
+        return threads.submit(task);
+    }
+
+    /**
+     * Waits for the task reading or writing the file to end
+     **/
+    static void await(Future<?> task, String filename) {
+        try {
+            task.get();
+        } catch (InterruptedException | ExecutionException e) {
+            System.out.printf("%s:error in reading or writing the file ahead\n", filename);
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,395 @@
+/**
+ * B+-tree index on a column of a table file
+ **/
+
+package qp.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * The index of the column col of table tab is the file tab.col.idx. It has
+ * the same file header and page size as the table file, so its pages are
+ * read through the buffer pool like the pages of a table.
+ *
+ * Page 0 holds the root page number, the height of the tree, the number of
+ * entries and leaves, and the length of the table file the index was built
+ * from, to tell an index of an older table. The other pages are nodes
+ * starting with the kind of node, the number of entries, and the next leaf
+ * for a leaf or the first child for an internal node. A leaf entry is the
+ * key of a tuple with its record id, i.e. the page of the table file the
+ * tuple is on and its position in that page. An internal entry is the
+ * smallest key under a child followed by the child.
+ *
+ * Keys are the normalized sort keys of the column values (see SortKey), so
+ * they are compared byte by byte. Null values and NaN are not indexed, as
+ * they satisfy no selection condition, and -0.0 is indexed as 0.0, as the
+ * two are equal for the selection conditions. Entries of equal keys are in
+ * record id order. The tree is bulk loaded once from the sorted entries of
+ * the table by build, and is read only afterwards.
+ */
+public class BPlusTree {
+
+    static final int INTERNAL = 0;
+    static final int LEAF = 1;
+    static final int NODE_HEADER_SIZE = 12;  // kind of node, number of entries, next leaf or first child
+
+    static final SortKey KEY = new SortKey(new ArrayList<>(Collections.singletonList(0)));
+
+    final String filename;   // Index file
+    PageFile file;           // The open index file
+    int root;                // Page number of the root
+    int height;              // Number of levels, 1 if the root is a leaf
+    long numEntries;         // Number of indexed tuples
+    int numLeaves;           // Number of leaf pages
+    long tableLength;        // Length of the table file the index was built from
+
+    public BPlusTree(String filename) {
+        this.filename = filename;
+    }
+
+    /**
+     * Name of the index file of a column of a table
+     **/
+    public static String fileOf(String tabname, String colname) {
+        return tabname + "." + colname + ".idx";
+    }
+
+    public String getFileName() {
+        return filename;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public long getNumEntries() {
+        return numEntries;
+    }
+
+    public int getNumLeaves() {
+        return numLeaves;
+    }
+
+    /**
+     * Opens the index file and reads its root and statistics
+     **/
+    public boolean open() {
+        file = new PageFile(filename);
+        if (!file.open()) {
+            file = null;
+            return false;
+        }
+        ByteBuffer meta = ByteBuffer.wrap(BufferPool.pin(file, 0));
+        root = meta.getInt(0);
+        height = meta.getInt(4);
+        numEntries = meta.getLong(8);
+        numLeaves = meta.getInt(16);
+        tableLength = meta.getLong(20);
+        BufferPool.unpin(file, 0);
+        return true;
+    }
+
+    public boolean close() {
+        if (file != null) {
+            boolean closed = file.close();
+            file = null;
+            return closed;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of the column of the table, opened, or null if
+     * * there is none or if the table file changed after the index was built
+     **/
+    public static BPlusTree forTable(String tabname, String colname) {
+        File table = new File(tabname + ".tbl");
+        File index = new File(fileOf(tabname, colname));
+        if (!table.exists() || !index.exists() || index.lastModified() < table.lastModified()) {
+            return null;
+        }
+        BPlusTree tree = new BPlusTree(index.getPath());
+        if (!tree.open()) {
+            return null;
+        }
+        if (tree.tableLength != table.length()) {
+            tree.close();
+            return null;
+        }
+        return tree;
+    }
+
+    /**
+     * The key of a column value, null for a value that is not indexed
+     **/
+    public static byte[] keyOf(Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Float) {
+            float real = (Float) value;
+            if (Float.isNaN(real)) {
+                return null;
+            } else if (real == 0) {
+                value = 0.0f;
+            }
+        }
+        return KEY.keyOf(new Tuple(new Object[]{value}));
+    }
+
+    /**
+     * Returns a cursor on the first entry whose key is not less than the
+     * * given key, or on the first entry if the key is null
+     **/
+    public Cursor seek(byte[] key) {
+        int page = root;
+        for (int level = 1; level < height; ++level) {
+            ByteBuffer node = ByteBuffer.wrap(BufferPool.pin(file, page));
+            int count = node.getInt(4);
+            int child = node.getInt(8);
+            node.position(NODE_HEADER_SIZE);
+            /** The last child whose smallest key is less than the key, as equal keys may start in the one before **/
+            for (int i = 0; i < count && key != null; ++i) {
+                byte[] separator = new byte[node.getShort() & 0xFFFF];
+                node.get(separator);
+                int next = node.getInt();
+                if (SortKey.compare(separator, key) >= 0) {
+                    break;
+                }
+                child = next;
+            }
+            BufferPool.unpin(file, page);
+            page = child;
+        }
+        Cursor cursor = new Cursor();
+        cursor.readLeaf(page);
+        while (key != null && cursor.isValid() && SortKey.compare(cursor.getKey(), key) < 0) {
+            cursor.next();
+        }
+        return cursor;
+    }
+
+    /**
+     * Iterates over the entries of the leaves in key order
+     **/
+    public class Cursor {
+        byte[][] keys;      // Keys of the entries of the current leaf
+        int[] pages;        // Table page of every entry
+        int[] slots;        // Position in the table page of every entry
+        int nextLeaf;       // Page number of the next leaf, -1 after the last leaf
+        int pos;            // Current entry of the leaf
+
+        void readLeaf(int page) {
+            ByteBuffer node = ByteBuffer.wrap(BufferPool.pin(file, page));
+            int count = node.getInt(4);
+            nextLeaf = node.getInt(8);
+            keys = new byte[count][];
+            pages = new int[count];
+            slots = new int[count];
+            node.position(NODE_HEADER_SIZE);
+            for (int i = 0; i < count; ++i) {
+                keys[i] = new byte[node.getShort() & 0xFFFF];
+                node.get(keys[i]);
+                pages[i] = node.getInt();
+                slots[i] = node.getInt();
+            }
+            BufferPool.unpin(file, page);
+            pos = 0;
+            skipEmptyLeaves();
+        }
+
+        private void skipEmptyLeaves() {
+            while (pos >= keys.length && nextLeaf >= 0) {
+                readLeaf(nextLeaf);
+            }
+        }
+
+        public boolean isValid() {
+            return pos < keys.length;
+        }
+
+        public byte[] getKey() {
+            return keys[pos];
+        }
+
+        public int getPage() {
+            return pages[pos];
+        }
+
+        public int getSlot() {
+            return slots[pos];
+        }
+
+        public void next() {
+            pos++;
+            skipEmptyLeaves();
+        }
+    }
+
+    /**
+     * Builds the index of the column of the table file into the index file
+     **/
+    public static boolean build(String tblfile, Schema schema, int column, String filename) {
+        PageFile table = new PageFile(tblfile);
+        if (!table.open()) {
+            return false;
+        }
+        PageFormat format = new PageFormat(schema);
+        int pagesize = table.getPageSize();
+
+        /** Entries of every indexed tuple, sorted on key and then record id **/
+        ArrayList<Entry> entries = new ArrayList<>();
+        byte[] data = new byte[pagesize];
+        for (int page = 0; page < table.getNumPages(); ++page) {
+            table.readPage(page, data);
+            Tuple[] tuples = format.decodePage(ByteBuffer.wrap(data));
+            for (int slot = 0; slot < tuples.length; ++slot) {
+                byte[] key = keyOf(tuples[slot].dataAt(column));
+                if (key != null) {
+                    entries.add(new Entry(key, page, slot));
+                }
+            }
+        }
+        table.close();
+        long tableLength = new File(tblfile).length();
+        Collections.sort(entries);
+
+        ArrayList<byte[]> pages = new ArrayList<>();
+        pages.add(new byte[pagesize]);  // The meta page, filled in at the end
+
+        /** Leaves, each pointing to the page after it except the last one **/
+        ArrayList<byte[]> firstKeys = new ArrayList<>();   // Smallest key of every node of the level
+        ArrayList<Integer> nodes = new ArrayList<>();      // Page number of every node of the level
+        ByteBuffer node = null;
+        int count = 0;
+        for (Entry entry : entries) {
+            int size = 2 + entry.key.length + 8;
+            if (NODE_HEADER_SIZE + size > pagesize) {
+                System.out.println("BPlusTree: key of " + entry.key.length + " bytes does not fit in a page");
+                return false;
+            }
+            if (node == null || size > node.remaining()) {
+                if (node != null) {
+                    node.putInt(4, count);
+                    node.putInt(8, pages.size());
+                }
+                node = newNode(pages, pagesize, LEAF);
+                nodes.add(pages.size() - 1);
+                firstKeys.add(entry.key);
+                count = 0;
+            }
+            node.putShort((short) entry.key.length);
+            node.put(entry.key);
+            node.putInt(entry.page);
+            node.putInt(entry.slot);
+            count++;
+        }
+        if (node == null) {
+            node = newNode(pages, pagesize, LEAF);
+            nodes.add(pages.size() - 1);
+            firstKeys.add(new byte[0]);
+        }
+        node.putInt(4, count);
+        node.putInt(8, -1);
+        int numLeaves = nodes.size();
+
+        /** Internal levels, until one node is left **/
+        int height = 1;
+        while (nodes.size() > 1) {
+            ArrayList<byte[]> levelKeys = new ArrayList<>();
+            ArrayList<Integer> levelNodes = new ArrayList<>();
+            node = null;
+            count = 0;
+            for (int i = 0; i < nodes.size(); ++i) {
+                byte[] key = firstKeys.get(i);
+                int size = 2 + key.length + 4;
+                if (NODE_HEADER_SIZE + size > pagesize) {
+                    System.out.println("BPlusTree: key of " + key.length + " bytes does not fit in a page");
+                    return false;
+                }
+                if (node == null || size > node.remaining()) {
+                    if (node != null) {
+                        node.putInt(4, count);
+                    }
+                    node = newNode(pages, pagesize, INTERNAL);
+                    node.putInt(8, nodes.get(i));
+                    levelNodes.add(pages.size() - 1);
+                    levelKeys.add(key);
+                    count = 0;
+                    continue;
+                }
+                node.putShort((short) key.length);
+                node.put(key);
+                node.putInt(nodes.get(i));
+                count++;
+            }
+            node.putInt(4, count);
+            firstKeys = levelKeys;
+            nodes = levelNodes;
+            height++;
+        }
+
+        ByteBuffer meta = ByteBuffer.wrap(pages.get(0));
+        meta.putInt(0, nodes.get(0));
+        meta.putInt(4, height);
+        meta.putLong(8, entries.size());
+        meta.putInt(16, numLeaves);
+        meta.putLong(20, tableLength);
+
+        BufferPool.invalidate(filename);  // Cached pages of an earlier index of that name are stale
+        try {
+            RandomAccessFile out = new RandomAccessFile(filename, "rw");
+            out.setLength(0);
+            out.writeInt(PageFormat.MAGIC);
+            out.writeInt(pagesize);
+            for (byte[] page : pages) {
+                out.write(page);
+            }
+            out.close();
+        } catch (IOException io) {
+            System.out.println("BPlusTree: Error writing " + filename);
+            return false;
+        }
+        return true;
+    }
+
+    private static ByteBuffer newNode(ArrayList<byte[]> pages, int pagesize, int kind) {
+        byte[] page = new byte[pagesize];
+        pages.add(page);
+        ByteBuffer node = ByteBuffer.wrap(page);
+        node.putInt(0, kind);
+        node.position(NODE_HEADER_SIZE);
+        return node;
+    }
+
+    /**
+     * A key with the record id of its tuple
+     **/
+    static class Entry implements Comparable<Entry> {
+        final byte[] key;
+        final int page;
+        final int slot;
+
+        Entry(byte[] key, int page, int slot) {
+            this.key = key;
+            this.page = page;
+            this.slot = slot;
+        }
+
+        public int compareTo(Entry other) {
+            int cmp = SortKey.compare(key, other.key);
+            if (cmp != 0) {
+                return cmp;
+            }
+            if (page != other.page) {
+                return Integer.compare(page, other.page);
+            }
+            return Integer.compare(slot, other.slot);
+        }
+    }
+}
@@ -5,9 +5,8 @@
 package qp.utils;
 
 import java.util.ArrayList;
-import java.io.Serializable;
 
-public class Batch implements Serializable {
+public class Batch {
 
     int MAX_SIZE;             // Number of tuples per page
     static int PageSize;      // Number of bytes per page
@@ -29,6 +28,12 @@ public class Batch implements Serializable {
         tuples = new ArrayList<>(MAX_SIZE);
     }
 
+    /** Page of the given tuples, for the batches that hold them differently **/
+    protected Batch(int numtuple, ArrayList<Tuple> tuples) {
+        MAX_SIZE = numtuple;
+        this.tuples = tuples;
+    }
+
     /** Insert the record in page at next free location **/
     public void add(Tuple t) {
         tuples.add(t);
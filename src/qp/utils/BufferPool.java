@@ -0,0 +1,224 @@
+/**
+ * Buffer pool shared by all the operators, caching pages of tables and temporary files
+ **/
+
+package qp.utils;
+
+import java.util.HashMap;
+
+/**
+ * The pool has a fixed number of frames, each holding one page of a file.
+ * A page is pinned while it is being read and unpinned afterwards; only
+ * unpinned pages are evicted, the frame being chosen by the replacement
+ * policy. A pool of 0 frames does no caching and reads every page from
+ * its file.
+ *
+ * The pool is shared by the threads running the instances of a plan (see
+ * Exchange) and reading pages ahead (see AsyncIO). A page is only pinned
+ * for the time it takes to decode it, so a request that finds every frame
+ * pinned waits for another thread to unpin one. The page is read from its
+ * file outside the lock of the pool: its frame is reserved first, and the
+ * requests for the page wait until it is loaded.
+ *
+ * A page dropped by invalidate while it is pinned keeps its frame until
+ * it is unpinned, and requests for it wait until then to read it again.
+ */
+public class BufferPool {
+
+    static int numFrames = 0;                 // Number of frames in the pool
+    static ReplacementPolicy policy;          // Chooses the frame to evict
+    static byte[][] frames;                   // Page data of every frame
+    static PageId[] framePage;                // Page held by every frame, null if free
+    static int[] pinCounts;                   // Number of pins of every frame
+    static boolean[] loading;                 // Whether the page of every frame is being read from its file
+    static boolean[] stale;                   // Whether the page of every frame is dropped once unpinned
+    static HashMap<PageId, Integer> pageTable = new HashMap<>();  // Frame holding every cached page
+
+    static long hits = 0;                     // Number of requests served from the pool
+    static long misses = 0;                   // Number of requests read from the file
+
+    /**
+     * Sets up a pool of the given number of frames, dropping all cached pages
+     **/
+    public static synchronized void init(int numFrames, ReplacementPolicy policy) {
+        BufferPool.numFrames = Math.max(0, numFrames);
+        BufferPool.policy = policy;
+        frames = new byte[BufferPool.numFrames][];
+        framePage = new PageId[BufferPool.numFrames];
+        pinCounts = new int[BufferPool.numFrames];
+        loading = new boolean[BufferPool.numFrames];
+        stale = new boolean[BufferPool.numFrames];
+        pageTable = new HashMap<>();
+        policy.init(BufferPool.numFrames);
+        hits = 0;
+        misses = 0;
+    }
+
+    public static int getNumFrames() {
+        return numFrames;
+    }
+
+    public static long getHits() {
+        return hits;
+    }
+
+    public static long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the data of the pageNum-th page of the file, reading it into
+     * * a frame if it is not in the pool. The data stays valid until the
+     * * page is unpinned
+     **/
+    public static byte[] pin(PageFile file, int pageNum) {
+        PageId page = new PageId(file.getFileName(), pageNum);
+        int frame;
+        byte[] data;
+        synchronized (BufferPool.class) {
+            if (numFrames == 0) {
+                misses++;
+                frame = -1;
+                data = new byte[file.getPageSize()];
+            } else {
+                frame = reserve(page, file.getPageSize());
+                if (frame < 0) {
+                    hits++;
+                    return frames[-frame - 1];
+                }
+                misses++;
+                data = frames[frame];
+            }
+        }
+
+        /** The page is read without holding the lock, its frame is pinned and marked as loading **/
+        file.readPage(pageNum, data);
+        if (frame >= 0) {
+            synchronized (BufferPool.class) {
+                loading[frame] = false;
+                BufferPool.class.notifyAll();
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Pins the frame of the page if it is in the pool, and returns
+     * * -frame - 1. Otherwise reserves a frame for the page, pinned and
+     * * marked as loading, and returns it. Waits while the page is being
+     * * loaded or is stale, and while every frame is pinned
+     **/
+    private static int reserve(PageId page, int pageSize) {
+        while (true) {
+            Integer cached = pageTable.get(page);
+            if (cached != null && !loading[cached] && !stale[cached]) {
+                pinCounts[cached]++;
+                policy.accessed(cached);
+                return -cached - 1;
+            }
+            int frame = (cached == null) ? freeFrame() : -1;
+            if (frame != -1) {
+                if (framePage[frame] != null) {
+                    pageTable.remove(framePage[frame]);
+                }
+                if (frames[frame] == null || frames[frame].length != pageSize) {
+                    frames[frame] = new byte[pageSize];
+                }
+                framePage[frame] = page;
+                pageTable.put(page, frame);
+                pinCounts[frame] = 1;
+                loading[frame] = true;
+                policy.accessed(frame);
+                return frame;
+            }
+            /** The page is being loaded or dropped, or every frame is pinned by the other threads **/
+            try {
+                BufferPool.class.wait();
+            } catch (InterruptedException e) {
+                System.out.println("BufferPool: interrupted while waiting for a frame of " + numFrames);
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Releases a page pinned by pin()
+     **/
+    public static synchronized void unpin(PageFile file, int pageNum) {
+        if (numFrames == 0) {
+            return;
+        }
+        Integer cached = pageTable.get(new PageId(file.getFileName(), pageNum));
+        if (cached != null && pinCounts[cached] > 0) {
+            pinCounts[cached]--;
+            if (pinCounts[cached] == 0) {
+                if (stale[cached]) {
+                    drop(cached);
+                }
+                BufferPool.class.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Drops all the cached pages of the file, e.g. when the file is rewritten.
+     * * A pinned page is dropped when it is unpinned
+     **/
+    public static synchronized void invalidate(String filename) {
+        for (int i = 0; i < numFrames; ++i) {
+            if (framePage[i] != null && framePage[i].filename.equals(filename)) {
+                if (pinCounts[i] > 0) {
+                    stale[i] = true;
+                } else {
+                    drop(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Frees the frame, an unpinned one
+     **/
+    private static void drop(int frame) {
+        pageTable.remove(framePage[frame]);
+        framePage[frame] = null;
+        stale[frame] = false;
+    }
+
+    /**
+     * Returns a frame that is free or whose page can be evicted
+     **/
+    private static int freeFrame() {
+        for (int i = 0; i < numFrames; ++i) {
+            if (framePage[i] == null) {
+                return i;
+            }
+        }
+        return policy.chooseVictim(pinCounts);
+    }
+
+    /**
+     * Identifies a page by its file name and page number
+     **/
+    static final class PageId {
+        final String filename;
+        final int pageNum;
+
+        PageId(String filename, int pageNum) {
+            this.filename = filename;
+            this.pageNum = pageNum;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PageId)) return false;
+            PageId other = (PageId) o;
+            return pageNum == other.pageNum && filename.equals(other.filename);
+        }
+
+        @Override
+        public int hashCode() {
+            return filename.hashCode() * 31 + pageNum;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Clock replacement: the hand sweeps over the frames, giving every
+ * requested page a second chance before evicting it
+ **/
+
+package qp.utils;
+
+public class ClockPolicy implements ReplacementPolicy {
+
+    boolean[] referenced;    // Reference bit of every frame
+    int hand;                // Frame the clock hand points to
+
+    public void init(int numFrames) {
+        referenced = new boolean[numFrames];
+        hand = 0;
+    }
+
+    public void accessed(int frame) {
+        referenced[frame] = true;
+    }
+
+    public int chooseVictim(int[] pinCounts) {
+        // Two sweeps clear every reference bit, so an unpinned frame is found if any
+        for (int step = 0; step < 2 * pinCounts.length; ++step) {
+            int frame = hand;
+            hand = (hand + 1) % pinCounts.length;
+            if (pinCounts[frame] > 0) {
+                continue;
+            }
+            if (referenced[frame]) {
+                referenced[frame] = false;
+            } else {
+                return frame;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,278 @@
+/**
+ * A page of tuples held column by column
+ **/
+
+package qp.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * A column batch keeps the values of every column of a page in a vector:
+ * an int[] for INT, a float[] for REAL, and for STRING the offset and
+ * length of the UTF-8 bytes of every value in a copy of the page, which
+ * are only turned into a String when the value is read. Nulls are kept
+ * in a separate boolean[] per column that has any.
+ *
+ * The rows of the vectors that are in the batch are listed, in order, by
+ * its selection vector. Selecting tuples (see Predicate.select) or
+ * projecting columns (see project) makes a new batch over the same
+ * vectors, so neither allocates anything per tuple.
+ *
+ * The batch can still be used as any other Batch: get makes the tuple of
+ * a row when it is first asked for, and changing the batch turns it into
+ * a batch of tuples first.
+ */
+public class ColumnBatch extends Batch {
+
+    Column[] columns;    // The column vectors, null once the batch is turned into tuples
+    int[] sel;           // Rows of the vectors in the batch
+    int count;           // Number of rows in the batch
+    Tuple[] rows;        // Tuples of the rows already made by get
+
+    ColumnBatch(Column[] columns, int[] sel, int count, int capacity) {
+        super(capacity, null);
+        this.columns = columns;
+        this.sel = sel;
+        this.count = count;
+    }
+
+    /**
+     * The batch of the tuples from, up to but excluding to, of this batch
+     **/
+    public ColumnBatch slice(int from, int to, int capacity) {
+        int[] newsel = new int[to - from];
+        for (int i = from; i < to; ++i) {
+            newsel[i - from] = sel[i];
+        }
+        return new ColumnBatch(columns, newsel, newsel.length, capacity);
+    }
+
+    /**
+     * The batch of the same rows with the columns at the given indices,
+     * * of a batch that still holds its column vectors
+     **/
+    public ColumnBatch project(int[] indices, int capacity) {
+        Column[] newcols = new Column[indices.length];
+        for (int i = 0; i < indices.length; ++i) {
+            newcols[i] = columns[indices[i]];
+        }
+        return new ColumnBatch(newcols, sel, count, capacity);
+    }
+
+    /**
+     * Copies the tuples of the batches, in order, into new vectors of one
+     * * batch, to fill a batch from the few tuples of several batches
+     **/
+    public static ColumnBatch concat(ArrayList<ColumnBatch> parts, int capacity) {
+        int numRows = 0;
+        for (ColumnBatch part : parts) {
+            numRows += part.count;
+        }
+        Column[] first = parts.get(0).columns;
+        Column[] columns = new Column[first.length];
+        for (int c = 0; c < columns.length; ++c) {
+            int type = first[c].type;
+            byte[] bytes = null;
+            if (type == Attribute.STRING) {
+                int length = 0;
+                for (ColumnBatch part : parts) {
+                    Column from = part.columns[c];
+                    for (int i = 0; i < part.count; ++i) {
+                        length += from.isNull(part.sel[i]) ? 0 : from.lengths[part.sel[i]];
+                    }
+                }
+                bytes = new byte[length];
+            }
+            Column column = new Column(type, numRows, bytes);
+            int row = 0;
+            int offset = 0;
+            for (ColumnBatch part : parts) {
+                Column from = part.columns[c];
+                for (int i = 0; i < part.count; ++i, ++row) {
+                    int r = part.sel[i];
+                    if (from.isNull(r)) {
+                        column.setNull(row);
+                    } else if (type == Attribute.INT) {
+                        column.ints[row] = from.ints[r];
+                    } else if (type == Attribute.REAL) {
+                        column.reals[row] = from.reals[r];
+                    } else {
+                        System.arraycopy(from.bytes, from.offsets[r], bytes, offset, from.lengths[r]);
+                        column.offsets[row] = offset;
+                        column.lengths[row] = from.lengths[r];
+                        column.strings[row] = from.strings[r];
+                        offset += from.lengths[r];
+                    }
+                }
+            }
+            columns[c] = column;
+        }
+        int[] sel = new int[numRows];
+        for (int row = 0; row < numRows; ++row) {
+            sel[row] = row;
+        }
+        return new ColumnBatch(columns, sel, numRows, capacity);
+    }
+
+    /**
+     * Whether the batch still holds its column vectors
+     **/
+    public boolean isColumnar() {
+        return columns != null;
+    }
+
+    /**
+     * Turns the batch into a batch of tuples, before it is changed
+     **/
+    private void materialize() {
+        if (columns == null) {
+            return;
+        }
+        tuples = new ArrayList<>(Math.max(capacity(), count));
+        for (int i = 0; i < count; ++i) {
+            tuples.add(get(i));
+        }
+        columns = null;
+        sel = null;
+        rows = null;
+    }
+
+    public Tuple get(int i) {
+        if (columns == null) {
+            return super.get(i);
+        }
+        if (i < 0 || i >= count) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + count);
+        }
+        if (rows == null) {
+            rows = new Tuple[count];
+        }
+        if (rows[i] == null) {
+            int row = sel[i];
+            Object[] data = new Object[columns.length];
+            for (int c = 0; c < columns.length; ++c) {
+                data[c] = columns[c].valueAt(row);
+            }
+            rows[i] = new Tuple(data);
+        }
+        return rows[i];
+    }
+
+    public int size() {
+        return (columns == null) ? super.size() : count;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void add(Tuple t) {
+        materialize();
+        super.add(t);
+    }
+
+    public void add(Tuple t, int i) {
+        materialize();
+        super.add(t, i);
+    }
+
+    public void clear() {
+        materialize();
+        super.clear();
+    }
+
+    public boolean contains(Tuple t) {
+        materialize();
+        return super.contains(t);
+    }
+
+    public int indexOf(Tuple t) {
+        materialize();
+        return super.indexOf(t);
+    }
+
+    public void remove(int i) {
+        materialize();
+        super.remove(i);
+    }
+
+    public void set(Tuple t, int i) {
+        materialize();
+        super.set(t, i);
+    }
+
+    /**
+     * The values of one column of a page
+     **/
+    static final class Column {
+        final int type;        // Type of the column
+        int[] ints;            // Values of an INT column
+        float[] reals;         // Values of a REAL column
+        byte[] bytes;          // Copy of the page the values of a STRING column are in
+        int[] offsets;         // Start of every value of a STRING column in bytes
+        int[] lengths;         // Number of bytes of every value of a STRING column
+        String[] strings;      // Values of a STRING column already decoded
+        boolean[] nulls;       // Whether every value is null, null if none is
+
+        Column(int type, int numRows, byte[] bytes) {
+            this.type = type;
+            if (type == Attribute.INT) {
+                ints = new int[numRows];
+            } else if (type == Attribute.REAL) {
+                reals = new float[numRows];
+            } else {
+                this.bytes = bytes;
+                offsets = new int[numRows];
+                lengths = new int[numRows];
+                strings = new String[numRows];
+            }
+        }
+
+        void setNull(int row) {
+            if (nulls == null) {
+                nulls = new boolean[type == Attribute.INT ? ints.length
+                        : (type == Attribute.REAL ? reals.length : offsets.length)];
+            }
+            nulls[row] = true;
+        }
+
+        boolean isNull(int row) {
+            return nulls != null && nulls[row];
+        }
+
+        String stringAt(int row) {
+            if (strings[row] == null) {
+                strings[row] = new String(bytes, offsets[row], lengths[row], StandardCharsets.UTF_8);
+            }
+            return strings[row];
+        }
+
+        /**
+         * Whether the UTF-8 bytes of the STRING value are the given ones
+         **/
+        boolean bytesEqual(int row, byte[] value) {
+            if (lengths[row] != value.length) {
+                return false;
+            }
+            int offset = offsets[row];
+            for (int i = 0; i < value.length; ++i) {
+                if (bytes[offset + i] != value[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        Object valueAt(int row) {
+            if (isNull(row)) {
+                return null;
+            } else if (type == Attribute.INT) {
+                return ints[row];
+            } else if (type == Attribute.REAL) {
+                return reals[row];
+            }
+            return stringAt(row);
+        }
+    }
+}
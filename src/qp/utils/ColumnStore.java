@@ -0,0 +1,102 @@
+/**
+ * Column-wise layout of a table file
+ **/
+
+package qp.utils;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * The columnar layout of table tab keeps every column col in a file of its
+ * own, tab.col.col. A column file is a page formatted file (see PageFormat)
+ * of tuples of that one column, with the same page size as the table file,
+ * so a column takes a fraction of the pages of the table and is read
+ * through the buffer pool like any other file. The i-th tuple of every
+ * column file holds the value of the i-th tuple of the table, so a scan
+ * reads the column files it needs side by side and puts the tuples back
+ * together.
+ *
+ * The layout is written from the table file by write, next to it, and is
+ * used as long as the table file is not written again.
+ */
+public class ColumnStore {
+
+    /**
+     * Name of the file of a column of a table
+     **/
+    public static String fileOf(String tabname, String colname) {
+        return tabname + "." + colname + ".col";
+    }
+
+    /**
+     * Schema of the tuples of the file of a column
+     **/
+    public static Schema columnSchema(Schema schema, int column) {
+        ArrayList<Attribute> attrs = new ArrayList<>();
+        attrs.add(schema.getAttribute(column));
+        return schema.subSchema(attrs);
+    }
+
+    /**
+     * Whether the table has a column file for every column, none of them
+     * * older than the table file
+     **/
+    public static boolean exists(String tabname, Schema schema) {
+        File table = new File(tabname + ".tbl");
+        if (!table.exists()) {
+            return false;
+        }
+        for (int i = 0; i < schema.getNumCols(); ++i) {
+            File column = new File(fileOf(tabname, schema.getAttribute(i).getColName()));
+            if (!column.exists() || column.lastModified() < table.lastModified()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the file of every column of the table from the table file
+     **/
+    public static boolean write(String tabname, Schema schema) {
+        String tblfile = tabname + ".tbl";
+        PageFile table = new PageFile(tblfile);
+        if (!table.open()) {
+            return false;
+        }
+        int pagesize = table.getPageSize();
+        table.close();
+        int oldPageSize = Batch.getPageSize();
+        Batch.setPageSize(pagesize);
+
+        TupleReader in = new TupleReader(tblfile, schema, Math.max(pagesize / schema.getTupleSize(), 1));
+        TupleWriter[] out = new TupleWriter[schema.getNumCols()];
+        Object[] value = new Object[1];
+        Tuple cell = new Tuple(value);
+        boolean ok = in.open();
+        for (int i = 0; ok && i < out.length; ++i) {
+            Schema column = columnSchema(schema, i);
+            out[i] = new TupleWriter(fileOf(tabname, schema.getAttribute(i).getColName()), column,
+                    Math.max(pagesize / column.getTupleSize(), 1));
+            ok = out[i].open();
+        }
+        if (ok) {
+            Tuple tuple;
+            while ((tuple = in.next()) != null) {
+                for (int i = 0; i < out.length; ++i) {
+                    value[0] = tuple.dataAt(i);
+                    out[i].next(cell);
+                }
+            }
+        }
+        in.close();
+        for (TupleWriter writer : out) {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+        Batch.setPageSize(oldPageSize);
+        return ok;
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * Tuple made by joining two tuples
+ **/
+
+package qp.utils;
+
+/**
+ * A joined tuple refers to the left and the right tuple it is made of and
+ * reads its values from them, so joining two tuples does not copy their
+ * values. The values of the left tuple come first.
+ */
+class JoinedTuple extends Tuple {
+
+    final Tuple left;      // Tuple of the first values
+    final Tuple right;     // Tuple of the values after those of left
+    final int leftSize;    // Number of values of left
+    final int size;        // Number of values of both
+
+    JoinedTuple(Tuple left, Tuple right) {
+        super((Object[]) null);
+        this.left = left;
+        this.right = right;
+        this.leftSize = left.size();
+        this.size = leftSize + right.size();
+    }
+
+    public Object dataAt(int index) {
+        return (index < leftSize) ? left.dataAt(index) : right.dataAt(index - leftSize);
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * Least recently used replacement: evicts the unpinned page that was
+ * requested the longest time ago
+ **/
+
+package qp.utils;
+
+public class LRUPolicy implements ReplacementPolicy {
+
+    long[] lastAccess;    // Time of the last request of every frame
+    long clock;           // Number of requests so far
+
+    public void init(int numFrames) {
+        lastAccess = new long[numFrames];
+        clock = 0;
+    }
+
+    public void accessed(int frame) {
+        lastAccess[frame] = ++clock;
+    }
+
+    public int chooseVictim(int[] pinCounts) {
+        int victim = -1;
+        for (int i = 0; i < pinCounts.length; ++i) {
+            if (pinCounts[i] == 0 && (victim == -1 || lastAccess[i] < lastAccess[victim])) {
+                victim = i;
+            }
+        }
+        return victim;
+    }
+}
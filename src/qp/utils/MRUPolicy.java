@@ -0,0 +1,33 @@
+/**
+ * Most recently used replacement: evicts the unpinned page that was
+ * requested last. Repeated sequential scans of a file larger than the pool
+ * (e.g. the inner relation of a nested loop join) then keep hitting the
+ * pages that stay in the pool, where LRU would miss on every page
+ **/
+
+package qp.utils;
+
+public class MRUPolicy implements ReplacementPolicy {
+
+    long[] lastAccess;    // Time of the last request of every frame
+    long clock;           // Number of requests so far
+
+    public void init(int numFrames) {
+        lastAccess = new long[numFrames];
+        clock = 0;
+    }
+
+    public void accessed(int frame) {
+        lastAccess[frame] = ++clock;
+    }
+
+    public int chooseVictim(int[] pinCounts) {
+        int victim = -1;
+        for (int i = 0; i < pinCounts.length; ++i) {
+            if (pinCounts[i] == 0 && (victim == -1 || lastAccess[i] > lastAccess[victim])) {
+                victim = i;
+            }
+        }
+        return victim;
+    }
+}
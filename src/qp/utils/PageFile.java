@@ -0,0 +1,76 @@
+/**
+ * PageFile gives access to the pages of a page formatted file
+ */
+
+package qp.utils;
+
+import java.io.*;
+
+public class PageFile {
+
+    final String filename;    // Name of the file
+    RandomAccessFile file;      // The open file
+    int pagesize;               // Number of bytes per page, from the file header
+    int numPages;               // Number of pages in the file
+
+    public PageFile(String filename) {
+        this.filename = filename;
+    }
+
+    public String getFileName() {
+        return filename;
+    }
+
+    public int getPageSize() {
+        return pagesize;
+    }
+
+    public int getNumPages() {
+        return numPages;
+    }
+
+    // Opens the file and reads the file header
+    public boolean open() {
+        try {
+            file = new RandomAccessFile(filename, "r");
+            if (file.readInt() != PageFormat.MAGIC) {
+                System.out.printf("%s:not a page formatted file\n", filename);
+                file.close();
+                file = null;
+                return false;
+            }
+            pagesize = file.readInt();
+            numPages = (int) ((file.length() - PageFormat.FILE_HEADER_SIZE) / pagesize);
+        } catch (IOException io) {
+            System.out.printf("%s:reading the temporary file error", filename);
+            return false;
+        }
+        return true;
+    }
+
+    // Reads the pageNum-th page of the file into the given buffer
+    // Pages are of a fixed size, so page i starts at FILE_HEADER_SIZE + i * pagesize
+    public void readPage(int pageNum, byte[] buffer) {
+        try {
+            file.seek(PageFormat.FILE_HEADER_SIZE + (long) pageNum * pagesize);
+            file.readFully(buffer, 0, pagesize);
+        } catch (IOException io) {
+            System.out.printf("%s:temporary file reading error\n", filename);
+            System.exit(1);
+        }
+    }
+
+    public boolean close() {
+        if (file != null) {
+            try {
+                file.close();
+                file = null;
+            } catch (IOException io) {
+                System.out.printf("%s:reading the temporary file error", filename);
+                System.out.println(io);
+                return false;
+            }
+        }
+        return true;
+    }
+}
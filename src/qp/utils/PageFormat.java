@@ -0,0 +1,224 @@
+/**
+ * Binary page format used for base tables and temporary files
+ **/
+
+package qp.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A file starts with a header of FILE_HEADER_SIZE bytes (magic number and
+ * page size), followed by pages of exactly that page size. Each page starts
+ * with a header of PAGE_HEADER_SIZE bytes (number of tuples and number of
+ * bytes used), followed by the tuples.
+ *
+ * A tuple is a null bitmap of one bit per column, followed by the non-null
+ * columns in schema order: INT and REAL take 4 bytes, STRING is an unsigned
+ * 2 byte length followed by that many bytes of UTF-8.
+ */
+public class PageFormat {
+
+    public static final int MAGIC = 0x51505047;    // "QPPG"
+    public static final int FILE_HEADER_SIZE = 8;  // magic, page size
+    public static final int PAGE_HEADER_SIZE = 8;  // number of tuples, bytes used
+
+    final int[] types;       // Type of each column
+    final int bitmapSize;    // Number of bytes of the null bitmap
+
+    public PageFormat(Schema schema) {
+        types = new int[schema.getNumCols()];
+        for (int i = 0; i < types.length; ++i) {
+            types[i] = schema.getAttribute(i).getProjectedType();
+        }
+        bitmapSize = (types.length + 7) / 8;
+    }
+
+    /**
+     * Format of tuples of the given column types
+     **/
+    PageFormat(int[] types) {
+        this.types = types;
+        bitmapSize = (types.length + 7) / 8;
+    }
+
+    public int getNumCols() {
+        return types.length;
+    }
+
+    /**
+     * Number of bytes the tuple takes in a page
+     **/
+    public int encodedSize(Tuple tuple) {
+        int size = bitmapSize;
+        for (int i = 0; i < types.length; ++i) {
+            Object value = tuple.dataAt(i);
+            if (value == null) {
+                continue;
+            }
+            if (types[i] == Attribute.STRING) {
+                size += 2 + utf8Length((String) value);
+            } else {
+                size += 4;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Writes the tuple at the current position of the buffer
+     **/
+    public void encode(Tuple tuple, ByteBuffer buf) {
+        int bitmapPos = buf.position();
+        for (int i = 0; i < bitmapSize; ++i) {
+            buf.put((byte) 0);
+        }
+        for (int i = 0; i < types.length; ++i) {
+            Object value = tuple.dataAt(i);
+            if (value == null) {
+                int pos = bitmapPos + i / 8;
+                buf.put(pos, (byte) (buf.get(pos) | (1 << (i % 8))));
+                continue;
+            }
+            switch (types[i]) {
+                case Attribute.INT:
+                    buf.putInt((Integer) value);
+                    break;
+                case Attribute.REAL:
+                    buf.putFloat((Float) value);
+                    break;
+                case Attribute.STRING:
+                    byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+                    if (bytes.length > 0xFFFF) {
+                        System.out.println("PageFormat: string value too long");
+                        System.exit(1);
+                    }
+                    buf.putShort((short) bytes.length);
+                    buf.put(bytes);
+                    break;
+                default:
+                    System.out.println("PageFormat: Invalid data type");
+                    System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Reads a tuple from the current position of the buffer
+     **/
+    public Tuple decode(ByteBuffer buf) {
+        int bitmapPos = buf.position();
+        buf.position(bitmapPos + bitmapSize);
+        Object[] data = new Object[types.length];
+        for (int i = 0; i < types.length; ++i) {
+            if ((buf.get(bitmapPos + i / 8) & (1 << (i % 8))) != 0) {
+                continue;
+            }
+            switch (types[i]) {
+                case Attribute.INT:
+                    data[i] = buf.getInt();
+                    break;
+                case Attribute.REAL:
+                    data[i] = buf.getFloat();
+                    break;
+                case Attribute.STRING:
+                    int length = buf.getShort() & 0xFFFF;
+                    data[i] = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+                    buf.position(buf.position() + length);
+                    break;
+                default:
+                    System.out.println("PageFormat: Invalid data type");
+                    System.exit(1);
+            }
+        }
+        return new Tuple(data);
+    }
+
+    /**
+     * Decodes all the tuples of a page
+     **/
+    public Tuple[] decodePage(ByteBuffer page) {
+        int numTuples = page.getInt(0);
+        Tuple[] tuples = new Tuple[numTuples];
+        page.position(PAGE_HEADER_SIZE);
+        for (int i = 0; i < numTuples; ++i) {
+            tuples[i] = decode(page);
+        }
+        return tuples;
+    }
+
+    /**
+     * Decodes all the tuples of a page into a batch of column vectors,
+     * * without making an object per value
+     **/
+    public ColumnBatch decodeColumns(ByteBuffer page, int capacity) {
+        int numTuples = page.getInt(0);
+        byte[] bytes = null;
+        for (int type : types) {
+            if (type == Attribute.STRING) {
+                bytes = Arrays.copyOfRange(page.array(), page.arrayOffset(), page.arrayOffset() + page.getInt(4));
+                break;
+            }
+        }
+        ColumnBatch.Column[] columns = new ColumnBatch.Column[types.length];
+        for (int i = 0; i < types.length; ++i) {
+            columns[i] = new ColumnBatch.Column(types[i], numTuples, bytes);
+        }
+        int pos = page.arrayOffset() + PAGE_HEADER_SIZE;
+        ByteBuffer buf = ByteBuffer.wrap(page.array());
+        for (int row = 0; row < numTuples; ++row) {
+            int bitmapPos = pos;
+            pos += bitmapSize;
+            for (int i = 0; i < types.length; ++i) {
+                if ((buf.get(bitmapPos + i / 8) & (1 << (i % 8))) != 0) {
+                    columns[i].setNull(row);
+                    continue;
+                }
+                switch (types[i]) {
+                    case Attribute.INT:
+                        columns[i].ints[row] = buf.getInt(pos);
+                        pos += 4;
+                        break;
+                    case Attribute.REAL:
+                        columns[i].reals[row] = buf.getFloat(pos);
+                        pos += 4;
+                        break;
+                    case Attribute.STRING:
+                        int length = buf.getShort(pos) & 0xFFFF;
+                        columns[i].offsets[row] = pos + 2 - page.arrayOffset();
+                        columns[i].lengths[row] = length;
+                        pos += 2 + length;
+                        break;
+                    default:
+                        System.out.println("PageFormat: Invalid data type");
+                        System.exit(1);
+                }
+            }
+        }
+        int[] sel = new int[numTuples];
+        for (int row = 0; row < numTuples; ++row) {
+            sel[row] = row;
+        }
+        return new ColumnBatch(columns, sel, numTuples, capacity);
+    }
+
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                ++i;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,401 @@
+/**
+ * Compiled selection conditions
+ **/
+
+package qp.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * A predicate is a conjunction of selection conditions compiled against
+ * the schema of the tuples it is evaluated on. The attributes are looked
+ * up in the schema, the constants parsed and the type of every condition
+ * resolved once, so that testing a tuple only reads the values at the
+ * resolved indices and compares them.
+ *
+ * Every comparison is turned into a mask of the outcomes it accepts: bit 0
+ * for less, bit 1 for equal and bit 2 for greater. A condition then takes
+ * the bit of the outcome of comparing its two values. A null value never
+ * satisfies a condition.
+ *
+ * A predicate also selects the tuples of a ColumnBatch by going through
+ * the column vectors of the attributes it compares, one condition at a
+ * time, and narrowing the selection vector of the batch.
+ */
+public abstract class Predicate {
+
+    static final int LESS = 1;
+    static final int EQUAL = 2;
+    static final int GREATER = 4;
+
+    /**
+     * Whether the tuple satisfies the predicate
+     **/
+    public abstract boolean test(Tuple tuple);
+
+    /**
+     * Keeps, in order, the first count rows of sel whose values in the
+     * * columns satisfy the predicate at the start of sel, and returns
+     * * how many there are
+     **/
+    abstract int filter(ColumnBatch.Column[] columns, int[] sel, int count);
+
+    /**
+     * The batch of the tuples of a column batch that satisfy the predicate
+     **/
+    public ColumnBatch select(ColumnBatch batch) {
+        int[] sel = batch.sel.clone();
+        int count = filter(batch.columns, sel, batch.count);
+        return new ColumnBatch(batch.columns, sel, count, batch.capacity());
+    }
+
+    /**
+     * Compiles a single condition
+     **/
+    public static Predicate compile(Condition con, Schema schema) {
+        int index = schema.indexOf(con.getLhs());
+        if (index < 0) {
+            System.out.println("Predicate: Unknown attribute " + con.getLhs());
+            System.exit(1);
+        }
+        int type = schema.typeOf(con.getLhs());
+        int mask = maskOf(con.getExprType());
+        Object rhs = con.getRhs();
+
+        if (rhs instanceof Attribute) {
+            int rhsIndex = schema.indexOf((Attribute) rhs);
+            if (rhsIndex < 0) {
+                System.out.println("Predicate: Unknown attribute " + rhs);
+                System.exit(1);
+            }
+            if (type == Attribute.INT) {
+                return new IntColumn(index, rhsIndex, mask);
+            } else if (type == Attribute.REAL) {
+                return new RealColumn(index, rhsIndex, mask);
+            } else if (type == Attribute.STRING) {
+                return new StringColumn(index, rhsIndex, mask);
+            }
+        } else if (rhs instanceof String) {
+            Object value = constantOf((String) rhs, type);
+            if (type == Attribute.INT) {
+                return new IntConstant(index, (Integer) value, mask);
+            } else if (type == Attribute.REAL) {
+                return new RealConstant(index, (Float) value, mask);
+            } else if (type == Attribute.STRING) {
+                return new StringConstant(index, (String) value, mask);
+            }
+        }
+        System.out.println("Predicate: Malformed condition");
+        System.exit(1);
+        return null;
+    }
+
+    /**
+     * Compiles the conjunction of the conditions
+     **/
+    public static Predicate compile(ArrayList<Condition> conditions, Schema schema) {
+        if (conditions.size() == 1) {
+            return compile(conditions.get(0), schema);
+        }
+        Predicate[] terms = new Predicate[conditions.size()];
+        for (int i = 0; i < terms.length; ++i) {
+            terms[i] = compile(conditions.get(i), schema);
+        }
+        return new Conjunction(terms);
+    }
+
+    /**
+     * The constant of a condition as a value of the given type
+     **/
+    public static Object constantOf(String value, int type) {
+        try {
+            if (type == Attribute.INT) {
+                return Integer.parseInt(value.trim());
+            } else if (type == Attribute.REAL) {
+                return Float.parseFloat(value.trim());
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Predicate: Malformed constant " + value);
+            System.exit(1);
+        }
+        return value;
+    }
+
+    static int maskOf(int exprtype) {
+        switch (exprtype) {
+            case Condition.LESSTHAN:
+                return LESS;
+            case Condition.GREATERTHAN:
+                return GREATER;
+            case Condition.LTOE:
+                return LESS | EQUAL;
+            case Condition.GTOE:
+                return GREATER | EQUAL;
+            case Condition.EQUAL:
+                return EQUAL;
+            case Condition.NOTEQUAL:
+                return LESS | GREATER;
+        }
+        System.out.println("Predicate: Incorrect condition operator");
+        System.exit(1);
+        return 0;
+    }
+
+    /**
+     * Whether the mask accepts the outcome of a comparison returning cmp
+     **/
+    static boolean accepts(int mask, int cmp) {
+        return (mask >>> (Integer.signum(cmp) + 1) & 1) != 0;
+    }
+
+    /**
+     * Whether the mask accepts the outcome of comparing two reals, where
+     * * a NaN is neither less, equal nor greater than anything
+     **/
+    static boolean acceptsReal(int mask, float left, float right) {
+        if (left < right) {
+            return (mask & LESS) != 0;
+        } else if (left > right) {
+            return (mask & GREATER) != 0;
+        } else if (left == right) {
+            return (mask & EQUAL) != 0;
+        }
+        return mask == (LESS | GREATER);
+    }
+
+    static final class IntConstant extends Predicate {
+        final int index;
+        final int value;
+        final int mask;
+
+        IntConstant(int index, int value, int mask) {
+            this.index = index;
+            this.value = value;
+            this.mask = mask;
+        }
+
+        public boolean test(Tuple tuple) {
+            Object data = tuple.dataAt(index);
+            return data != null && accepts(mask, Integer.compare((Integer) data, value));
+        }
+
+        int filter(ColumnBatch.Column[] columns, int[] sel, int count) {
+            int[] values = columns[index].ints;
+            boolean[] nulls = columns[index].nulls;
+            int n = 0;
+            for (int i = 0; i < count; ++i) {
+                int row = sel[i];
+                if ((nulls == null || !nulls[row]) && accepts(mask, Integer.compare(values[row], value))) {
+                    sel[n++] = row;
+                }
+            }
+            return n;
+        }
+    }
+
+    static final class IntColumn extends Predicate {
+        final int index;
+        final int rhsIndex;
+        final int mask;
+
+        IntColumn(int index, int rhsIndex, int mask) {
+            this.index = index;
+            this.rhsIndex = rhsIndex;
+            this.mask = mask;
+        }
+
+        public boolean test(Tuple tuple) {
+            Object left = tuple.dataAt(index);
+            Object right = tuple.dataAt(rhsIndex);
+            return left != null && right != null && accepts(mask, Integer.compare((Integer) left, (Integer) right));
+        }
+
+        int filter(ColumnBatch.Column[] columns, int[] sel, int count) {
+            ColumnBatch.Column left = columns[index];
+            ColumnBatch.Column right = columns[rhsIndex];
+            int n = 0;
+            for (int i = 0; i < count; ++i) {
+                int row = sel[i];
+                if (!left.isNull(row) && !right.isNull(row)
+                        && accepts(mask, Integer.compare(left.ints[row], right.ints[row]))) {
+                    sel[n++] = row;
+                }
+            }
+            return n;
+        }
+    }
+
+    static final class RealConstant extends Predicate {
+        final int index;
+        final float value;
+        final int mask;
+
+        RealConstant(int index, float value, int mask) {
+            this.index = index;
+            this.value = value;
+            this.mask = mask;
+        }
+
+        public boolean test(Tuple tuple) {
+            Object data = tuple.dataAt(index);
+            return data != null && acceptsReal(mask, (Float) data, value);
+        }
+
+        int filter(ColumnBatch.Column[] columns, int[] sel, int count) {
+            float[] values = columns[index].reals;
+            boolean[] nulls = columns[index].nulls;
+            int n = 0;
+            for (int i = 0; i < count; ++i) {
+                int row = sel[i];
+                if ((nulls == null || !nulls[row]) && acceptsReal(mask, values[row], value)) {
+                    sel[n++] = row;
+                }
+            }
+            return n;
+        }
+    }
+
+    static final class RealColumn extends Predicate {
+        final int index;
+        final int rhsIndex;
+        final int mask;
+
+        RealColumn(int index, int rhsIndex, int mask) {
+            this.index = index;
+            this.rhsIndex = rhsIndex;
+            this.mask = mask;
+        }
+
+        public boolean test(Tuple tuple) {
+            Object left = tuple.dataAt(index);
+            Object right = tuple.dataAt(rhsIndex);
+            return left != null && right != null && acceptsReal(mask, (Float) left, (Float) right);
+        }
+
+        int filter(ColumnBatch.Column[] columns, int[] sel, int count) {
+            ColumnBatch.Column left = columns[index];
+            ColumnBatch.Column right = columns[rhsIndex];
+            int n = 0;
+            for (int i = 0; i < count; ++i) {
+                int row = sel[i];
+                if (!left.isNull(row) && !right.isNull(row) && acceptsReal(mask, left.reals[row], right.reals[row])) {
+                    sel[n++] = row;
+                }
+            }
+            return n;
+        }
+    }
+
+    static final class StringConstant extends Predicate {
+        final int index;
+        final String value;
+        final byte[] bytes;   // UTF-8 bytes of the value
+        final int mask;
+
+        StringConstant(int index, String value, int mask) {
+            this.index = index;
+            this.value = value;
+            this.bytes = value.getBytes(StandardCharsets.UTF_8);
+            this.mask = mask;
+        }
+
+        public boolean test(Tuple tuple) {
+            Object data = tuple.dataAt(index);
+            if (data == null) {
+                return false;
+            }
+            if (mask == EQUAL) {
+                return value.equals(data);
+            } else if (mask == (LESS | GREATER)) {
+                return !value.equals(data);
+            }
+            return accepts(mask, ((String) data).compareTo(value));
+        }
+
+        /**
+         * Equality is decided on the UTF-8 bytes, without decoding the values
+         **/
+        int filter(ColumnBatch.Column[] columns, int[] sel, int count) {
+            ColumnBatch.Column column = columns[index];
+            int n = 0;
+            for (int i = 0; i < count; ++i) {
+                int row = sel[i];
+                if (column.isNull(row)) {
+                    continue;
+                }
+                boolean accepted;
+                if (mask == EQUAL) {
+                    accepted = column.bytesEqual(row, bytes);
+                } else if (mask == (LESS | GREATER)) {
+                    accepted = !column.bytesEqual(row, bytes);
+                } else {
+                    accepted = accepts(mask, column.stringAt(row).compareTo(value));
+                }
+                if (accepted) {
+                    sel[n++] = row;
+                }
+            }
+            return n;
+        }
+    }
+
+    static final class StringColumn extends Predicate {
+        final int index;
+        final int rhsIndex;
+        final int mask;
+
+        StringColumn(int index, int rhsIndex, int mask) {
+            this.index = index;
+            this.rhsIndex = rhsIndex;
+            this.mask = mask;
+        }
+
+        public boolean test(Tuple tuple) {
+            Object left = tuple.dataAt(index);
+            Object right = tuple.dataAt(rhsIndex);
+            return left != null && right != null && accepts(mask, ((String) left).compareTo((String) right));
+        }
+
+        int filter(ColumnBatch.Column[] columns, int[] sel, int count) {
+            ColumnBatch.Column left = columns[index];
+            ColumnBatch.Column right = columns[rhsIndex];
+            int n = 0;
+            for (int i = 0; i < count; ++i) {
+                int row = sel[i];
+                if (!left.isNull(row) && !right.isNull(row)
+                        && accepts(mask, left.stringAt(row).compareTo(right.stringAt(row)))) {
+                    sel[n++] = row;
+                }
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Tests the terms in order and stops at the first one that fails
+     **/
+    static final class Conjunction extends Predicate {
+        final Predicate[] terms;
+
+        Conjunction(Predicate[] terms) {
+            this.terms = terms;
+        }
+
+        public boolean test(Tuple tuple) {
+            for (Predicate term : terms) {
+                if (!term.test(tuple)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int filter(ColumnBatch.Column[] columns, int[] sel, int count) {
+            for (Predicate term : terms) {
+                count = term.filter(columns, sel, count);
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * RandomAccessTupleReader is a helper class that allows other operators to read
+ * any page of a page formatted file directly, without reading the pages before it
+ */
+
+package qp.utils;
+
+import java.nio.ByteBuffer;
+
+public class RandomAccessTupleReader {
+
+    final String filename;    // Filename to read from
+    final int batchsize;        // Number of tuples per out batch
+    final PageFormat format;    // Binary layout of the tuples
+
+    PageFile in;                // Input file, read through the buffer pool
+    int numRead = 0;            // Number of pages read from the file
+
+    int cachedIndex = -1;       // Index of the last page read
+    Batch cachedBatch;          // Tuples of the last page read
+
+    // filename: Filename of the file to read from
+    // schema: Schema of the tuples in the file
+    // batchsize: Number of tuples per batch
+    public RandomAccessTupleReader(String filename, Schema schema, int batchsize) {
+        this.filename = filename;
+        this.batchsize = batchsize;
+        this.format = new PageFormat(schema);
+    }
+
+    public int getNumPages() {
+        return in.getNumPages();
+    }
+
+    public int getNumRead() {
+        return numRead;
+    }
+
+    public String getFileName() {
+        return filename;
+    }
+
+    // Opens the input file and reads the file header
+    public boolean open() {
+        in = new PageFile(filename);
+        if (!in.open()) {
+            in = null;
+            return false;
+        }
+        cachedIndex = -1;
+        cachedBatch = null;
+        numRead = 0;
+        return true;
+    }
+
+    // Returns the tuples of the idx-th page, or null if the file has no such page
+    // The last page read is kept, so asking for it again does not read the file
+    public Batch getBatch(int idx) {
+        if (idx < 0 || idx >= in.getNumPages()) return null;
+        if (idx == cachedIndex) return cachedBatch;
+        byte[] page = BufferPool.pin(in, idx);
+        Tuple[] tuples = format.decodePage(ByteBuffer.wrap(page));
+        BufferPool.unpin(in, idx);
+        numRead++;
+        Batch batch = new Batch(Math.max(batchsize, tuples.length));
+        for (Tuple tuple : tuples) {
+            batch.add(tuple);
+        }
+        cachedIndex = idx;
+        cachedBatch = batch;
+        return batch;
+    }
+
+    // Closes the input file
+    public boolean close() {
+        cachedBatch = null;
+        cachedIndex = -1;
+        if (in != null) {
+            boolean closed = in.close();
+            in = null;
+            return closed;
+        }
+        return true;
+    }
+}
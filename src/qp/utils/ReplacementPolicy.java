@@ -0,0 +1,24 @@
+/**
+ * Chooses the frame of the buffer pool whose page is evicted
+ **/
+
+package qp.utils;
+
+public interface ReplacementPolicy {
+
+    /**
+     * Sets up the policy for a pool of the given number of frames
+     **/
+    void init(int numFrames);
+
+    /**
+     * Called whenever the page in the frame is requested
+     **/
+    void accessed(int frame);
+
+    /**
+     * Returns a frame whose page can be evicted, or -1 if every frame is
+     * * pinned. The pin counts of the frames are given
+     **/
+    int chooseVictim(int[] pinCounts);
+}
@@ -23,6 +23,7 @@ public class SQLQuery {
 
     boolean isDistinct = false;          // Whether distinct key word appeared in select clause
     boolean isDesc = false;				 // NEW: Whether order of results must be in descending order
+    int limit = -1;                      // Maximum number of result tuples, -1 if there is no limit clause
 
     public SQLQuery(ArrayList<Attribute> list1, ArrayList<String> list2, ArrayList<Condition> list3) {
         projectList = list1;
@@ -77,6 +78,18 @@ public class SQLQuery {
         return isDesc;
     }
 
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public boolean hasLimit() {
+        return limit >= 0;
+    }
+
     public void setIsDistinct(boolean flag) {
         isDistinct = flag;
     }
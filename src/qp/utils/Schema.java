@@ -96,7 +96,10 @@ public class Schema implements Serializable {
         int newTupleSize = 0;
         for (int i = 0; i < attrlist.size(); ++i) {
             Attribute resAttr = attrlist.get(i);
-            int baseIndex = this.indexOf(resAttr.getBaseAttribute());
+            int baseIndex = this.indexOf(resAttr);
+            if (baseIndex == -1) {
+                baseIndex = this.indexOf(resAttr.getBaseAttribute());
+            }
             Attribute baseAttr = (Attribute) this.getAttribute(baseIndex).clone();
             baseAttr.setAggType(resAttr.getAggType());
             newVector.add(baseAttr);
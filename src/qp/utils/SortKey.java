@@ -0,0 +1,122 @@
+/**
+ * Normalized sort keys of tuples
+ **/
+
+package qp.utils;
+
+import java.util.ArrayList;
+
+/**
+ * The sort key of a tuple is a byte array such that comparing the keys
+ * of two tuples byte by byte, as unsigned values, gives the same result
+ * as comparing the tuples on the key attributes with Tuple.compareTuples.
+ * The key is computed once per tuple, so sorting and merging compare
+ * arrays instead of unboxing and testing the type of every attribute on
+ * every comparison.
+ *
+ * Every attribute starts with a byte that is 0 for a null value, which
+ * comes first, and 1 otherwise. An INT is then 4 bytes big endian with
+ * the sign bit flipped, a REAL the 4 bytes of its bits, with the sign bit
+ * flipped for a positive number and every bit flipped for a negative one.
+ * A STRING is one byte per char, the char plus one, for chars below 0xFE,
+ * and 0xFF followed by the 2 bytes of the char otherwise, ended by a 0
+ * byte. In descending order all the bytes of the key are flipped.
+ */
+public class SortKey {
+
+    final int[] indices;     // Indices of the key attributes in the tuple
+    final boolean isDesc;    // Whether the key is in descending order
+
+    public SortKey(ArrayList<Integer> indices, boolean isDesc) {
+        this.indices = new int[indices.size()];
+        for (int i = 0; i < this.indices.length; ++i) {
+            this.indices[i] = indices.get(i);
+        }
+        this.isDesc = isDesc;
+    }
+
+    public SortKey(ArrayList<Integer> indices) {
+        this(indices, false);
+    }
+
+    /**
+     * Returns the normalized key of the tuple
+     **/
+    public byte[] keyOf(Tuple tuple) {
+        int size = 0;
+        for (int index : indices) {
+            Object value = tuple.dataAt(index);
+            size += 1;
+            if (value instanceof String) {
+                String str = (String) value;
+                for (int i = 0; i < str.length(); ++i) {
+                    size += (str.charAt(i) < 0xFE) ? 1 : 3;
+                }
+                size += 1;
+            } else if (value != null) {
+                size += 4;
+            }
+        }
+
+        byte[] key = new byte[size];
+        int pos = 0;
+        for (int index : indices) {
+            Object value = tuple.dataAt(index);
+            if (value == null) {
+                key[pos++] = 0;
+                continue;
+            }
+            key[pos++] = 1;
+            if (value instanceof Integer) {
+                pos = putInt(key, pos, ((Integer) value) ^ 0x80000000);
+            } else if (value instanceof Float) {
+                int bits = Float.floatToIntBits((Float) value);
+                pos = putInt(key, pos, (bits < 0) ? ~bits : bits ^ 0x80000000);
+            } else if (value instanceof String) {
+                String str = (String) value;
+                for (int i = 0; i < str.length(); ++i) {
+                    char c = str.charAt(i);
+                    if (c < 0xFE) {
+                        key[pos++] = (byte) (c + 1);
+                    } else {
+                        key[pos++] = (byte) 0xFF;
+                        key[pos++] = (byte) (c >>> 8);
+                        key[pos++] = (byte) c;
+                    }
+                }
+                key[pos++] = 0;
+            } else {
+                System.out.println("SortKey: Unknown type of attribute " + index);
+                System.exit(1);
+            }
+        }
+        if (isDesc) {
+            for (int i = 0; i < key.length; ++i) {
+                key[i] = (byte) ~key[i];
+            }
+        }
+        return key;
+    }
+
+    private static int putInt(byte[] key, int pos, int value) {
+        key[pos] = (byte) (value >>> 24);
+        key[pos + 1] = (byte) (value >>> 16);
+        key[pos + 2] = (byte) (value >>> 8);
+        key[pos + 3] = (byte) value;
+        return pos + 4;
+    }
+
+    /**
+     * Compares two keys byte by byte as unsigned values
+     **/
+    public static int compare(byte[] left, byte[] right) {
+        int length = Math.min(left.length, right.length);
+        for (int i = 0; i < length; ++i) {
+            int cmp = (left[i] & 0xFF) - (right[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return left.length - right.length;
+    }
+}
@@ -5,28 +5,52 @@
 package qp.utils;
 
 import java.util.*;
-import java.io.*;
 
 /**
- * Tuple - a simple object which holds an ArrayList of data
+ * Tuple - a simple object which holds an array of data
+ *
+ * The values are kept in a single Object[] of the size of the schema.
+ * The tuple made by joining two tuples is a view of the two (see
+ * JoinedTuple) that reads their values, instead of a copy of them.
  */
-public class Tuple implements Serializable {
+public class Tuple {
 
-    public ArrayList<Object> _data;
+    final Object[] values;  // The values, null for a view of other tuples
 
+    /**
+     * Tuple of the values of the list
+     */
     public Tuple(ArrayList<Object> d) {
-        _data = d;
+        values = d.toArray();
+    }
+
+    /**
+     * Tuple of the values of the array, which the tuple keeps
+     */
+    public Tuple(Object[] values) {
+        this.values = values;
     }
 
     /**
-     * Accessor for data
+     * Accessor for data, a copy of the values
      */
     public ArrayList<Object> data() {
-        return _data;
+        ArrayList<Object> data = new ArrayList<>(size());
+        for (int i = 0; i < size(); ++i) {
+            data.add(dataAt(i));
+        }
+        return data;
     }
 
     public Object dataAt(int index) {
-        return _data.get(index);
+        return values[index];
+    }
+
+    /**
+     * Number of values of the tuple
+     */
+    public int size() {
+        return values.length;
     }
 
     /**
@@ -60,12 +84,11 @@ public class Tuple implements Serializable {
     }
 
     /**
-     * Joining two tuples without duplicate column elimination
+     * Joining two tuples without duplicate column elimination,
+     * * without copying their values
      **/
     public Tuple joinWith(Tuple right) {
-        ArrayList<Object> newData = new ArrayList<>(this.data());
-        newData.addAll(right.data());
-        return new Tuple(newData);
+        return new JoinedTuple(this, right);
     }
 
     /**
@@ -4,29 +4,46 @@
 
 package qp.utils;
 
-import qp.utils.*;
-
-import java.util.*;
-import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
 
 public class TupleReader {
 
     final String filename;    // Filename to write to
     final int batchsize;        // Number of tuples per out batch
+    final PageFormat format;    // Binary layout of the tuples
 
-    Batch inBatch;                            // Currently buffered input
-    int readCursor = 0;                    // Cursor within inBatch
+    Tuple[] inPage;                        // Tuples of the currently buffered page
+    int readCursor = 0;                    // Cursor within inPage
     boolean completed = false;    // Whether EOF has been reached
-    int numBatch = 0;                        // Number of batch read
+    int numBatch = 0;                        // Number of pages read
     int numTuple = 0;                        // Number of tuples read
     Tuple peekTuple = null;            // The next tuple of the batch (if peeked)
-    ObjectInputStream in;                // Input file stream
+    PageFile in;                   // Input file, read through the buffer pool
+    int nextPage = 0;              // Number of the next page to read
+    BitSet pageFilter;             // Pages of the file to read, all of them if null
+    int partition = 0;             // Part of the pages of the file to read
+    int numPartitions = 1;         // Number of parts the pages of the file are split into
+    int endPage;                   // Number of the page after the last one to read
+    boolean columnar = false;      // Whether nextBatch returns column batches
+    ColumnBatch inColumns;         // Columns of the currently buffered page, in columnar mode
+    int prefetch = 0;              // Number of pages read ahead, 0 to read every page when it is needed
+    ArrayBlockingQueue<Object> ahead;  // Pages read ahead and decoded, then END
+    Future<?> readAhead;           // Task reading the pages ahead
+    volatile boolean stopped;      // Whether the reader was closed before the task read every page
+
+    static final Object END = new Object();  // Put in the queue after the last page read ahead
 
     // filename: Filename of the output file to read from
+    // schema: Schema of the tuples in the file
     // batchsize: Number of tuples per batch
-    public TupleReader(String filename, int batchsize) {
+    public TupleReader(String filename, Schema schema, int batchsize) {
         this.filename = filename;
         this.batchsize = batchsize;
+        this.format = new PageFormat(schema);
     }
 
     public int getNumBatch() {
@@ -45,68 +62,92 @@ public class TupleReader {
         return filename;
     }
 
+    // Restricts the reader to the given pages of the file, the others are skipped without being read
+    public void setPageFilter(BitSet pageFilter) {
+        this.pageFilter = pageFilter;
+    }
+
+    // Restricts the reader to the part-th of numParts contiguous ranges of about the same number of pages of the file
+    public void setPartition(int part, int numParts) {
+        this.partition = part;
+        this.numPartitions = numParts;
+    }
+
+    // Makes nextBatch return the tuples of every page as a ColumnBatch of at most batchsize tuples
+    // The columnar mode is only meant for reading the file by nextBatch
+    public void setColumnar(boolean columnar) {
+        this.columnar = columnar;
+    }
+
+    // Reads and decodes the next pages of the file on an I/O thread (see AsyncIO), up to the given number of pages
+    // ahead of the caller, so that reading the file overlaps with the work on the pages already read
+    public void setPrefetch(int pages) {
+        this.prefetch = Math.max(0, pages);
+    }
+
     // Returns true if the end of the input file is encountered
     public boolean isEOF() {
         if (completed) return true;
         return (this.peek() == null);
     }
 
-    // Opens the input file and initializes the class for reading
+    // Returns true if every tuple of the pages read so far was returned, so that no page is buffered
+    public boolean isPageEnd() {
+        return peekTuple == null && inPage == null;
+    }
+
+    // Opens the input file, reads the file header and initializes the class for reading
     public boolean open() {
-        try {
-            in = new ObjectInputStream(new FileInputStream(filename));
-        } catch (IOException io) {
-            System.out.printf("%s:reading the temporary file error", filename);
+        in = new PageFile(filename);
+        if (!in.open()) {
+            in = null;
             return false;
         }
-        inBatch = null;
+        int numPages = in.getNumPages();
+        nextPage = (int) ((long) numPages * partition / numPartitions);
+        endPage = (int) ((long) numPages * (partition + 1) / numPartitions);
+        inPage = null;
+        inColumns = null;
         numBatch = 0;
         numTuple = 0;
         readCursor = 0;
         completed = false;
+        if (prefetch > 0) {
+            ahead = new ArrayBlockingQueue<>(prefetch);
+            stopped = false;
+            readAhead = AsyncIO.submit(this::readAhead);
+        }
         return true;
     }
 
     // Allows the caller to 'peek' at the next tuple.
     // Returns the next tuple but does not actually removes it from the stream
-    // This is lazily evaluated and will only read the next batch from the file if necessary
+    // This is lazily evaluated and will only read the next page from the file if necessary
     public Tuple peek() {
         if (completed) return null;
         // Already know the next tuple
         if (peekTuple != null) return peekTuple;
 
-        // If the next tuple is in the next batch, we have to read from the file
-        if (inBatch == null) {
-            try {
-                while (true) {
-                    inBatch = (Batch) in.readObject();
-                    numBatch++;
-                    if (inBatch.size() > 0) break;
-                }
-            } catch (EOFException e) {
-                // No more batch in the file
+        // If the next tuple is in the next page, we have to read from the file
+        while (inPage == null) {
+            if (!readPage()) {
+                // No more page in the file
                 peekTuple = null;
                 completed = true;
                 this.close();
                 return null;
-            } catch (ClassNotFoundException c) {
-                System.out.printf("%s:Some error in deserialization\n", filename);
-                System.exit(1);
-            } catch (IOException io) {
-                System.out.printf("%s:temporary file reading error\n", filename);
-                System.exit(1);
             }
         }
 
         // Read the next tuple from our already cached page
-        peekTuple = inBatch.get(readCursor);
+        peekTuple = inPage[readCursor];
         readCursor++;
 
-        // If reach end of the batch/page, reset the readCursor to prepare to read the next batch
-        // However, do not actually read the next batch at this stage
-        if (readCursor >= inBatch.size()) {
+        // If reach end of the page, reset the readCursor to prepare to read the next page
+        // However, do not actually read the next page at this stage
+        if (readCursor >= inPage.length) {
             readCursor = 0;
-            inBatch = null; // deallocate buffer
+            inPage = null; // deallocate buffer
         }
         return peekTuple;
     }
@@ -124,21 +165,138 @@ public class TupleReader {
         return curTuple;
     }
 
+    // Returns the next batch of up to batchsize tuples, or null if there are no more tuples
+    public Batch nextBatch() {
+        if (columnar) return nextColumnBatch();
+        Batch batch = new Batch(batchsize);
+        Tuple tuple;
+        while (!batch.isFull() && (tuple = next()) != null) {
+            batch.add(tuple);
+        }
+        if (batch.isEmpty()) return null;
+        return batch;
+    }
+
+    // Returns the next batchsize tuples as a ColumnBatch, reading the next pages if necessary
+    // The tuples of a single page are returned over its vectors, those of several pages are copied together
+    private Batch nextColumnBatch() {
+        ArrayList<ColumnBatch> parts = new ArrayList<>();
+        int count = 0;
+        while (count < batchsize) {
+            while (!completed && (inColumns == null || readCursor >= inColumns.size())) {
+                if (!readColumnPage()) {
+                    inColumns = null;
+                    completed = true;
+                    this.close();
+                }
+            }
+            if (completed) break;
+            int end = Math.min(readCursor + batchsize - count, inColumns.size());
+            parts.add(inColumns.slice(readCursor, end, batchsize));
+            count += end - readCursor;
+            readCursor = end;
+        }
+        numTuple += count;
+        if (parts.isEmpty()) return null;
+        if (parts.size() == 1) return parts.get(0);
+        return ColumnBatch.concat(parts, batchsize);
+    }
+
+    // Helper method to read the next page of the file into column vectors
+    // Returns false if the end of the file is reached
+    private boolean readColumnPage() {
+        Object page = nextPage();
+        if (page == null) return false;
+        inColumns = (ColumnBatch) page;
+        numBatch++;
+        readCursor = 0;
+        return true;
+    }
+
+    // Helper method to move nextPage to the next page to read, skipping the pages not in the page filter
+    // The pages after those of the partition are not read
+    // Returns false if the end of the file is reached
+    private boolean seekPage() {
+        if (pageFilter != null) {
+            nextPage = pageFilter.nextSetBit(nextPage);
+            if (nextPage < 0) nextPage = endPage;
+        }
+        return nextPage < endPage;
+    }
+
+    // Helper method to read and decode the next page of the file
+    // Returns false if the end of the file is reached
+    private boolean readPage() {
+        Object page = nextPage();
+        if (page == null) return false;
+        Tuple[] tuples = (Tuple[]) page;
+        numBatch++;
+        inPage = (tuples.length > 0) ? tuples : null;
+        return true;
+    }
+
+    // Helper method to get the next page of the file, from the pages read ahead if any
+    // Returns null if the end of the file is reached
+    private Object nextPage() {
+        if (readAhead == null) return decodeNextPage();
+        Object page;
+        try {
+            page = ahead.take();
+        } catch (InterruptedException e) {
+            System.out.printf("%s:interrupted while reading the file\n", filename);
+            System.exit(1);
+            return null;
+        }
+        return (page == END) ? null : page;
+    }
+
+    // Helper method to read the next page of the file and decode it, into a ColumnBatch in columnar mode
+    // and into its tuples otherwise
+    // Returns null if the end of the file is reached
+    private Object decodeNextPage() {
+        if (!seekPage()) return null;
+        byte[] page = BufferPool.pin(in, nextPage);
+        Object decoded = columnar ? format.decodeColumns(ByteBuffer.wrap(page), batchsize)
+                : format.decodePage(ByteBuffer.wrap(page));
+        BufferPool.unpin(in, nextPage);
+        nextPage++;
+        return decoded;
+    }
+
+    // Task reading the pages ahead on an I/O thread, until the end of the file or until the reader is closed
+    // The queue holds at most prefetch pages, the task waits while it is full
+    private void readAhead() {
+        try {
+            Object page;
+            do {
+                page = decodeNextPage();
+                ahead.put((page == null) ? END : page);
+            } while (page != null && !stopped);
+        } catch (InterruptedException e) {
+            System.out.printf("%s:interrupted while reading the file ahead\n", filename);
+            System.exit(1);
+        }
+    }
+
     // Signals the TupleReader to stop reading from the file
     // Buffers and the input file will be closed here
     public boolean close() {
-        inBatch = null;        // deallocate buffer
+        inPage = null;        // deallocate buffer
+        inColumns = null;
         peekTuple = null;
         completed = true;
+        if (readAhead != null) {
+            // Makes room in the queue for the task to see that it is stopped, then waits for it before closing the file
+            stopped = true;
+            ahead.clear();
+            AsyncIO.await(readAhead, filename);
+            readAhead = null;
+            ahead = null;
+        }
         if (in != null) {
-            try {
-                in.close();
-                in = null;
-            } catch (IOException io) {
-                System.out.printf("%s:reading the temporary file error", filename);
-                System.out.println(io);
-                return false;
-            }
+            boolean closed = in.close();
+            in = null;
+            return closed;
         }
         return true;
     }
@@ -4,26 +4,38 @@
 
 package qp.utils;
 
-import qp.utils.*;
-
-import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
 
 public class TupleWriter {
 
     final String filename;    // Filename to write to
     final int batchsize;        // Number of tuples per out batch
+    final PageFormat format;    // Binary layout of the tuples
 
-    Batch outBatch;
+    ByteBuffer page;                        // Page currently being filled
+    int pageTuples = 0;                     // Number of tuples in the current page
     int numBatch = 0;                        // Number of batch written
     int numTuple = 0;                        // Number of tuples added
-    ObjectOutputStream out;            // Output file stream
+    OutputStream out;            // Output file stream
+    ZoneMap zoneMap;             // Zone map kept of the pages written, if any
+    int writeBehind = 0;         // Number of full pages written behind, 0 to write every page when it is full
+    ArrayBlockingQueue<byte[]> behind;  // Full pages not written yet, then END
+    ArrayBlockingQueue<byte[]> free;    // Pages written, to be filled again
+    Future<?> writeTask;         // Task writing the pages behind
+
+    static final byte[] END = new byte[0];  // Put in the queue after the last page
 
     // filename: Filename of the output file to write to
+    // schema: Schema of the tuples to be written
     // batchsize: Number of tuples per batch
-    public TupleWriter(String filename, int batchsize) {
+    public TupleWriter(String filename, Schema schema, int batchsize) {
         this.filename = filename;
         this.batchsize = batchsize;
+        this.format = new PageFormat(schema);
     }
 
     public int getNumBatch() {
@@ -42,39 +54,99 @@ public class TupleWriter {
         return filename;
     }
 
+    // Keeps the minimum and maximum values of every page written in the zone map
+    public void setZoneMap(ZoneMap zoneMap) {
+        this.zoneMap = zoneMap;
+    }
+
+    // Writes the full pages to the file on an I/O thread (see AsyncIO), up to the given number of pages
+    // behind the caller, so that writing the file overlaps with producing the next pages
+    public void setWriteBehind(int pages) {
+        this.writeBehind = Math.max(0, pages);
+    }
+
     // Opens the file and initializes the class for writing
     public boolean open() {
+        int pagesize = Batch.getPageSize();
+        BufferPool.invalidate(filename);  // Cached pages of an earlier file of that name are stale
         try {
-            out = new ObjectOutputStream(new FileOutputStream(filename));
+            out = new FileOutputStream(filename);
+            ByteBuffer header = ByteBuffer.allocate(PageFormat.FILE_HEADER_SIZE);
+            header.putInt(PageFormat.MAGIC);
+            header.putInt(pagesize);
+            out.write(header.array());
         } catch (IOException io) {
             System.out.printf("%s:writing the temporary file error", filename);
             return false;
         }
-        outBatch = null;
+        page = ByteBuffer.allocate(pagesize);
+        page.position(PageFormat.PAGE_HEADER_SIZE);
+        pageTuples = 0;
         numBatch = 0;
         numTuple = 0;
+        if (writeBehind > 0) {
+            behind = new ArrayBlockingQueue<>(writeBehind);
+            free = new ArrayBlockingQueue<>(writeBehind + 1);
+            writeTask = AsyncIO.submit(this::writeBehind);
+        }
         return true;
     }
 
     // Supplies a tuple to the tuple writer
-    // Tuple writer will store the tuples and writes to the file on Batch at a time
+    // Tuple writer will store the tuples and writes to the file one page at a time
     public boolean next(Tuple nextTuple) {
-        if (outBatch == null) {
-            outBatch = new Batch(batchsize);
+        int size = format.encodedSize(nextTuple);
+        if (pageTuples > 0 && (pageTuples == batchsize || size > page.remaining())) {
+            writePage();        // Writes to file when the page has enough tuples or no room left
         }
-        outBatch.add(nextTuple);
+        if (size > page.remaining()) {
+            System.out.printf("%s:tuple of %d bytes does not fit in a page\n", filename, size);
+            System.exit(1);
+        }
+        format.encode(nextTuple, page);
+        if (zoneMap != null) zoneMap.add(nextTuple);
+        ++pageTuples;
         ++numTuple;
-        if (outBatch.isFull())
-            writeBatch();        // Immediately writes to file when we have enough tuples to fill a BAtch
         return true;
     }
 
-    // Helper method to write a single batch to the output file
-    private void writeBatch() {
+    // Supplies all the tuples of a batch to the tuple writer
+    public boolean next(Batch batch) {
+        for (int i = 0; i < batch.size(); ++i) {
+            next(batch.get(i));
+        }
+        return true;
+    }
+
+    // Helper method to write the current page to the output file
+    private void writePage() {
+        page.putInt(0, pageTuples);
+        page.putInt(4, page.position());
+        if (writeTask != null) {
+            // hand the page to the I/O thread, and fill a page it has written, or a new one
+            try {
+                behind.put(page.array());
+            } catch (InterruptedException e) {
+                System.out.printf("%s:interrupted while writing the temporary file\n", filename);
+                System.exit(1);
+            }
+            byte[] next = free.poll();
+            page = ByteBuffer.wrap((next != null) ? next : new byte[page.capacity()]);
+        } else {
+            write(page.array());
+            // reuse the page buffer for the next page
+            Arrays.fill(page.array(), (byte) 0);
+        }
+        if (zoneMap != null) zoneMap.endPage();
+        ++numBatch;
+        page.position(PageFormat.PAGE_HEADER_SIZE);
+        pageTuples = 0;
+    }
+
+    // Helper method to write a page to the output file
+    private void write(byte[] data) {
         try {
-            out.writeObject(outBatch);
-            outBatch = null;        // deallocate output buffer --> saves memory
-            ++numBatch;
+            out.write(data);
         } catch (IOException io) {
             System.out.printf("%s:writing the temporary file error", filename);
             System.out.println(io);
@@ -82,10 +154,37 @@ public class TupleWriter {
         }
     }
 
+    // Task writing the pages behind on an I/O thread, until END is put in the queue
+    // The pages written are cleared and given back to be filled again
+    private void writeBehind() {
+        try {
+            byte[] data;
+            while ((data = behind.take()) != END) {
+                write(data);
+                Arrays.fill(data, (byte) 0);
+                free.offer(data);
+            }
+        } catch (InterruptedException e) {
+            System.out.printf("%s:interrupted while writing the temporary file\n", filename);
+            System.exit(1);
+        }
+    }
+
     // Signals the TupleWriter to finish writing all the tuples to the file
     public boolean close() {
-        if (outBatch != null) writeBatch();  // Unfilled batch (if any) will be flushed to the file
         if (out != null) {
+            if (pageTuples > 0) writePage();  // Unfilled page (if any) will be flushed to the file
+            if (writeTask != null) {
+                // Waits for the pages written behind to be in the file
+                try {
+                    behind.put(END);
+                } catch (InterruptedException e) {
+                    System.out.printf("%s:interrupted while writing the temporary file\n", filename);
+                    System.exit(1);
+                }
+                AsyncIO.await(writeTask, filename);
+                writeTask = null;
+            }
             try {
                 out.close();
                 out = null;
@@ -0,0 +1,381 @@
+/**
+ * Per page minimum and maximum values of a table file
+ **/
+
+package qp.utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * The zone map of a table file keeps, for every page of the file and every
+ * column, the smallest and the largest value and the number of nulls. It
+ * is written next to the <tablename>.tbl file as <tablename>.zm when the
+ * table is converted, and lets a scan skip the pages on which a selection
+ * condition on a constant cannot hold.
+ *
+ * A page may hold a value less than a constant if its minimum is less than
+ * the constant, a value greater if its maximum is greater, and an equal
+ * value if the constant is between the two. A page of nulls only holds no
+ * value that satisfies a condition. A REAL column with a NaN on a page has
+ * no bounds on that page, so the page is never skipped.
+ *
+ * The file starts with the magic number, the page size of the table file,
+ * the number of columns, their types and the number of pages. Every page
+ * then has its number of tuples, the number of nulls and the NaN flag of
+ * every column, and its minimum and maximum values, each written as a
+ * tuple in the page format (see PageFormat) after its length in bytes.
+ */
+public class ZoneMap {
+
+    static final int MAGIC = 0x51505A4D;  // "QPZM"
+
+    final int pagesize;                 // Page size of the table file
+    final int[] types;                  // Type of each column
+    final ArrayList<Zone> zones;        // Zone of every page, in page order
+    Zone current;                       // Zone of the page being written
+    long fileTime;                      // Modification time of the file the zone map was read from
+
+    /**
+     * Zone maps read so far, by table file, as a scan reads the zone map
+     * * of its table every time it is opened
+     **/
+    static final HashMap<String, ZoneMap> readCache = new HashMap<>();
+
+    public ZoneMap(Schema schema, int pagesize) {
+        this.pagesize = pagesize;
+        types = new int[schema.getNumCols()];
+        for (int i = 0; i < types.length; ++i) {
+            types[i] = schema.getAttribute(i).getProjectedType();
+        }
+        zones = new ArrayList<>();
+    }
+
+    ZoneMap(int[] types, int pagesize) {
+        this.pagesize = pagesize;
+        this.types = types;
+        zones = new ArrayList<>();
+    }
+
+    public int getNumPages() {
+        return zones.size();
+    }
+
+    /**
+     * Adds a tuple of the page being written
+     **/
+    public void add(Tuple tuple) {
+        if (current == null) {
+            current = new Zone(types.length);
+        }
+        current.tuples++;
+        for (int i = 0; i < types.length; ++i) {
+            Object value = tuple.dataAt(i);
+            if (value == null) {
+                current.nulls[i]++;
+            } else if (value instanceof Float && ((Float) value).isNaN()) {
+                current.unbounded[i] = true;
+            } else {
+                if (current.min[i] == null || compareValues(value, current.min[i]) < 0) {
+                    current.min[i] = value;
+                }
+                if (current.max[i] == null || compareValues(value, current.max[i]) > 0) {
+                    current.max[i] = value;
+                }
+            }
+        }
+    }
+
+    /**
+     * Ends the page being written, called when the page is written to the file
+     **/
+    public void endPage() {
+        zones.add(current != null ? current : new Zone(types.length));
+        current = null;
+    }
+
+    /**
+     * Pages of the file on which all the conditions may hold. Conditions
+     * * other than on an attribute of the schema and a constant rule out
+     * * no page
+     **/
+    public BitSet pagesMatching(ArrayList<Condition> conditions, Schema schema) {
+        BitSet pages = new BitSet(zones.size());
+        pages.set(0, zones.size());
+        for (Condition con : conditions) {
+            int index = schema.indexOf(con.getLhs());
+            if (index < 0 || index >= types.length || !(con.getRhs() instanceof String)) {
+                continue;
+            }
+            Object constant = Predicate.constantOf((String) con.getRhs(), types[index]);
+            int mask = Predicate.maskOf(con.getExprType());
+            for (int page = pages.nextSetBit(0); page >= 0; page = pages.nextSetBit(page + 1)) {
+                if (!zones.get(page).mayMatch(index, mask, constant)) {
+                    pages.clear(page);
+                }
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * Fraction of the pages of the file on which all the conditions may hold
+     **/
+    public double pageFraction(ArrayList<Condition> conditions, Schema schema) {
+        if (zones.isEmpty()) {
+            return 1;
+        }
+        return (double) pagesMatching(conditions, schema).cardinality() / zones.size();
+    }
+
+    /**
+     * Fraction of the tuples of the file that are on the pages on which
+     * * the condition may hold, an upper bound of its selectivity
+     **/
+    public double tupleFraction(Condition condition, Schema schema) {
+        ArrayList<Condition> conditions = new ArrayList<>();
+        conditions.add(condition);
+        BitSet pages = pagesMatching(conditions, schema);
+        long total = 0;
+        long matching = 0;
+        for (int page = 0; page < zones.size(); ++page) {
+            total += zones.get(page).tuples;
+            if (pages.get(page)) {
+                matching += zones.get(page).tuples;
+            }
+        }
+        return (total == 0) ? 1 : (double) matching / total;
+    }
+
+    /**
+     * Estimated selectivity of a range condition on a numeric attribute,
+     * * assuming the values are spread uniformly between the smallest and
+     * * the largest value of the file. Returns -1 if it cannot be estimated
+     **/
+    public double rangeFraction(Condition condition, Schema schema) {
+        int index = schema.indexOf(condition.getLhs());
+        if (index < 0 || index >= types.length || !(condition.getRhs() instanceof String)
+                || types[index] == Attribute.STRING) {
+            return -1;
+        }
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        long total = 0;
+        long nonNull = 0;
+        for (Zone zone : zones) {
+            total += zone.tuples;
+            nonNull += zone.tuples - zone.nulls[index];
+            if (zone.unbounded[index]) {
+                return -1;
+            }
+            if (zone.min[index] != null) {
+                min = Math.min(min, ((Number) zone.min[index]).doubleValue());
+                max = Math.max(max, ((Number) zone.max[index]).doubleValue());
+            }
+        }
+        if (nonNull == 0) {
+            return 0;
+        }
+        double constant = ((Number) Predicate.constantOf((String) condition.getRhs(), types[index])).doubleValue();
+        double fraction;
+        switch (condition.getExprType()) {
+            case Condition.LESSTHAN:
+            case Condition.LTOE:
+                fraction = (max > min) ? (constant - min) / (max - min) : (min <= constant ? 1 : 0);
+                break;
+            case Condition.GREATERTHAN:
+            case Condition.GTOE:
+                fraction = (max > min) ? (max - constant) / (max - min) : (max >= constant ? 1 : 0);
+                break;
+            default:
+                return -1;
+        }
+        fraction = Math.max(0, Math.min(1, fraction));
+        return fraction * nonNull / total;
+    }
+
+    /**
+     * Compares two non-null values of the same type the way the selection
+     * * conditions do
+     **/
+    static int compareValues(Object left, Object right) {
+        if (left instanceof Integer) {
+            return Integer.compare((Integer) left, (Integer) right);
+        } else if (left instanceof Float) {
+            float l = (Float) left;
+            float r = (Float) right;
+            return (l < r) ? -1 : ((l > r) ? 1 : 0);
+        }
+        return ((String) left).compareTo((String) right);
+    }
+
+    /**
+     * Name of the zone map file of a table file
+     **/
+    public static String fileOf(String tblfile) {
+        if (tblfile.endsWith(".tbl")) {
+            return tblfile.substring(0, tblfile.length() - 4) + ".zm";
+        }
+        return tblfile + ".zm";
+    }
+
+    /**
+     * Writes the zone map to the file
+     **/
+    public boolean write(String filename) {
+        PageFormat format = new PageFormat(types);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+            out.writeInt(MAGIC);
+            out.writeInt(pagesize);
+            out.writeInt(types.length);
+            for (int type : types) {
+                out.writeInt(type);
+            }
+            out.writeInt(zones.size());
+            for (Zone zone : zones) {
+                zone.write(out, format);
+            }
+            out.close();
+        } catch (IOException io) {
+            System.out.println("ZoneMap: Error writing " + filename);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the zone map of a table file, or returns null if there is
+     * * none or if the table file changed after the zone map was written
+     **/
+    public static synchronized ZoneMap forTable(String tblfile) {
+        File table = new File(tblfile);
+        File file = new File(fileOf(tblfile));
+        if (!table.exists() || !file.exists() || file.lastModified() < table.lastModified()) {
+            return null;
+        }
+        ZoneMap zoneMap = readCache.get(tblfile);
+        if (zoneMap != null && zoneMap.fileTime == file.lastModified()
+                && table.length() == PageFormat.FILE_HEADER_SIZE + (long) zoneMap.zones.size() * zoneMap.pagesize) {
+            return zoneMap;
+        }
+        zoneMap = read(file);
+        if (zoneMap == null) {
+            return null;
+        }
+        long length = PageFormat.FILE_HEADER_SIZE + (long) zoneMap.zones.size() * zoneMap.pagesize;
+        if (table.length() != length) {
+            return null;
+        }
+        zoneMap.fileTime = file.lastModified();
+        readCache.put(tblfile, zoneMap);
+        return zoneMap;
+    }
+
+    /**
+     * Reads a zone map file, or returns null if it is not one
+     **/
+    static ZoneMap read(File file) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            ZoneMap zoneMap = null;
+            if (in.readInt() == MAGIC) {
+                int pagesize = in.readInt();
+                int[] types = new int[in.readInt()];
+                for (int i = 0; i < types.length; ++i) {
+                    types[i] = in.readInt();
+                }
+                zoneMap = new ZoneMap(types, pagesize);
+                PageFormat format = new PageFormat(types);
+                int numPages = in.readInt();
+                for (int page = 0; page < numPages; ++page) {
+                    zoneMap.zones.add(Zone.read(in, format));
+                }
+            }
+            in.close();
+            return zoneMap;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Statistics of one page
+     **/
+    static class Zone {
+        int tuples;            // Number of tuples on the page
+        Object[] min;          // Smallest non-null value of every column, null if there is none
+        Object[] max;          // Largest non-null value of every column, null if there is none
+        int[] nulls;           // Number of nulls of every column
+        boolean[] unbounded;   // Whether the column has a NaN on the page
+
+        Zone(int numCols) {
+            min = new Object[numCols];
+            max = new Object[numCols];
+            nulls = new int[numCols];
+            unbounded = new boolean[numCols];
+        }
+
+        /**
+         * Whether the page may hold a value of the column for which
+         * * comparing it with the constant gives an outcome in the mask
+         **/
+        boolean mayMatch(int index, int mask, Object constant) {
+            if (unbounded[index]) {
+                return true;
+            }
+            if (min[index] == null) {
+                return false;
+            }
+            int cmpMin = compareValues(min[index], constant);
+            int cmpMax = compareValues(max[index], constant);
+            return ((mask & Predicate.LESS) != 0 && cmpMin < 0)
+                    || ((mask & Predicate.GREATER) != 0 && cmpMax > 0)
+                    || ((mask & Predicate.EQUAL) != 0 && cmpMin <= 0 && cmpMax >= 0);
+        }
+
+        void write(DataOutputStream out, PageFormat format) throws IOException {
+            out.writeInt(tuples);
+            for (int i = 0; i < nulls.length; ++i) {
+                out.writeInt(nulls[i]);
+                out.writeBoolean(unbounded[i]);
+            }
+            writeValues(out, format, min);
+            writeValues(out, format, max);
+        }
+
+        static Zone read(DataInputStream in, PageFormat format) throws IOException {
+            Zone zone = new Zone(format.getNumCols());
+            zone.tuples = in.readInt();
+            for (int i = 0; i < zone.nulls.length; ++i) {
+                zone.nulls[i] = in.readInt();
+                zone.unbounded[i] = in.readBoolean();
+            }
+            zone.min = readValues(in, format);
+            zone.max = readValues(in, format);
+            return zone;
+        }
+
+        private static void writeValues(DataOutputStream out, PageFormat format, Object[] values) throws IOException {
+            Tuple tuple = new Tuple(values);
+            ByteBuffer buf = ByteBuffer.allocate(format.encodedSize(tuple));
+            format.encode(tuple, buf);
+            out.writeInt(buf.capacity());
+            out.write(buf.array());
+        }
+
+        private static Object[] readValues(DataInputStream in, PageFormat format) throws IOException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            Tuple tuple = format.decode(ByteBuffer.wrap(bytes));
+            Object[] values = new Object[format.getNumCols()];
+            for (int i = 0; i < values.length; ++i) {
+                values[i] = tuple.dataAt(i);
+            }
+            return values;
+        }
+    }
+}
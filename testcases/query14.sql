@@ -0,0 +1,4 @@
+SELECT DISTINCT CUSTOMER.cid,CUSTOMER.gender
+FROM CUSTOMER
+ORDERBY CUSTOMER.cid DESC
+LIMIT 10